@@ -0,0 +1,50 @@
+package tinygit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Comparator;
+import java.util.stream.Stream;
+
+/**
+ * A scratch directory holding the repository a benchmark runs against.
+ * While it is open, every TinyGitFile resolves inside it and standard
+ * output is discarded, so that printing is not part of the measurement.
+ *
+ * @author Michael Remediakis
+ */
+class BenchmarkRepository {
+
+    /** The scratch directory. */
+    private Path _dir;
+    /** Standard output while the repository is open. */
+    private PrintStream _stdout;
+
+    /**
+     * Creates an empty scratch directory and makes it the tinygit working
+     * directory.
+     */
+    BenchmarkRepository() throws IOException {
+        _dir = Files.createTempDirectory("tinygit-bench");
+        TinyGitFile.setRemotePath(_dir + File.separator);
+        _stdout = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+    }
+
+    /**
+     * Restores the working directory and standard output and deletes the
+     * scratch directory.
+     */
+    void close() throws IOException {
+        System.setOut(_stdout);
+        TinyGitFile.setRemotePath("");
+        try (Stream<Path> paths = Files.walk(_dir)) {
+            paths.sorted(Comparator.reverseOrder())
+                .map(Path::toFile)
+                .forEach(File::delete);
+        }
+    }
+}
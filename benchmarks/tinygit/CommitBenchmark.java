@@ -0,0 +1,92 @@
+package tinygit;
+
+import java.io.IOException;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of storing and loading commits in a repository that already
+ * holds many of them.
+ *
+ * @author Michael Remediakis
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class CommitBenchmark {
+
+    /** Number of files tracked by the stored commit. */
+    @Param({"100", "10000"})
+    public int tracked;
+
+    /** Number of other commits in the repository. */
+    @Param({"1000"})
+    public int others;
+
+    /** The scratch directory holding the repository. */
+    private BenchmarkRepository _scratch;
+    /** The commit that is stored and loaded. */
+    private Commit _commit;
+    /** The id of that commit. */
+    private String _hash;
+
+    /** Creates the repository and fills it with commits. */
+    @Setup
+    public void create() throws IOException {
+        _scratch = new BenchmarkRepository();
+        new Controller().parseLine("init");
+        Random random = new Random(ControllerBenchmark.SEED);
+        _commit = new Commit("benchmark", new Date(0),
+            Utils.hash(Utils.serialize(null)));
+        for (int i = 0; i < tracked; i += 1) {
+            _commit.getTracked().put(RepoGenerator.fileName(i),
+                Utils.sha1Id(Integer.toString(random.nextInt())));
+        }
+        for (int i = 0; i < others; i += 1) {
+            _commit.storeCommit(Utils.sha1(Integer.toString(i)));
+        }
+        _hash = _commit.id();
+        _commit.storeCommit(_hash);
+    }
+
+    /** Deletes the repository. */
+    @TearDown
+    public void delete() throws IOException {
+        _scratch.close();
+    }
+
+    /** Writes the commit. */
+    @Benchmark
+    public void storeCommit() {
+        _commit.storeCommit(_hash);
+    }
+
+    /** Reads the commit by its full id. */
+    @Benchmark
+    public Commit loadCommit() {
+        return Commit.loadCommit(_hash);
+    }
+
+    /** Reads the commit by an abbreviated id. */
+    @Benchmark
+    public Commit loadAbbreviatedCommit() {
+        return Commit.loadCommit(_hash.substring(0, 7));
+    }
+}
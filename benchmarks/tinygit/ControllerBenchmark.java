@@ -0,0 +1,143 @@
+package tinygit;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of whole commands, as dispatched by Controller.parseLine,
+ * against generated repositories of various sizes and shapes.
+ *
+ * @author Michael Remediakis
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+public class ControllerBenchmark {
+
+    /** Seed for every generated repository. */
+    static final long SEED = 61;
+
+    /**
+     * A generated repository, with master checked out and a diverged
+     * branch named "side".
+     */
+    @State(Scope.Benchmark)
+    public static class Repository {
+
+        /** Number of files in the working tree. */
+        @Param({"100", "1000"})
+        public int files;
+
+        /** Number of commits on master. */
+        @Param({"10", "100"})
+        public int commits;
+
+        /** Name of a RepoGenerator.Shape. */
+        @Param({"LINEAR", "BRANCHING", "MERGE_HEAVY", "BINARY"})
+        public String shape;
+
+        /** The scratch directory holding the repository. */
+        private BenchmarkRepository _scratch;
+        /** Runs commands against the repository. */
+        private Controller _controller;
+        /** The commit master pointed at once generated. */
+        private String _masterTip;
+        /** Whether side, rather than master, is checked out. */
+        private boolean _onSide;
+        /** Number of working-tree edits made so far. */
+        private int _edits;
+
+        /** Generates the repository. */
+        @Setup(Level.Trial)
+        public void create() throws IOException {
+            _scratch = new BenchmarkRepository();
+            new RepoGenerator(SEED).generate(files, commits,
+                RepoGenerator.Shape.valueOf(shape));
+            _controller = new Controller();
+            _masterTip = _controller.getHeadHash();
+        }
+
+        /** Deletes the repository. */
+        @TearDown(Level.Trial)
+        public void delete() throws IOException {
+            _scratch.close();
+        }
+
+        /** Rewrites one tracked file and returns its name. */
+        String edit() {
+            String name = RepoGenerator.fileName(_edits % files);
+            Utils.writeContents(new TinyGitFile(name), "edit " + _edits);
+            _edits += 1;
+            return name;
+        }
+    }
+
+    /**
+     * Rewinds master to its generated tip before every merge, so that
+     * each invocation merges the same two heads.
+     */
+    @State(Scope.Benchmark)
+    public static class Rewound {
+
+        /** Resets master in REPO back to its generated tip. */
+        @Setup(Level.Invocation)
+        public void rewind(Repository repo) {
+            repo._controller.parseLine("reset", repo._masterTip);
+        }
+    }
+
+    /** Prints the status of REPO. */
+    @Benchmark
+    public void status(Repository repo) {
+        repo._controller.parseLine("status");
+    }
+
+    /** Prints the log of master in REPO. */
+    @Benchmark
+    public void log(Repository repo) {
+        repo._controller.parseLine("log");
+    }
+
+    /** Edits and stages one file of REPO. */
+    @Benchmark
+    public void add(Repository repo) {
+        repo._controller.parseLine("add", repo.edit());
+    }
+
+    /** Edits, stages and commits one file of REPO. */
+    @Benchmark
+    public void commit(Repository repo) {
+        repo._controller.parseLine("add", repo.edit());
+        repo._controller.parseLine("commit", "benchmark " + repo._edits);
+    }
+
+    /** Switches REPO between master and side. */
+    @Benchmark
+    public void checkout(Repository repo) {
+        repo._controller.parseLine("checkout",
+            repo._onSide ? "master" : "side");
+        repo._onSide = !repo._onSide;
+    }
+
+    /** Merges side into master of REPO, after REWOUND rewinds master. */
+    @Benchmark
+    public void merge(Repository repo, Rewound rewound) {
+        repo._controller.parseLine("merge", "side");
+    }
+}
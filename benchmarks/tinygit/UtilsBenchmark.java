@@ -0,0 +1,93 @@
+package tinygit;
+
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks of the hashing and serialization primitives in Utils.
+ *
+ * @author Michael Remediakis
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(1)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class UtilsBenchmark {
+
+    /** Size in bytes of the hashed contents. */
+    @Param({"64", "4096", "1048576"})
+    public int size;
+
+    /** Number of files tracked by the serialized commit. */
+    @Param({"100", "10000"})
+    public int tracked;
+
+    /** Contents to hash. */
+    private byte[] _contents;
+    /** The same contents as a String. */
+    private String _text;
+    /** A commit to serialize. */
+    private Commit _commit;
+
+    /** Generates the contents and commit. */
+    @Setup
+    public void create() {
+        Random random = new Random(ControllerBenchmark.SEED);
+        _contents = new byte[size];
+        for (int i = 0; i < size; i += 1) {
+            _contents[i] = (byte) ('a' + random.nextInt(26));
+        }
+        _text = new String(_contents);
+        _commit = new Commit("benchmark", new Date(0),
+            Utils.hash(Utils.serialize(null)));
+        for (int i = 0; i < tracked; i += 1) {
+            _commit.getTracked().put(RepoGenerator.fileName(i),
+                Utils.sha1Id(Integer.toString(random.nextInt())));
+        }
+    }
+
+    /** Hashes a byte array. */
+    @Benchmark
+    public String sha1Bytes() {
+        return Utils.sha1(_contents);
+    }
+
+    /** Hashes a String. */
+    @Benchmark
+    public String sha1String() {
+        return Utils.sha1(_text);
+    }
+
+    /** Hashes a byte array to a binary id, without hex encoding. */
+    @Benchmark
+    public ObjectId sha1IdBytes() {
+        return Utils.sha1Id(_contents);
+    }
+
+    /** Serializes a commit. */
+    @Benchmark
+    public byte[] serializeCommit() {
+        return Utils.serialize(_commit);
+    }
+
+    /** Computes a commit's id, as committing does. */
+    @Benchmark
+    public String hashCommit() {
+        return _commit.id();
+    }
+}
@@ -0,0 +1,196 @@
+import sys, re
+from subprocess import run, PIPE, TimeoutExpired
+from os.path import abspath, dirname, join
+from getopt import getopt, GetoptError
+from os import environ, getcwd, mkdir
+from shutil import copytree, rmtree
+from tempfile import mkdtemp
+from time import monotonic
+
+SHORT_USAGE = """\
+Usage: python3 scale.py OPTIONS [BUDGETS]
+
+   OPTIONS may include
+       --tier=TIER    Run only the scenarios of tier TIER (default quick).
+       --seed=N       Seed for the generated repositories (default 61).
+       --progdir=DIR  Directory or JAR files containing tinygit application
+       --keep         Keep the generated repositories.
+"""
+
+USAGE = SHORT_USAGE + """\
+
+Generates large repositories with tinygit.RepoGenerator and runs tinygit
+commands against them, each under a time and a memory budget.  BUDGETS
+(default scale.budgets) has one line per command of a scenario:
+
+   TIER SHAPE FILES COMMITS COMMAND SECONDS HEAP_MB
+
+SHAPE, FILES and COMMITS are passed to RepoGenerator; all lines that share
+them form one scenario, run in a fresh directory.  COMMAND is one of
+
+   generate  Generate the repository (always run, budgeted if listed).
+   status    tinygit status
+   log       tinygit log
+   checkout  tinygit checkout side, then tinygit checkout master
+   merge     tinygit merge side
+   push      Push master to a copy of the repository taken right after
+             it was generated.
+
+Commands run in the order above.  Each runs in its own JVM with a
+maximum heap of HEAP_MB megabytes, and fails if it takes longer than
+SECONDS of wall-clock time (JVM start-up included), runs out of memory,
+or exits abnormally.  Lines starting with # are comments."""
+
+COMMANDS = ["generate", "status", "log", "checkout", "merge", "push"]
+
+DEFAULT_HEAP_MB = 1024
+DEFAULT_SECONDS = 600
+
+def Usage():
+    print(SHORT_USAGE, file=sys.stderr)
+    sys.exit(1)
+
+def readBudgets(filename, tier):
+    """Returns a list of (scenario, {command: (seconds, heap)}) pairs,
+    in file order, for the scenarios of TIER in FILENAME."""
+    scenarios = {}
+    with open(filename) as inp:
+        for line_num, line in enumerate(inp, 1):
+            line = line.split('#', 1)[0].strip()
+            if not line:
+                continue
+            fields = line.split()
+            if len(fields) != 7 or fields[4] not in COMMANDS:
+                raise ValueError("bad budget line at {}".format(line_num))
+            if fields[0] != tier:
+                continue
+            key = (fields[1], int(fields[2]), int(fields[3]))
+            scenarios.setdefault(key, {})[fields[4]] = \
+                (float(fields[5]), int(fields[6]))
+    return list(scenarios.items())
+
+def runJava(cdir, heap, timeout, main, *args):
+    """Runs MAIN with ARGS in CDIR with a HEAP-megabyte heap. Returns the
+    elapsed time and None, or an error message."""
+    start = monotonic()
+    try:
+        result = run(["java", "-Xmx{}m".format(heap), main] + list(args),
+                     cwd=cdir, stdout=PIPE, stderr=PIPE,
+                     universal_newlines=True, timeout=timeout)
+    except TimeoutExpired:
+        return monotonic() - start, "timed out"
+    elapsed = monotonic() - start
+    if "OutOfMemoryError" in result.stderr:
+        return elapsed, "ran out of memory"
+    if result.returncode != 0 or result.stderr:
+        return elapsed, "exited abnormally: {}".format(
+            (result.stderr or result.stdout).strip().split('\n')[0])
+    return elapsed, None
+
+def commandSteps(command, shape, files, commits, seed):
+    """Returns the (main class, arguments) steps making up COMMAND."""
+    if command == "generate":
+        return [("tinygit.RepoGenerator",
+                 [shape, str(files), str(commits), str(seed)])]
+    elif command == "checkout":
+        return [("tinygit.Main", ["checkout", "side"]),
+                ("tinygit.Main", ["checkout", "master"])]
+    elif command == "merge":
+        return [("tinygit.Main", ["merge", "side"])]
+    elif command == "push":
+        return [("tinygit.Main", ["add-remote", "origin",
+                                  "../remote/.tinygit"]),
+                ("tinygit.Main", ["push", "origin", "master"])]
+    else:
+        return [("tinygit.Main", [command])]
+
+def doScenario(scenario, budgets, seed, keep):
+    """Runs the commands of SCENARIO under BUDGETS. Returns the number of
+    commands that failed."""
+    shape, files, commits = scenario
+    name = "{} {}x{}".format(shape, files, commits)
+    tmpdir = mkdtemp(prefix="tinygit-scale-")
+    local = join(tmpdir, "local")
+    mkdir(local)
+    failures = 0
+    try:
+        for command in COMMANDS:
+            if command != "generate" and command not in budgets:
+                continue
+            seconds, heap = budgets.get(command,
+                                        (DEFAULT_SECONDS, DEFAULT_HEAP_MB))
+            total = 0.0
+            error = None
+            for main, args in commandSteps(command, shape, files,
+                                           commits, seed):
+                elapsed, error = runJava(local, heap, 2 * seconds,
+                                         main, *args)
+                total += elapsed
+                if error:
+                    break
+            if not error and total > seconds:
+                error = "over budget"
+            print("{} {}: {:.2f}s (budget {:g}s, {}MB) {}"
+                  .format(name, command, total, seconds, heap,
+                          "ERROR ({})".format(error) if error else "OK"))
+            if error:
+                failures += 1
+                if command == "generate":
+                    break
+            elif command == "generate":
+                copytree(local, join(tmpdir, "remote"))
+    finally:
+        if keep:
+            print("Kept {}".format(tmpdir))
+        else:
+            rmtree(tmpdir, ignore_errors=True)
+    return failures
+
+if __name__ == "__main__":
+    tier = "quick"
+    seed = 61
+    prog_dir = None
+    keep = False
+
+    try:
+        opts, files = getopt(sys.argv[1:], '',
+                             ['tier=', 'seed=', 'progdir=', 'keep', 'help'])
+        for opt, val in opts:
+            if opt == '--tier':
+                tier = val
+            elif opt == '--seed':
+                seed = int(val)
+            elif opt == '--progdir':
+                prog_dir = val
+            elif opt == '--keep':
+                keep = True
+            elif opt == '--help':
+                print(USAGE)
+                sys.exit(0)
+        if prog_dir is None:
+            prog_dir = dirname(abspath(getcwd()))
+        else:
+            prog_dir = abspath(prog_dir)
+    except GetoptError:
+        Usage()
+    if len(files) > 1:
+        Usage()
+    budget_file = files[0] if files else "scale.budgets"
+
+    environ['CLASSPATH'] = "{}{}{}".format(
+        prog_dir, ';' if re.match(r'.*\\', join('a', 'b')) else ':',
+        environ.get('CLASSPATH', ''))
+
+    failures = 0
+    commands = 0
+    for scenario, budgets in readBudgets(budget_file, tier):
+        commands += len(set(budgets) | {"generate"})
+        failures += doScenario(scenario, budgets, seed, keep)
+
+    print()
+    print("Ran {} commands. ".format(commands), end="")
+    if failures == 0:
+        print("All within budget.")
+    else:
+        print("{} failed.".format(failures))
+        sys.exit(1)
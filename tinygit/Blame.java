@@ -0,0 +1,211 @@
+package tinygit;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Finds the commit that introduced each line of a file. Lines are passed
+ * back from a commit to its parents wherever a parent's version of the
+ * file still contains them; whatever no parent can explain belongs to
+ * the commit itself. Finished results are cached per (commit, path) in
+ * .tinygit/blame, and a cached ancestor result settles every line that
+ * reaches it at once.
+ *
+ * @author Michael Remediakis
+ */
+class Blame {
+
+    /**
+     * A commit still suspected of introducing some lines.
+     */
+    private static class Suspect {
+        /** The blob id of the file in this commit. */
+        private ObjectId _blob;
+        /** Indices of the suspected lines in the blamed file. */
+        private List<Integer> _targets = new ArrayList<>();
+        /** Line numbers of the suspected lines in this commit's file. */
+        private List<Integer> _lines = new ArrayList<>();
+
+        /** A suspect whose copy of the file is BLOB. */
+        Suspect(ObjectId blob) {
+            _blob = blob;
+        }
+
+        /** Adds line LINE of this version, standing for line TARGET. */
+        void add(int target, int line) {
+            _targets.add(target);
+            _lines.add(line);
+        }
+    }
+
+    /** Commit hash owning each line of the blamed file. */
+    private String[] _owners;
+    /** Number of lines of the blamed file not yet attributed. */
+    private int _remaining;
+    /** Commits to examine, in the order they were first reached. */
+    private LinkedHashMap<String, Suspect> _queue = new LinkedHashMap<>();
+    /** Lines of each blob read so far. */
+    private HashMap<ObjectId, String[]> _blobLines = new HashMap<>();
+
+    /**
+     * Returns the hash of the commit that introduced each line of PATH as
+     * tracked by commit HASH.
+     */
+    static String[] annotate(String hash, String path) {
+        TinyGitFile cached = cacheFile(hash, path);
+        if (cached.isFile()) {
+            return Utils.readObject(cached, String[].class);
+        }
+        Commit c = Commit.loadCommit(hash);
+        ObjectId blob = c.getTracked().get(path);
+        if (blob == null) {
+            throw Utils.error("File does not exist in that commit.");
+        }
+        String[] owners = new Blame().run(hash, blob, path);
+        cached.getParentFile().mkdirs();
+        Utils.writeObject(cached, owners);
+        return owners;
+    }
+
+    /**
+     * Returns the lines of BLOB.
+     */
+    private String[] linesOf(ObjectId blob) {
+        String[] result = _blobLines.get(blob);
+        if (result == null) {
+            result = Diff.lines(
+                new String(ObjectStore.readBlob(blob), StandardCharsets.UTF_8));
+            _blobLines.put(blob, result);
+        }
+        return result;
+    }
+
+    /**
+     * Attributes every line of BLOB, the version of PATH in commit HASH.
+     */
+    private String[] run(String hash, ObjectId blob, String path) {
+        int size = linesOf(blob).length;
+        _owners = new String[size];
+        _remaining = size;
+        Suspect start = new Suspect(blob);
+        for (int i = 0; i < size; i += 1) {
+            start.add(i, i);
+        }
+        _queue.put(hash, start);
+
+        while (_remaining > 0 && !_queue.isEmpty()) {
+            Iterator<Map.Entry<String, Suspect>> first =
+                _queue.entrySet().iterator();
+            Map.Entry<String, Suspect> next = first.next();
+            first.remove();
+            examine(next.getKey(), next.getValue(), path);
+        }
+        return _owners;
+    }
+
+    /**
+     * Passes the lines of SUSPECT, in commit HASH, to whichever parents
+     * still contain them, and attributes the rest to HASH.
+     */
+    private void examine(String hash, Suspect suspect, String path) {
+        TinyGitFile cached = cacheFile(hash, path);
+        if (cached.isFile()) {
+            String[] owners = Utils.readObject(cached, String[].class);
+            for (int i = 0; i < suspect._targets.size(); i += 1) {
+                settle(suspect._targets.get(i), owners[suspect._lines.get(i)]);
+            }
+            return;
+        }
+
+        CommitGraph.Entry entry = CommitGraph.entry(hash);
+        if (!entry.mightChange(path)
+            && !Commit.isRootParent(entry.getParent())) {
+            passAll(entry.getParent(), suspect);
+            return;
+        }
+
+        int[] unexplained = new int[suspect._targets.size()];
+        for (int i = 0; i < unexplained.length; i += 1) {
+            unexplained[i] = suspect._lines.get(i);
+        }
+        for (String parent : Arrays.asList(entry.getParent(),
+                                           entry.getOtherParent())) {
+            if (parent == null || Commit.isRootParent(parent)) {
+                continue;
+            }
+            ObjectId parentBlob = Commit.loadCommit(parent).getTracked().get(path);
+            if (parentBlob == null) {
+                continue;
+            }
+            if (parentBlob.equals(suspect._blob)) {
+                passAll(parent, suspect);
+                return;
+            }
+            int[] matches = Diff.match(linesOf(suspect._blob),
+                                       linesOf(parentBlob));
+            Suspect passed = null;
+            for (int i = 0; i < unexplained.length; i += 1) {
+                if (unexplained[i] >= 0 && matches[unexplained[i]] >= 0) {
+                    if (passed == null) {
+                        passed = enqueue(parent, parentBlob);
+                    }
+                    passed.add(suspect._targets.get(i),
+                               matches[unexplained[i]]);
+                    unexplained[i] = -1;
+                }
+            }
+        }
+        for (int i = 0; i < unexplained.length; i += 1) {
+            if (unexplained[i] >= 0) {
+                settle(suspect._targets.get(i), hash);
+            }
+        }
+    }
+
+    /**
+     * Passes every line of SUSPECT, unchanged, to PARENT.
+     */
+    private void passAll(String parent, Suspect suspect) {
+        Suspect passed = enqueue(parent, suspect._blob);
+        for (int i = 0; i < suspect._targets.size(); i += 1) {
+            passed.add(suspect._targets.get(i), suspect._lines.get(i));
+        }
+    }
+
+    /**
+     * Returns the queued suspect for commit HASH, whose version of the
+     * file is BLOB, queuing it first if needed.
+     */
+    private Suspect enqueue(String hash, ObjectId blob) {
+        Suspect result = _queue.get(hash);
+        if (result == null) {
+            result = new Suspect(blob);
+            _queue.put(hash, result);
+        }
+        return result;
+    }
+
+    /**
+     * Records that line TARGET of the blamed file was introduced by
+     * commit OWNER.
+     */
+    private void settle(int target, String owner) {
+        if (_owners[target] == null) {
+            _owners[target] = owner;
+            _remaining -= 1;
+        }
+    }
+
+    /**
+     * Returns the cache file for the blame of PATH in commit HASH.
+     */
+    private static TinyGitFile cacheFile(String hash, String path) {
+        return ObjectStore.blameFile(Utils.hash(hash, path));
+    }
+}
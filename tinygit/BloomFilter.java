@@ -0,0 +1,86 @@
+package tinygit;
+
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+
+/**
+ * A fixed-size Bloom filter over file names. A negative answer from
+ * mightContain is exact; a positive answer may be a false positive.
+ *
+ * @author Michael Remediakis
+ */
+class BloomFilter implements Serializable {
+
+    /** Fixed so that cached graph entries survive changes to this class. */
+    private static final long serialVersionUID = -5910631448973889669L;
+
+    /** Bits allotted per inserted name. */
+    static final int BITS_PER_ENTRY = 10;
+
+    /** Number of bit positions set per name. */
+    static final int NUM_HASHES = 7;
+
+    /** Smallest filter size, in 64-bit words. */
+    static final int MIN_WORDS = 1;
+
+    /** The filter bits. */
+    private long[] _bits;
+
+    /**
+     * Creates a filter sized for, and containing, every name in NAMES.
+     */
+    BloomFilter(Collection<String> names) {
+        int words = Math.max(MIN_WORDS,
+            (names.size() * BITS_PER_ENTRY + Long.SIZE - 1) / Long.SIZE);
+        _bits = new long[words];
+        for (String name : names) {
+            add(name);
+        }
+    }
+
+    /**
+     * Adds NAME to the filter.
+     */
+    void add(String name) {
+        long h1 = hash(name, 0x9747b28c);
+        long h2 = hash(name, 0x5bd1e995);
+        long numBits = (long) _bits.length * Long.SIZE;
+        for (int i = 0; i < NUM_HASHES; i += 1) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            _bits[(int) (bit >>> 6)] |= 1L << bit;
+        }
+    }
+
+    /**
+     * Returns false if NAME was definitely never added to the filter.
+     */
+    boolean mightContain(String name) {
+        long h1 = hash(name, 0x9747b28c);
+        long h2 = hash(name, 0x5bd1e995);
+        long numBits = (long) _bits.length * Long.SIZE;
+        for (int i = 0; i < NUM_HASHES; i += 1) {
+            long bit = Math.floorMod(h1 + i * h2, numBits);
+            if ((_bits[(int) (bit >>> 6)] & (1L << bit)) == 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns a 32-bit FNV-1a style hash of the UTF-8 bytes of NAME mixed
+     * with SEED.
+     */
+    private static long hash(String name, int seed) {
+        int h = 0x811c9dc5 ^ seed;
+        for (byte b : name.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xff;
+            h *= 0x01000193;
+        }
+        h ^= h >>> 16;
+        h *= 0x85ebca6b;
+        h ^= h >>> 13;
+        return h & 0xffffffffL;
+    }
+}
@@ -0,0 +1,247 @@
+package tinygit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Single-file transfer of part of a repository. A bundle starts with a
+ * text header:
+ *
+ *     # tinygit bundle v1
+ *     @format FORMAT
+ *     -BASE          (one line per prerequisite commit)
+ *     COMMIT REF     (one line per ref)
+ *     (a blank line)
+ *
+ * followed by a deflated Pack: a stream of object records, each a type
+ * byte, the object id, a length and the object's stored bytes, ended by a
+ * zero type byte. The records hold the commits reachable from the refs
+ * but not from the prerequisites, and the blobs of those commits that no
+ * prerequisite commit has. Both ends stream the file, so a bundle is
+ * never held in memory.
+ *
+ * @author Michael Remediakis
+ */
+class Bundle {
+
+    /** The first line of every bundle. */
+    static final String SIGNATURE = "# tinygit bundle v1";
+
+    /** Size of the file buffers. */
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    /** Largest number of object writes queued while fetching. */
+    private static final int MAX_PENDING = 256;
+
+    /**
+     * Writes to FILE a bundle of REFS (names mapped to commit ids) that
+     * leaves out everything reachable from the commits BASES.
+     */
+    static void create(TinyGitFile file, Map<String, String> refs,
+                       List<String> bases) {
+        Set<String> excluded = reachable(bases, new HashSet<>());
+        Set<String> commits = reachable(refs.values(), excluded);
+        if (commits.isEmpty()) {
+            throw Utils.error("Refusing to create an empty bundle.");
+        }
+        Set<String> baseBlobs = new HashSet<>();
+        for (String hash : excluded) {
+            for (ObjectId id : Commit.loadCommit(hash).getTracked().values()) {
+                baseBlobs.add(id.toString());
+            }
+        }
+
+        try (OutputStream raw = new BufferedOutputStream(
+                 Files.newOutputStream(file.toPath()), BUFFER_SIZE)) {
+            StringBuilder header = new StringBuilder();
+            header.append(SIGNATURE).append('\n');
+            header.append("@format ").append(ObjectFormat.current())
+                .append('\n');
+            for (String base : bases) {
+                header.append('-').append(base).append('\n');
+            }
+            for (Map.Entry<String, String> ref : refs.entrySet()) {
+                header.append(ref.getValue()).append(' ')
+                    .append(ref.getKey()).append('\n');
+            }
+            header.append('\n');
+            raw.write(header.toString().getBytes(StandardCharsets.UTF_8));
+
+            DeflaterOutputStream deflater = new DeflaterOutputStream(raw,
+                new Deflater(Deflater.BEST_SPEED), BUFFER_SIZE);
+            DataOutputStream out = new DataOutputStream(deflater);
+            Pack pack = new Pack(ObjectStore.ROOT, ObjectFormat.current());
+            Set<String> written = new HashSet<>(baseBlobs);
+            for (String hash : commits) {
+                Promisor.prefetch(
+                    Commit.loadCommit(hash).getTracked().values());
+                pack.writeCommit(out, hash, written);
+            }
+            out.writeByte(Pack.END);
+            deflater.finish();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Reads the bundle in FILE into the local repository, and returns its
+     * refs, names mapped to commit ids. The file is read sequentially
+     * while its blobs are written in parallel. Chunk lists and commits
+     * are held back until every blob is written, and then written in
+     * that order, so that none is stored before the objects it names.
+     */
+    static Map<String, String> fetch(TinyGitFile file) {
+        Map<String, String> refs = new LinkedHashMap<>();
+        ExecutorService pool = Executors.newFixedThreadPool(
+            Runtime.getRuntime().availableProcessors());
+        try (InputStream raw = new BufferedInputStream(
+                 Files.newInputStream(file.toPath()), BUFFER_SIZE)) {
+            readHeader(raw, refs);
+            DataInputStream in = new DataInputStream(
+                new InflaterInputStream(raw));
+            ArrayDeque<Future<?>> pending = new ArrayDeque<>();
+            List<Runnable> manifests = new ArrayList<>();
+            List<Runnable> commits = new ArrayList<>();
+            Pack pack = new Pack(ObjectStore.ROOT, ObjectFormat.current());
+            long max = Pack.maxRecord();
+            for (byte next = in.readByte(); next != Pack.END;
+                 next = in.readByte()) {
+                byte type = next;
+                String hash = in.readUTF();
+                byte[] contents = Pack.readContents(in, max);
+                Runnable store = () -> pack.store(type, hash, contents);
+                if (type == Pack.MANIFEST) {
+                    manifests.add(store);
+                } else if (type != Pack.BLOB) {
+                    commits.add(store);
+                } else {
+                    pending.add(pool.submit(store));
+                    if (pending.size() > MAX_PENDING) {
+                        pending.remove().get();
+                    }
+                }
+            }
+            while (!pending.isEmpty()) {
+                pending.remove().get();
+            }
+            manifests.forEach(Runnable::run);
+            commits.forEach(Runnable::run);
+        } catch (EOFException excp) {
+            throw Utils.error("Bundle is truncated.");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Bundle fetch interrupted.");
+        } catch (ExecutionException excp) {
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalArgumentException(excp.getCause());
+        } finally {
+            pool.shutdownNow();
+        }
+        return refs;
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the commits reachable from TIPS that are not in EXCLUDED,
+     * newest first.
+     */
+    private static Set<String> reachable(Collection<String> tips,
+                                         Set<String> excluded) {
+        Set<String> result = new LinkedHashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>(tips);
+        while (!queue.isEmpty()) {
+            String hash = queue.remove();
+            if (Commit.isRootParent(hash)
+                || excluded.contains(hash) || !result.add(hash)) {
+                continue;
+            }
+            Commit c = Commit.loadCommit(hash);
+            queue.add(c.getParentHash());
+            if (c.getOtherParentHash() != null) {
+                queue.add(c.getOtherParentHash());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Reads the header of a bundle from IN, checking that the local
+     * repository can take it, and puts its refs into REFS.
+     */
+    private static void readHeader(InputStream in, Map<String, String> refs)
+        throws IOException {
+        if (!SIGNATURE.equals(readLine(in))) {
+            throw Utils.error("Not a tinygit bundle.");
+        }
+        for (String line = readLine(in); !line.isEmpty();
+             line = readLine(in)) {
+            if (line.startsWith("@format ")) {
+                ObjectFormat format = ObjectFormat.named(line.substring(8));
+                if (format != ObjectFormat.current()) {
+                    throw Utils.error("Bundle uses the %s object format,"
+                        + " not %s.", format, ObjectFormat.current());
+                }
+            } else if (line.startsWith("-")) {
+                String base = line.substring(1);
+                if (!ObjectStore.commitFile(base).isFile()) {
+                    throw Utils.error("Repository lacks the prerequisite"
+                        + " commit %s.", base);
+                }
+            } else {
+                String[] fields = line.split(" ", 2);
+                if (fields.length != 2) {
+                    throw Utils.error("Malformed bundle header.");
+                }
+                refs.put(fields[1], fields[0]);
+            }
+        }
+    }
+
+    /**
+     * Returns the next newline-terminated line of IN, without the
+     * newline. Reads no further than the newline.
+     */
+    private static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        for (int c = in.read(); c != '\n'; c = in.read()) {
+            if (c < 0) {
+                throw new EOFException();
+            }
+            line.write(c);
+        }
+        return new String(line.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
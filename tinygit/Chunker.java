@@ -0,0 +1,127 @@
+package tinygit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * Splits a stream into content-defined chunks with FastCDC. A cut point
+ * is placed where a gear rolling hash of the last bytes matches a mask,
+ * so an edit only moves the cut points near it and the chunks elsewhere
+ * in a large file keep their ids. Following FastCDC's normalized
+ * chunking, a harder mask is used before the average size and an easier
+ * one after it, which keeps chunk sizes close to the average.
+ *
+ * @author Michael Remediakis
+ */
+class Chunker {
+
+    /** The smallest chunk, except for the last one. */
+    static final int MIN_SIZE = 1 << 14;
+
+    /** The average chunk size aimed for. */
+    static final int AVERAGE_SIZE = 1 << 16;
+
+    /** The largest chunk. */
+    static final int MAX_SIZE = 1 << 18;
+
+    /** The mask used before AVERAGE_SIZE, two bits harder than the
+     *  average. The rolling hash shifts left, so its top bits depend on
+     *  the most bytes. */
+    private static final long MASK_SMALL = -1L << (64 - 18);
+
+    /** The mask used after AVERAGE_SIZE, two bits easier than the
+     *  average. */
+    private static final long MASK_LARGE = -1L << (64 - 14);
+
+    /** Random values mixed into the rolling hash, one per byte value.
+     *  Fixed so that every repository cuts identical content alike. */
+    private static final long[] GEAR = new long[256];
+
+    static {
+        Random random = new Random(0x6c62272e07bb0142L);
+        for (int i = 0; i < GEAR.length; i += 1) {
+            GEAR[i] = random.nextLong();
+        }
+    }
+
+    /** The stream being chunked. */
+    private InputStream _in;
+    /** Bytes read from the stream but not yet returned. */
+    private byte[] _buffer = new byte[MAX_SIZE];
+    /** Index in _buffer of the first byte not yet returned. */
+    private int _start;
+    /** Index in _buffer just past the last byte read. */
+    private int _end;
+    /** Whether the stream is exhausted. */
+    private boolean _eof;
+
+    /**
+     * A chunker reading from IN.
+     */
+    Chunker(InputStream in) {
+        _in = in;
+    }
+
+    /**
+     * Returns the next chunk of the stream, or null at its end.
+     */
+    byte[] next() throws IOException {
+        fill();
+        if (_start == _end) {
+            return null;
+        }
+        int length = cut(_buffer, _start, _end - _start);
+        byte[] result = Arrays.copyOfRange(_buffer, _start, _start + length);
+        _start += length;
+        return result;
+    }
+
+    /**
+     * Returns the length of the chunk starting at BYTES[START], where
+     * AVAILABLE bytes are buffered.
+     */
+    static int cut(byte[] bytes, int start, int available) {
+        if (available <= MIN_SIZE) {
+            return available;
+        }
+        int limit = Math.min(available, MAX_SIZE);
+        int normal = Math.min(limit, AVERAGE_SIZE);
+        long hash = 0;
+        int i = MIN_SIZE;
+        for (; i < normal; i += 1) {
+            hash = (hash << 1) + GEAR[bytes[start + i] & 0xff];
+            if ((hash & MASK_SMALL) == 0) {
+                return i + 1;
+            }
+        }
+        for (; i < limit; i += 1) {
+            hash = (hash << 1) + GEAR[bytes[start + i] & 0xff];
+            if ((hash & MASK_LARGE) == 0) {
+                return i + 1;
+            }
+        }
+        return limit;
+    }
+
+    /**
+     * Moves the unreturned bytes to the front of the buffer and tops it up
+     * from the stream.
+     */
+    private void fill() throws IOException {
+        if (_start > 0) {
+            System.arraycopy(_buffer, _start, _buffer, 0, _end - _start);
+            _end -= _start;
+            _start = 0;
+        }
+        while (!_eof && _end < _buffer.length) {
+            int read = _in.read(_buffer, _end, _buffer.length - _end);
+            if (read < 0) {
+                _eof = true;
+            } else {
+                _end += read;
+            }
+        }
+    }
+}
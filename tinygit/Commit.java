@@ -1,11 +1,20 @@
 package tinygit;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
 
 /**
  * This is a class to represent a commit.
@@ -14,6 +23,14 @@ import java.util.List;
  */
 public class Commit implements Serializable {
 
+    /**
+     * Fixed so that commits written before ObjectId still load.
+     */
+    private static final long serialVersionUID = 968752518072513564L;
+
+    /** The tag opening a commit's encoding. */
+    private static final String ENCODING = "commit";
+
     /**
      * The time the commit was made.
      */
@@ -34,15 +51,25 @@ public class Commit implements Serializable {
     /**
      * A map to all of the tracked files of this commit.
      */
-    private HashMap<String, String> _tracked;
+    private HashMap<String, ObjectId> _tracked;
     /**
      * A map to all of the staged file for the next commit.
      */
-    private HashMap<String, String> _staged;
+    private HashMap<String, ObjectId> _staged;
     /**
      * A map to all of the files that are about to be removed in the next commit.
      */
     private ArrayList<String> _untracked;
+    /**
+     * Whether this commit's id is the hash of its encoding; false for
+     * commits written before commits were named that way.
+     */
+    private boolean _encoded;
+    /**
+     * Whether this commit is a stash rather than one of the user's. Like
+     * the stage, it is not part of the encoding.
+     */
+    private boolean _stash;
 
     /**
      * Initializes a new commit with the given MESSAGE, TIME of commit, and a
@@ -58,6 +85,7 @@ public class Commit implements Serializable {
         _staged = new HashMap<>();
         _tracked = new HashMap<>();
         _untracked = new ArrayList<>();
+        _encoded = true;
 
         Commit parentCommit = getParent();
         if (parentCommit != null) {
@@ -75,6 +103,25 @@ public class Commit implements Serializable {
         _otherParentReference = otherParent;
     }
 
+    /**
+     * Initializes a snapshot with the given MESSAGE and TIME, a child of
+     * PARENT tracking the files TRACKED, with copies of STAGED and
+     * UNTRACKED as its stage. Unlike a commit, a snapshot is built from
+     * files already stored rather than from its parent's stage, and may
+     * record no changes.
+     */
+    Commit(String message, Date time, String parent,
+           Map<String, ObjectId> tracked, Map<String, ObjectId> staged,
+           List<String> untracked) {
+        _time = time;
+        _message = message;
+        _parentReference = parent;
+        _tracked = new HashMap<>(tracked);
+        _staged = new HashMap<>(staged);
+        _untracked = new ArrayList<>(untracked);
+        _encoded = true;
+    }
+
     /**
      * Tracks any files tracked/staged from the PARENT commit and removes any files
      * marked to be removed.
@@ -94,7 +141,8 @@ public class Commit implements Serializable {
     }
 
     /**
-     * Adds the given FILENAME to the stage for the next commit.
+     * Adds the given FILENAME to the stage for the next commit. Files of
+     * at least the configured chunk threshold are stored as chunks.
      */
     public void addToStage(String fileName) {
         TinyGitFile file = new TinyGitFile(fileName);
@@ -105,17 +153,25 @@ public class Commit implements Serializable {
             _untracked.remove(fileName);
             return;
         }
-        String content = Utils.readContentsAsString(file);
-        String hash = Utils.sha1(content);
+        ObjectId hash = store(file);
         _staged.put(fileName, hash);
-        if (!hash.equals(_tracked.get(fileName))) {
-            TinyGitFile newFile = new TinyGitFile(".tinygit/" + hash);
-            Utils.writeContents(newFile, content);
-        } else {
+        if (hash.equals(_tracked.get(fileName))) {
             _staged.remove(fileName);
         }
     }
 
+    /**
+     * Stores the contents of FILE in the local repository unless a blob
+     * with the same id is there already, and returns that id. Files of at
+     * least the configured chunk threshold are stored as chunks.
+     */
+    static ObjectId store(TinyGitFile file) {
+        if (file.length() >= Config.chunkThreshold()) {
+            return ObjectStore.writeChunked(ObjectStore.ROOT, file);
+        }
+        return ObjectStore.writeBlob(ObjectStore.ROOT, file);
+    }
+
     /**
      * Removes the given FILENAME from the stage and if it is currently being
      * tracked by the commit, marks it to be untracked in the next commit.
@@ -142,49 +198,79 @@ public class Commit implements Serializable {
      * Stores the commit into the given FILENAME.
      */
     public void storeCommit(String fileName) {
-        TinyGitFile file = new TinyGitFile(".tinygit/Commit/" + fileName);
-        Utils.writeObject(file, this);
+        ObjectStore.writeCommit(ObjectStore.ROOT, fileName, this);
     }
 
     /**
-     * Returns the commit from the given FILENAME.
+     * Returns the commit from the given FILENAME, or null if FILENAME is
+     * the null parent of an initial commit or a parent cut off by a
+     * shallow fetch.
      */
     public static Commit loadCommit(String fileName) {
-        if (fileName.equals(Utils.sha1(Utils.serialize(null)))) {
+        if (fileName.equals(Utils.hash(Utils.serialize(null)))) {
             return null;
         }
         TinyGitFile file = null;
         boolean exists = false;
-        if (fileName.length() < Utils.UID_LENGTH) {
-            List<String> commits = Utils.plainFilenamesIn(".tinygit/Commit");
+        if (fileName.length() < ObjectFormat.current().hexLength()) {
+            List<String> commits = ObjectStore.commitIdsWithPrefix(fileName);
             for (String commitName : commits) {
-                if (commitName.startsWith(fileName)) {
-                    file = new TinyGitFile(".tinygit/Commit/" + commitName);
-                    exists = true;
-                }
+                file = ObjectStore.commitFile(commitName);
+                exists = true;
             }
 
         } else {
-            file = new TinyGitFile(".tinygit/Commit/" + fileName);
+            file = ObjectStore.commitFile(fileName);
             exists = file.exists();
         }
         if (!exists) {
+            if (Shallow.isCut(fileName)) {
+                return null;
+            }
+            String tagged = Tag.resolve(ObjectStore.ROOT, fileName);
+            if (tagged != null && !tagged.equals(fileName)) {
+                return loadCommit(tagged);
+            }
             throw Utils.error("No commit with that id exists.");
         }
         return Utils.readObject(file, Commit.class);
     }
 
+    /**
+     * Returns whether the parent reference HASH leads to no commit: it is
+     * either the null parent of an initial commit or a parent cut off by
+     * a shallow fetch.
+     */
+    public static boolean isRootParent(String hash) {
+        return hash.equals(Utils.hash(Utils.serialize(null)))
+            || Shallow.isCut(hash);
+    }
+
     /**
      * Prints out the log of the commit, with the given HASH of the commit.
      *
      * @param hash
      */
     public void log(String hash) {
-        System.out.println("commit " + hash);
+        log(hash, null);
+    }
+
+    /**
+     * Prints out the log of the commit, with the given HASH of the commit,
+     * followed on its first line by DECORATION, the names of the refs
+     * pointing at it, unless that is null.
+     */
+    public void log(String hash, String decoration) {
+        if (decoration == null) {
+            System.out.println("commit " + hash);
+        } else {
+            System.out.println("commit " + hash + " (" + decoration + ")");
+        }
 
         if (_otherParentReference != null) {
-            System.out.println(
-                    "Merge: " + _parentReference.substring(0, 7) + " " + _otherParentReference.substring(0, 7));
+            ObjectFormat format = ObjectFormat.current();
+            System.out.println("Merge: " + format.abbreviate(_parentReference)
+                + " " + format.abbreviate(_otherParentReference));
         }
 
         SimpleDateFormat formatter = new SimpleDateFormat("EEE MMM d HH:mm:ss yyyy Z");
@@ -207,6 +293,14 @@ public class Commit implements Serializable {
         return _parentReference;
     }
 
+    /**
+     * Returns the hash of the other parent of a merge commit, or null if
+     * this commit has a single parent.
+     */
+    public String getOtherParentHash() {
+        return _otherParentReference;
+    }
+
     /**
      * Returns the message of the commit.
      */
@@ -214,17 +308,24 @@ public class Commit implements Serializable {
         return _message;
     }
 
+    /**
+     * Returns the time the commit was made.
+     */
+    public Date getTime() {
+        return _time;
+    }
+
     /**
      * Returns a map to all the tracked files of the commit.
      */
-    public HashMap<String, String> getTracked() {
+    public HashMap<String, ObjectId> getTracked() {
         return _tracked;
     }
 
     /**
      * Returns a map of all the files staged for the next commit.
      */
-    public HashMap<String, String> getStaged() {
+    public HashMap<String, ObjectId> getStaged() {
         return _staged;
     }
 
@@ -234,4 +335,141 @@ public class Commit implements Serializable {
     public ArrayList<String> getUntracked() {
         return _untracked;
     }
+
+    /**
+     * Marks this commit as a stash, kept out of listings of commits.
+     */
+    void markStash() {
+        _stash = true;
+    }
+
+    /**
+     * Returns whether this commit is a stash.
+     */
+    boolean isStash() {
+        return _stash;
+    }
+
+    /**
+     * Returns whether this commit's id is the hash of its encoding, as
+     * for every commit made since commits were named that way. The ids
+     * of older commits hashed their Java serialization, which cannot be
+     * reproduced once read back, so they cannot be checked.
+     */
+    boolean isEncoded() {
+        return _encoded;
+    }
+
+    /**
+     * Returns this commit's id in FORMAT, the hash of its encoding.
+     */
+    String id(ObjectFormat format) {
+        return ObjectId.of(format.digest().digest(encode())).toString();
+    }
+
+    /**
+     * Returns this commit's id in the current object format.
+     */
+    String id() {
+        return id(ObjectFormat.current());
+    }
+
+    /**
+     * Returns the encoding of this commit that its id hashes: its
+     * parents, time and message, then its tracked files in order of
+     * path. Its stage is left out, as it changes after the commit is
+     * made.
+     */
+    byte[] encode() {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeUTF(ENCODING);
+            out.writeUTF(_parentReference);
+            out.writeUTF(_otherParentReference == null
+                ? "" : _otherParentReference);
+            out.writeLong(_time.getTime());
+            byte[] message = _message.getBytes(StandardCharsets.UTF_8);
+            out.writeInt(message.length);
+            out.write(message);
+            out.writeInt(_tracked.size());
+            for (Map.Entry<String, ObjectId> file
+                     : new TreeMap<>(_tracked).entrySet()) {
+                out.writeUTF(file.getKey());
+                file.getValue().writeTo(out);
+            }
+            out.flush();
+            return bytes.toByteArray();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the commit whose encoding is ENCODED, with its ids in
+     * FORMAT and an empty stage. Throws IllegalArgumentException if
+     * ENCODED is not such an encoding.
+     */
+    static Commit decode(byte[] encoded, ObjectFormat format) {
+        try {
+            DataInputStream in =
+                new DataInputStream(new ByteArrayInputStream(encoded));
+            if (!in.readUTF().equals(ENCODING)) {
+                throw new IllegalArgumentException("Not a commit.");
+            }
+            String parent = in.readUTF();
+            String otherParent = in.readUTF();
+            Date time = new Date(in.readLong());
+            int length = in.readInt();
+            if (length < 0 || length > in.available()) {
+                throw new IllegalArgumentException("Bad message length.");
+            }
+            byte[] message = new byte[length];
+            in.readFully(message);
+            HashMap<String, ObjectId> tracked = new HashMap<>();
+            for (int count = in.readInt(); count > 0; count -= 1) {
+                String file = in.readUTF();
+                byte[] id = new byte[format.hexLength() / 2];
+                in.readFully(id);
+                tracked.put(file, ObjectId.of(id));
+            }
+            if (in.available() != 0 || !format.isId(parent)
+                || !otherParent.isEmpty() && !format.isId(otherParent)) {
+                throw new IllegalArgumentException("Bad commit.");
+            }
+            Commit result = new Commit(
+                new String(message, StandardCharsets.UTF_8), time, parent,
+                tracked, new HashMap<>(), new ArrayList<>());
+            if (!otherParent.isEmpty()) {
+                result._otherParentReference = otherParent;
+            }
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Reads this commit from IN, converting the hex blob ids written by
+     * older versions to ObjectIds.
+     */
+    private void readObject(ObjectInputStream in)
+        throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        upgradeIds(_tracked);
+        upgradeIds(_staged);
+    }
+
+    /**
+     * Replaces any hex String values of IDS by their ObjectIds.
+     */
+    @SuppressWarnings("unchecked")
+    private static void upgradeIds(HashMap<String, ?> ids) {
+        for (Map.Entry<String, Object> entry
+                 : ((HashMap<String, Object>) ids).entrySet()) {
+            if (entry.getValue() instanceof String) {
+                entry.setValue(ObjectId.fromHex((String) entry.getValue()));
+            }
+        }
+    }
 }
@@ -0,0 +1,153 @@
+package tinygit;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A per-commit index of parent links and changed paths, stored under
+ * .tinygit/graph. Walking history through the graph avoids deserializing
+ * every commit along the way.
+ *
+ * @author Michael Remediakis
+ */
+class CommitGraph {
+
+    /**
+     * Commits changing more paths than this get no filter, and so are
+     * always treated as candidates.
+     */
+    static final int MAX_CHANGED_PATHS = 512;
+
+    /**
+     * A single graph entry: the parents of a commit and a filter over the
+     * paths it changed relative to its first parent.
+     */
+    static class Entry implements Serializable {
+
+        /** Fixed so that cached entries survive changes to this class. */
+        private static final long serialVersionUID = -4613528237765848460L;
+
+        /** Hash of the first parent. */
+        private String _parent;
+        /** Hash of the other parent of a merge, or null. */
+        private String _otherParent;
+        /** Filter over changed paths, or null if too many changed. */
+        private BloomFilter _changed;
+
+        /**
+         * An entry with the given PARENT, OTHERPARENT and CHANGED filter.
+         */
+        Entry(String parent, String otherParent, BloomFilter changed) {
+            _parent = parent;
+            _otherParent = otherParent;
+            _changed = changed;
+        }
+
+        /**
+         * Returns the hash of the first parent.
+         */
+        String getParent() {
+            return _parent;
+        }
+
+        /**
+         * Returns the hash of the other parent of a merge, or null.
+         */
+        String getOtherParent() {
+            return _otherParent;
+        }
+
+        /**
+         * Returns false if this commit definitely did not change PATH.
+         */
+        boolean mightChange(String path) {
+            return _changed == null || _changed.mightContain(path);
+        }
+    }
+
+    /**
+     * Returns the graph entry of commit HASH, computing and storing it
+     * first if this commit has not been indexed yet (e.g. it was fetched
+     * or predates the graph).
+     */
+    static Entry entry(String hash) {
+        TinyGitFile file = ObjectStore.graphFile(hash);
+        if (file.isFile()) {
+            return Utils.readObject(file, Entry.class);
+        }
+        return record(hash, Commit.loadCommit(hash));
+    }
+
+    /**
+     * Returns the hashes of the commits reachable from commit HASH, itself
+     * included, read from the graph rather than from the commits.
+     */
+    static Set<String> ancestors(String hash) {
+        Set<String> result = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(hash);
+        while (!queue.isEmpty()) {
+            String next = queue.remove();
+            if (Commit.isRootParent(next) || !result.add(next)) {
+                continue;
+            }
+            Entry entry = entry(next);
+            queue.add(entry.getParent());
+            if (entry.getOtherParent() != null) {
+                queue.add(entry.getOtherParent());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Indexes commit C, whose hash is HASH, and returns its entry.
+     */
+    static Entry record(String hash, Commit c) {
+        Commit parent = c.getParent();
+        return record(hash, c,
+            parent == null ? new HashMap<>() : parent.getTracked());
+    }
+
+    /**
+     * Indexes commit C, whose hash is HASH and whose first parent tracks
+     * the files BEFORE, and returns its entry.
+     */
+    static Entry record(String hash, Commit c, Map<String, ObjectId> before) {
+        Set<String> changed = changedPaths(before, c.getTracked());
+        BloomFilter filter = null;
+        if (changed.size() <= MAX_CHANGED_PATHS) {
+            filter = new BloomFilter(changed);
+        }
+        Entry result = new Entry(c.getParentHash(),
+            c.getOtherParentHash(), filter);
+        TinyGitFile file = ObjectStore.graphFile(hash);
+        file.getParentFile().mkdirs();
+        Utils.writeObject(file, result);
+        return result;
+    }
+
+    /**
+     * Returns the paths added, removed or modified going from BEFORE to
+     * AFTER.
+     */
+    static Set<String> changedPaths(Map<String, ObjectId> before,
+                                    Map<String, ObjectId> after) {
+        Set<String> changed = new HashSet<>();
+        for (Map.Entry<String, ObjectId> e : after.entrySet()) {
+            if (!e.getValue().equals(before.get(e.getKey()))) {
+                changed.add(e.getKey());
+            }
+        }
+        for (String path : before.keySet()) {
+            if (!after.containsKey(path)) {
+                changed.add(path);
+            }
+        }
+        return changed;
+    }
+}
@@ -0,0 +1,124 @@
+package tinygit;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Properties;
+
+/**
+ * Settings of a repository, kept as a properties file in
+ * .tinygit/config. Unset keys take their defaults.
+ *
+ * @author Michael Remediakis
+ */
+class Config {
+
+    /** The file under a repository root holding its settings. */
+    static final String FILE = "config";
+
+    /** Size in bytes from which a staged file is stored as chunks. */
+    static final String CHUNK_THRESHOLD = "chunk.threshold";
+
+    /** Default value of CHUNK_THRESHOLD. */
+    static final long DEFAULT_CHUNK_THRESHOLD = 1 << 22;
+
+    /**
+     * The most path/id pairs an operation sorts in memory at once; larger
+     * trees and listings are sorted through runs on disk.
+     */
+    static final String MEMORY_BUDGET = "memory.budget";
+
+    /** Default value of MEMORY_BUDGET. */
+    static final long DEFAULT_MEMORY_BUDGET = 1 << 18;
+
+    /** The most object-store tasks of a batch run at once. */
+    static final String IO_THREADS = "io.threads";
+
+    /** Default value of IO_THREADS. */
+    static final long DEFAULT_IO_THREADS = 16;
+
+    /**
+     * Returns the value of KEY in the local repository, or null if unset.
+     */
+    static String get(String key) {
+        return load().getProperty(key);
+    }
+
+    /**
+     * Returns the value of KEY in the local repository as a number, or
+     * DEFAULTVALUE if unset.
+     */
+    static long getLong(String key, long defaultValue) {
+        String value = get(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Long.parseLong(value.trim());
+        } catch (NumberFormatException excp) {
+            throw Utils.error("Bad value for %s: %s.", key, value);
+        }
+    }
+
+    /**
+     * Sets KEY to VALUE in the local repository.
+     */
+    static void set(String key, String value) {
+        Properties properties = load();
+        properties.setProperty(key, value);
+        try (OutputStream out = Files.newOutputStream(file().toPath())) {
+            properties.store(out, null);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the size from which staged files are chunked.
+     */
+    static long chunkThreshold() {
+        return getLong(CHUNK_THRESHOLD, DEFAULT_CHUNK_THRESHOLD);
+    }
+
+    /**
+     * Returns the most path/id pairs sorted in memory at once.
+     */
+    static long memoryBudget() {
+        return getLong(MEMORY_BUDGET, DEFAULT_MEMORY_BUDGET);
+    }
+
+    /**
+     * Returns the most object-store tasks of a batch run at once.
+     */
+    static long ioThreads() {
+        return getLong(IO_THREADS, DEFAULT_IO_THREADS);
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the local repository's settings file.
+     */
+    private static TinyGitFile file() {
+        return new TinyGitFile(ObjectStore.ROOT + "/" + FILE);
+    }
+
+    /**
+     * Returns the local repository's settings.
+     */
+    private static Properties load() {
+        Properties result = new Properties();
+        TinyGitFile file = file();
+        if (file.isFile()) {
+            try (InputStream in = Files.newInputStream(file.toPath())) {
+                result.load(in);
+            } catch (IOException excp) {
+                throw new IllegalArgumentException(excp.getMessage());
+            }
+        }
+        return result;
+    }
+}
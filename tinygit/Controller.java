@@ -1,11 +1,16 @@
 package tinygit;
 
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Objects;
 import java.util.Set;
 import java.util.function.Consumer;
 
@@ -16,6 +21,11 @@ import java.util.function.Consumer;
  */
 public class Controller {
 
+    /**
+     * The init option that picks the repository's object format.
+     */
+    static final String OBJECT_FORMAT_OPTION = "--object-format=";
+
     /**
      * A map of commands available to the user.
      */
@@ -24,6 +34,10 @@ public class Controller {
      * The head commit of the current branch.
      */
     private Commit head;
+    /**
+     * The exit status the last command asks for.
+     */
+    private int exitStatus;
 
     /**
      * Initializes all available commands.
@@ -42,17 +56,36 @@ public class Controller {
         commands.put("rm-branch", this::removeBranch);
         commands.put("reset", this::reset);
         commands.put("merge", this::merge);
+        commands.put("cherry-pick", this::cherryPick);
+        commands.put("rebase", this::rebase);
         commands.put("add-remote", this::addRemote);
         commands.put("rm-remote", this::removeRemote);
         commands.put("push", this::push);
         commands.put("fetch", this::fetch);
         commands.put("pull", this::pull);
+        commands.put("blame", this::blame);
+        commands.put("config", this::config);
+        commands.put("sparse-checkout", this::sparseCheckout);
+        commands.put("bundle", this::bundle);
+        commands.put("fsmonitor", this::fsmonitor);
+        commands.put("pack-refs", this::packRefs);
+        commands.put("reflog", this::reflog);
+        commands.put("stash", this::stash);
+        commands.put("tag", this::tag);
+        commands.put("fsck", this::fsck);
+        commands.put("serve", this::serve);
     }
 
     /**
-     * Parses the COMMAND given by the user.
+     * Parses the COMMAND given by the user. A leading --trace prints a
+     * breakdown of where the command spent its time; tracing is turned
+     * back off once the command is done.
      */
     public void parseLine(String... command) throws TinyGitException {
+        boolean trace = command.length > 0 && command[0].equals("--trace");
+        if (trace) {
+            command = Arrays.copyOfRange(command, 1, command.length);
+        }
         if (command.length < 1) {
             throw Utils.error("Please enter a command.");
         }
@@ -62,49 +95,79 @@ public class Controller {
         }
 
         TinyGitFile gitlet = new TinyGitFile(".tinygit");
-        if (!command[0].equals("init") && !gitlet.exists()) {
+        boolean anywhere = command[0].equals("init")
+            || command[0].equals("serve");
+        if (!anywhere && !gitlet.exists()) {
             throw Utils.error("Not in an initialized Gitlet directory.");
         }
 
-        if (!command[0].equals("init")) {
-            head = getHead();
+        exitStatus = 0;
+        boolean traced = Trace.enabled();
+        if (trace) {
+            Trace.setEnabled(true);
         }
+        long start = Trace.start();
+        try {
+            if (!anywhere) {
+                ObjectFormat.use(ObjectFormat.read(ObjectStore.ROOT));
+                Shallow.load(ObjectStore.ROOT);
+                ObjectStore.migrate(ObjectStore.ROOT);
+                Refs.migrate(ObjectStore.ROOT);
+                head = getHead();
+            }
 
-        commands.get(command[0]).accept(command);
+            commands.get(command[0]).accept(command);
+        } finally {
+            Trace.end(Trace.Phase.COMMAND, start, 0);
+            Trace.report(command[0]);
+            Trace.setEnabled(traced);
+        }
     }
 
     /**
-     * Initializes a tinygit repository.
+     * Initializes a tinygit repository. An optional --object-format=NAME
+     * operand picks the hash that names its objects, sha1 by default.
      *
-     * @param unused placeholder array for parseLine command
+     * @param operands contains the optional object format
      */
-    public void init(String... unused) {
-        if (unused.length != 1) {
+    public void init(String... operands) {
+        if (operands.length > 2) {
             throw Utils.error("Incorrect operands.");
         }
+        ObjectFormat format = ObjectFormat.SHA1;
+        if (operands.length == 2) {
+            if (!operands[1].startsWith(OBJECT_FORMAT_OPTION)) {
+                throw Utils.error("Incorrect operands.");
+            }
+            format = ObjectFormat.named(
+                operands[1].substring(OBJECT_FORMAT_OPTION.length()));
+        }
         TinyGitFile hiddenDir = new TinyGitFile(".tinygit");
         if (hiddenDir.isDirectory()) {
             throw Utils.error("A Gitlet version-control system "
                 + "already exists in the current directory.");
         }
         hiddenDir.mkdir();
+        Shallow.load(ObjectStore.ROOT);
+        ObjectFormat.use(format);
+        format.write(ObjectStore.ROOT);
 
         TinyGitFile commitDir = new TinyGitFile(".tinygit/Commit");
         commitDir.mkdir();
 
-        TinyGitFile branchDir = new TinyGitFile(".tinygit/Branch");
-        branchDir.mkdir();
+        TinyGitFile objectDir = new TinyGitFile(".tinygit/objects");
+        objectDir.mkdir();
 
         TinyGitFile remoteDir = new TinyGitFile(".tinygit/Remote");
         remoteDir.mkdir();
 
         TinyGitFile masterFile = new TinyGitFile(".tinygit/head");
-        Utils.writeContents(masterFile, "master");
+        Utils.writeContents(masterFile, Refs.HEADS + "master");
 
         Date firstDay = new Date();
         firstDay.setTime(0);
 
-        String nullHash = Utils.sha1(Utils.serialize(null));
+        String nullHash = Utils.hash(Utils.serialize(null));
         Commit firstHead = new Commit("initial commit", firstDay, nullHash);
         committoFile(firstHead);
     }
@@ -118,7 +181,7 @@ public class Controller {
         if (operands.length != 2) {
             throw Utils.error("Incorrect operands.");
         }
-        String headHash = getHeadHash(getBranch());
+        String headHash = getHeadHash();
         head.addToStage(operands[1]);
         updateCommitFile(headHash, head);
     }
@@ -159,23 +222,39 @@ public class Controller {
 
     /**
      * Prints an ancestral list of commit logs starting from the
-     * current branch.
+     * current branch. With "-- FILE", prints only the commits that
+     * changed FILE. With "-g [BRANCH]", prints the commits the current
+     * branch, or BRANCH, has pointed at instead, latest first. With
+     * --decorate, names the branches and tags pointing at each commit.
      *
      * @param unused placeholder array for parseLine command
      */
     public void log(String... unused) {
-        if (unused.length != 1) {
+        if (unused.length == 3 && unused[1].equals("--")) {
+            logPath(unused[2]);
+            return;
+        }
+        if ((unused.length == 2 || unused.length == 3)
+            && unused[1].equals("-g")) {
+            logReflog(unused.length == 3 ? unused[2] : Reflog.HEAD);
+            return;
+        }
+        boolean decorate = unused.length == 2
+            && unused[1].equals("--decorate");
+        if (unused.length != 1 && !decorate) {
             throw Utils.error("Incorrect operands.");
         }
+        Map<String, String> decorations =
+            decorate ? decorations() : new HashMap<>();
         Commit tracker = head;
         System.out.println("===");
-        tracker.log(getHeadHash());
+        tracker.log(getHeadHash(), decorations.get(getHeadHash()));
         System.out.println();
         String parentHash = tracker.getParentHash();
         tracker = tracker.getParent();
         while (tracker != null) {
             System.out.println("===");
-            tracker.log(parentHash);
+            tracker.log(parentHash, decorations.get(parentHash));
             System.out.println();
             parentHash = tracker.getParentHash();
             tracker = tracker.getParent();
@@ -184,7 +263,85 @@ public class Controller {
     }
 
     /**
-     * Prints a log of all commits created.
+     * Returns the names of the refs pointing at each commit, by commit
+     * id, as log --decorate shows them: "HEAD -> BRANCH" for the current
+     * branch, then the other branches, and "tag: NAME" for tags, which
+     * are peeled through the peeled-tag table.
+     */
+    private Map<String, String> decorations() {
+        HashMap<String, String> result = new HashMap<>();
+        result.put(getHeadHash(), "HEAD -> " + getBranch());
+        String current = currentRef();
+        HashMap<String, String> peeled = Tag.peeled(ObjectStore.ROOT);
+        for (Map.Entry<String, String> ref
+                 : Refs.list(Refs.LOOSE + "/").entrySet()) {
+            String name = ref.getKey();
+            if (name.equals(current)) {
+                continue;
+            }
+            String id = ref.getValue();
+            String label = Refs.shortName(name);
+            if (name.startsWith(Refs.TAGS)) {
+                id = Tag.peel(ObjectStore.ROOT, id, peeled);
+                label = "tag: " + label;
+            }
+            result.merge(id, label, (a, b) -> a + ", " + b);
+        }
+        return result;
+    }
+
+    /**
+     * Prints each entry of the reflog of REF (a branch, or HEAD), latest
+     * first, with the commit it moved to.
+     */
+    private void logReflog(String ref) {
+        String log = ref.equals(Reflog.HEAD)
+            ? Reflog.HEAD : Refs.branch(ObjectStore.ROOT, ref);
+        if (log == null) {
+            throw Utils.error("No such branch exists.");
+        }
+        List<Reflog.Entry> entries = Reflog.read(ObjectStore.ROOT, log);
+        for (int i = 0; i < entries.size(); i += 1) {
+            String hash = entries.get(i).getNewId();
+            if (!ObjectStore.commitFile(hash).isFile()) {
+                continue;
+            }
+            System.out.println("===");
+            System.out.println("Reflog: " + ref + "@{" + i + "} ("
+                + entries.get(i).getMessage() + ")");
+            Commit.loadCommit(hash).log(hash);
+            System.out.println();
+        }
+    }
+
+    /**
+     * Prints the log of each first-parent ancestor of the head that
+     * changed PATH. The commit graph rules out most commits without
+     * loading them; the rest are checked against their parent's tracked
+     * files.
+     */
+    private void logPath(String path) {
+        String hash = getHeadHash();
+        while (!Commit.isRootParent(hash)) {
+            CommitGraph.Entry entry = CommitGraph.entry(hash);
+            if (entry.mightChange(path)) {
+                Commit c = Commit.loadCommit(hash);
+                Commit parent = c.getParent();
+                ObjectId before = parent == null
+                    ? null : parent.getTracked().get(path);
+                ObjectId after = c.getTracked().get(path);
+                if (after == null ? before != null : !after.equals(before)) {
+                    System.out.println("===");
+                    c.log(hash);
+                    System.out.println();
+                }
+            }
+            hash = entry.getParent();
+        }
+    }
+
+    /**
+     * Prints a log of all commits created, other than stashes.
      *
      * @param unused placeholder array for parseLine command
      */
@@ -192,17 +349,23 @@ public class Controller {
         if (unused.length != 1) {
             throw Utils.error("Incorrect operands.");
         }
-        List<String> commitNames = Utils.plainFilenamesIn(".tinygit/Commit");
+        List<String> commitNames = ObjectStore.commitIds();
+        Set<String> stashes = Stash.ids(ObjectStore.ROOT);
         for (String commit : commitNames) {
+            Commit c = Commit.loadCommit(commit);
+            if (c.isStash() || stashes.contains(commit)) {
+                continue;
+            }
             System.out.println("===");
-            Commit.loadCommit(commit).log(commit);
+            c.log(commit);
             System.out.println();
         }
 
     }
 
     /**
-     * Prints all commit IDs that contain the given message.
+     * Prints all commit IDs that contain the given message, other than
+     * those of stashes.
      *
      * @param operands contains given message
      */
@@ -212,11 +375,15 @@ public class Controller {
         }
         String message = operands[1].replaceAll("^\"|\"$", "");
 
-        List<String> commitNames = Utils.plainFilenamesIn(".tinygit/Commit");
+        List<String> commitNames = ObjectStore.commitIds();
+        Set<String> stashes = Stash.ids(ObjectStore.ROOT);
         boolean found = false;
         for (String commit : commitNames) {
-            String curr = Commit.loadCommit(commit).getMessage();
-            if (curr.equals(message)) {
+            Commit c = Commit.loadCommit(commit);
+            if (c.isStash() || stashes.contains(commit)) {
+                continue;
+            }
+            if (c.getMessage().equals(message)) {
                 System.out.println(commit);
                 found = true;
             }
@@ -228,20 +395,34 @@ public class Controller {
     }
 
     /**
-     * Prints current status of the repository.
+     * Prints current status of the repository. With --porcelain, prints
+     * one "XY PATH" line per difference instead; with --quiet, prints
+     * nothing, stops at the first difference and sets the exit status to
+     * 1 if there is one.
      *
-     * @param unused placeholder array for parseLine command
+     * @param operands contains the optional output mode
      */
-    public void status(String... unused) {
-        if (unused.length != 1) {
+    public void status(String... operands) {
+        if (operands.length > 2) {
             throw Utils.error("Incorrect operands.");
         }
-        branchesStatus();
-        stageStatus(head);
-        removedStatus(head);
-        modifiedStatus(head);
-        untrackedStatus(head);
-
+        String mode = operands.length == 2 ? operands[1] : "";
+        if (!mode.isEmpty() && !mode.equals("--porcelain")
+            && !mode.equals("--quiet")) {
+            throw Utils.error("Incorrect operands.");
+        }
+        WorkTree tree = WorkTree.load();
+        Status status = Status.scan(head, SparseFilter.load(), tree,
+            mode.equals("--quiet"));
+        tree.save();
+        if (mode.equals("--quiet")) {
+            exitStatus = status.isClean() ? 0 : 1;
+        } else if (mode.equals("--porcelain")) {
+            status.printPorcelain();
+        } else {
+            branchesStatus();
+            status.printSections();
+        }
     }
 
     /**
@@ -256,32 +437,27 @@ public class Controller {
             commit = getHead();
             fileName = operands[2];
         } else if (operands.length == 4 && operands[2].equals("--")) {
-            commit = Commit.loadCommit(operands[1]);
+            commit = Commit.loadCommit(resolveRevision(operands[1]));
             fileName = operands[3];
         } else if (operands.length == 2) {
-            TinyGitFile branch = new TinyGitFile(".tinygit/Branch/" + operands[1]);
-            if (!branch.exists()) {
+            String branch = Refs.branch(ObjectStore.ROOT, operands[1]);
+            if (branch == null) {
                 throw Utils.error("No such branch exists.");
             }
-            if (operands[1].equals(getBranch())) {
+            if (branch.equals(currentRef())) {
                 throw Utils.error("No need to checkout the current branch.");
             }
 
-            String commitHash = Utils.readContentsAsString(branch);
+            String commitHash = Refs.read(branch);
 
             Commit otherCommit = Commit.loadCommit(commitHash);
             checkUntracked(otherCommit);
 
-            for (String file : head.getTracked().keySet()) {
-                Utils.restrictedDelete(file);
-            }
-            for (String file : otherCommit.getTracked().keySet()) {
-                String hash = otherCommit.getTracked().get(file);
-                TinyGitFile copy = new TinyGitFile(".tinygit/" + hash);
-                String copyContents = Utils.readContentsAsString(copy);
-                TinyGitFile newFile = new TinyGitFile(file);
-                Utils.writeContents(newFile, copyContents);
-            }
+            IoScheduler.forEach(head.getTracked().keySet(),
+                file -> Utils.restrictedDelete(file));
+            SparseFilter sparse = SparseFilter.load();
+            prefetch(otherCommit, sparse);
+            checkoutFiles(otherCommit, sparse);
 
             otherCommit.getStaged().clear();
             updateCommitFile(commitHash, otherCommit);
@@ -297,13 +473,8 @@ public class Controller {
             throw Utils.error("File does not exist in that commit.");
         }
 
-        String hash = commit.getTracked().get(fileName);
-        TinyGitFile copy = new TinyGitFile(".tinygit/" + hash);
-        String copyContents = Utils.readContentsAsString(copy);
-
-        TinyGitFile f = new TinyGitFile(fileName);
-
-        Utils.writeContents(f, copyContents);
+        ObjectId hash = commit.getTracked().get(fileName);
+        ObjectStore.checkoutBlob(hash, new TinyGitFile(fileName));
 
     }
 
@@ -317,15 +488,12 @@ public class Controller {
             throw Utils.error("Incorrect operands.");
         }
 
-        List<String> branchNames = Utils.plainFilenamesIn(".tinygit/Branch");
-        if (branchNames.contains(operands[1])) {
+        String newBranch = Refs.HEADS + operands[1];
+        if (Refs.read(newBranch) != null) {
             throw Utils.error("A branch with that name already exists.");
         }
-
-        TinyGitFile newBranch = new TinyGitFile(".tinygit/Branch/" + operands[1]);
-        String headhash = getHeadHash();
-        Utils.writeContents(newBranch, headhash);
-
+        Refs.transaction().create(newBranch, getHeadHash())
+            .commit("branch: Created from " + getBranch());
 
     }
 
@@ -339,17 +507,17 @@ public class Controller {
             throw Utils.error("Incorrect operands.");
         }
 
-        TinyGitFile branch = new TinyGitFile(".tinygit/Branch/" + operands[1]);
+        String branch = Refs.branch(ObjectStore.ROOT, operands[1]);
 
-        if (!branch.exists()) {
+        if (branch == null) {
             throw Utils.error("A branch with that name does not exist.");
         }
 
-        if (getBranch().equals(operands[1])) {
+        if (branch.equals(currentRef())) {
             throw Utils.error("Cannot remove the current branch.");
         }
 
-        branch.delete();
+        Refs.transaction().delete(branch).commit("branch: deleted");
 
     }
 
@@ -362,12 +530,18 @@ public class Controller {
         if (operands.length != 2) {
             throw Utils.error("Incorrect operands.");
         }
-        String commitID = operands[1];
+        String commitID = resolveRevision(operands[1]);
+        String oldHash = Refs.read(currentRef());
         Commit c = Commit.loadCommit(commitID);
 
         checkUntracked(c);
 
+        SparseFilter sparse = SparseFilter.load();
+        prefetch(c, sparse);
         for (String filename : head.getTracked().keySet()) {
+            if (!sparse.includes(filename)) {
+                continue;
+            }
             if (c.getTracked().containsKey(filename)) {
                 checkout("checkout", commitID, "--", filename);
             } else {
@@ -376,7 +550,8 @@ public class Controller {
         }
 
         for (String filename : c.getTracked().keySet()) {
-            if (!head.getTracked().containsKey(filename)) {
+            if (!head.getTracked().containsKey(filename)
+                && sparse.includes(filename)) {
                 checkout("checkout", commitID, "--", filename);
             }
         }
@@ -386,8 +561,8 @@ public class Controller {
         updateCommitFile(commitID, c);
 
 
-        TinyGitFile branch = new TinyGitFile(".tinygit/Branch/" + getBranch());
-        Utils.writeContents(branch, commitID);
+        Refs.transaction().update(currentRef(), oldHash, commitID)
+            .commit("reset: moving to " + operands[1]);
 
     }
 
@@ -408,21 +583,32 @@ public class Controller {
             throw Utils.error("You have uncommitted changes.");
         }
 
-        if (branchName.equals(getBranch())) {
+        if (Refs.branch(ObjectStore.ROOT, branchName).equals(currentRef())) {
             throw Utils.error("Cannot merge a branch with itself.");
         }
         checkUntracked(otherHead);
         Commit splitPoint = getSplit(branchName, otherHead);
-        HashMap<String, String> currentFiles = currentHead.getTracked();
-        HashMap<String, String> otherFiles = otherHead.getTracked();
-        HashMap<String, String> splitFiles = splitPoint.getTracked();
-
-        boolean foundConflict;
+        if (splitPoint == null) {
+            throw Utils.error("No common ancestor in the shallow history;"
+                + " fetch with --deepen.");
+        }
+        HashMap<String, ObjectId> currentFiles = currentHead.getTracked();
+        HashMap<String, ObjectId> otherFiles = otherHead.getTracked();
+        HashMap<String, ObjectId> splitFiles = splitPoint.getTracked();
+        Promisor.prefetch(otherFiles.values());
 
-        foundConflict = mergeSplit(currentFiles, otherFiles, splitFiles);
-        foundConflict = mergeOther(currentFiles,
-            otherFiles, splitFiles, branchName)
-            || foundConflict;
+        boolean foundConflict = false;
+        try (SortedRuns current = SortedRuns.of(currentFiles);
+             SortedRuns other = SortedRuns.of(otherFiles);
+             SortedRuns split = SortedRuns.of(splitFiles)) {
+            SortedRuns.Walk walk = new SortedRuns.Walk(current.cursor(),
+                other.cursor(), split.cursor());
+            while (walk.next()) {
+                foundConflict = mergeFile(walk.key(), walk.value(0),
+                    walk.value(1), walk.value(2), currentFiles, otherFiles)
+                    || foundConflict;
+            }
+        }
 
         String headHash = getHeadHash();
         if (foundConflict) {
@@ -435,6 +621,71 @@ public class Controller {
         committoFile(newCommit);
     }
 
+    /**
+     * Applies the changes made by the given commit on top of the current
+     * branch, as a new commit.
+     *
+     * @param operands contains given commit
+     */
+    public void cherryPick(String... operands) {
+        if (operands.length != 2) {
+            throw Utils.error("Incorrect operands.");
+        }
+        checkNoStage();
+        Commit picked = Commit.loadCommit(resolveRevision(operands[1]));
+        if (picked.getOtherParentHash() != null) {
+            throw Utils.error("Cannot cherry-pick a merge commit.");
+        }
+        Commit parent = picked.getParent();
+        Replay replay = new Replay(getHeadHash(), head);
+        if (!replay.apply(picked, parent == null
+                ? new HashMap<>() : parent.getTracked())) {
+            throw Utils.error("No changes added to the commit.");
+        }
+        finishReplay(replay, "cherry-pick: " + picked.getMessage());
+    }
+
+    /**
+     * Reapplies the commits of the current branch that the given branch
+     * or commit lacks on top of it, one new commit each, and moves the
+     * current branch to the last. The commits are replayed in memory;
+     * the working directory and the branch are updated once, at the end.
+     *
+     * @param operands contains given upstream branch or commit
+     */
+    public void rebase(String... operands) {
+        if (operands.length != 2) {
+            throw Utils.error("Incorrect operands.");
+        }
+        checkNoStage();
+        String upstream = resolveRevision(operands[1]);
+        Set<String> upstreamCommits = CommitGraph.ancestors(upstream);
+        List<Commit> commits = new ArrayList<>();
+        String fork = getHeadHash();
+        while (!upstreamCommits.contains(fork)) {
+            if (Commit.isRootParent(fork)) {
+                throw Utils.error("No common ancestor in the shallow history;"
+                    + " fetch with --deepen.");
+            }
+            Commit c = Commit.loadCommit(fork);
+            commits.add(c);
+            fork = c.getParentHash();
+        }
+        if (fork.equals(upstream)) {
+            throw Utils.error("Current branch is up to date.");
+        }
+        Collections.reverse(commits);
+
+        Replay replay = new Replay(upstream, Commit.loadCommit(upstream));
+        HashMap<String, ObjectId> parent =
+            Commit.loadCommit(fork).getTracked();
+        for (Commit c : commits) {
+            replay.apply(c, parent);
+            parent = c.getTracked();
+        }
+        finishReplay(replay, "rebase: onto " + operands[1]);
+    }
+
     /**
      * Creates a connection to a remote repository.
      * @param operands contains given repository
@@ -450,7 +701,8 @@ public class Controller {
             throw Utils.error("A remote with that name already exists.");
         }
 
-        String filePath = operands[2].replaceAll("/", separator);
+        String filePath = Transport.isUrl(operands[2]) ? operands[2]
+            : operands[2].replaceAll("/", separator);
 
         TinyGitFile newBranch = new TinyGitFile(".tinygit/Remote/" + operands[1]);
         Utils.writeContents(newBranch, filePath);
@@ -486,53 +738,35 @@ public class Controller {
         }
         String remoteName = operands[1];
         String remoteBranch = operands[2];
+        String location = remoteLocation(remoteName);
+        if (Transport.isUrl(location)) {
+            new Transport(location).push(remoteBranch, getHeadHash());
+            return;
+        }
         String remoteCommit = getRemoteBranch(remoteName, remoteBranch);
 
         List<String> ancestry = checkAncestry(remoteCommit);
 
         String remotePath = getRemotePath(remoteName);
+        ObjectStore.migrate(remotePath);
 
-        for (String commitHash : ancestry) {
-            TinyGitFile commitFile = new TinyGitFile(
-                ".tinygit/Commit/" + commitHash);
+        IoScheduler.forEach(ancestry, commitHash -> {
+            TinyGitFile commitFile = ObjectStore.commitFile(commitHash);
             Commit c = Utils.readObject(commitFile, Commit.class);
-            TinyGitFile.setRemotePath(
-                remotePath.substring(0, remotePath.length() - 7));
-            c.storeCommit(commitHash);
-            TinyGitFile.setRemotePath("");
-        }
-        List<String> fileNames = Utils.plainFilenamesIn(".tinygit");
-        for (String fileName : fileNames) {
-            if (!fileName.equals("head")) {
-                TinyGitFile blobFile = new TinyGitFile(".tinygit/" + fileName);
-                TinyGitFile remoteFile = new TinyGitFile(
-                    getRemotePath(remoteName) + "/" + fileName);
-                String fileContent = Utils.readContentsAsString(blobFile);
-                Utils.writeContents(remoteFile, fileContent);
-            }
-        }
+            ObjectStore.writeCommit(remotePath, commitHash, c);
+        });
+        copyBlobs(ObjectStore.ROOT, remotePath, -1);
         String headHash = getHeadHash();
-        TinyGitFile.setRemotePath(
-            remotePath.substring(0, remotePath.length() - 7));
-        TinyGitFile branchFile = new TinyGitFile(
-            ".tinygit/Branch/" + remoteBranch);
-        if (!branchFile.exists()) {
+        TinyGitFile.setRemotePath(remoteWorkingPath(remotePath));
+        if (Refs.read(Refs.HEADS + remoteBranch) == null) {
             branch("branch", remoteBranch);
         }
-        TinyGitFile branch = new TinyGitFile(".tinygit/Branch/" + remoteBranch);
-        String commitHash = Utils.readContentsAsString(branch);
+        String commitHash = Refs.read(Refs.HEADS + remoteBranch);
         Commit otherCommit = Commit.loadCommit(commitHash);
         checkUntracked(otherCommit);
-        for (String file : head.getTracked().keySet()) {
-            Utils.restrictedDelete(file);
-        }
-        for (String file : otherCommit.getTracked().keySet()) {
-            String hash = otherCommit.getTracked().get(file);
-            TinyGitFile copy = new TinyGitFile(".tinygit/" + hash);
-            String copyContents = Utils.readContentsAsString(copy);
-            TinyGitFile newFile = new TinyGitFile(file);
-            Utils.writeContents(newFile, copyContents);
-        }
+        IoScheduler.forEach(head.getTracked().keySet(),
+            file -> Utils.restrictedDelete(file));
+        checkoutFiles(otherCommit, SparseFilter.load());
         otherCommit.getStaged().clear();
         updateCommitFile(commitHash, otherCommit);
         updateBranch(operands[1]);
@@ -541,55 +775,98 @@ public class Controller {
     }
 
     /**
-     * Fetches commits and blobs from remote repository.
-     * @param operands given branch head
+     * Fetches commits and blobs from remote repository. With
+     * --filter=blob:none no blobs are fetched, and with
+     * --filter=blob:limit=SIZE only blobs of at most SIZE bytes (with an
+     * optional k, m or g suffix) are; the remote then becomes the
+     * promisor that the rest are fetched from when needed. With --depth N
+     * only the last N commits of the branch are fetched, and the oldest
+     * are recorded as shallow; --deepen N fetches the branch's new
+     * commits and N more generations behind the shallow boundary.
+     * @param operands given branch head and options
      */
     public void fetch(String... operands) {
-        if (operands.length != 3) {
+        if (operands.length < 3) {
             throw Utils.error("Incorrect operands.");
         }
         String remoteName = operands[1];
         String remoteBranch = operands[2];
-
-        String branchPath = getRemotePath(remoteName)
-            + "/Branch/" + remoteBranch;
-        TinyGitFile remoteGitlet = new TinyGitFile(branchPath);
-        if (!remoteGitlet.exists()) {
-            throw Utils.error("That remote does not have that branch.");
+        long limit = -1;
+        int depth = 0;
+        int deepen = 0;
+        for (int i = 3; i < operands.length; i += 1) {
+            if (operands[i].startsWith("--filter=")) {
+                limit = blobLimit(operands[i]);
+            } else if (operands[i].equals("--depth")
+                       && i + 1 < operands.length) {
+                depth = generations(operands[i += 1]);
+            } else if (operands[i].equals("--deepen")
+                       && i + 1 < operands.length) {
+                deepen = generations(operands[i += 1]);
+            } else {
+                throw Utils.error("Incorrect operands.");
+            }
         }
-
-        TinyGitFile dir = new TinyGitFile(".tinygit/Branch/" + remoteName);
-        if (!dir.exists()) {
-            dir.mkdir();
+        if (depth > 0 && deepen > 0) {
+            throw Utils.error("Incorrect operands.");
         }
-        TinyGitFile localBranch = new TinyGitFile(
-            ".tinygit/Branch/" + remoteName + "/" + remoteBranch);
-        Utils.writeContents(localBranch,
-            Utils.readContentsAsString(remoteGitlet));
-
-        List<String> commits = Utils.plainFilenamesIn(
-            getRemotePath(remoteName) + "/Commit");
 
-        for (String commitHash : commits) {
-            TinyGitFile remoteFile = new TinyGitFile(
-                getRemotePath(remoteName) + "/Commit/" + commitHash);
-            Commit c = Utils.readObject(remoteFile, Commit.class);
-            c.storeCommit(commitHash);
+        String location = remoteLocation(remoteName);
+        if (Transport.isUrl(location)) {
+            if (limit >= 0 || depth > 0 || deepen > 0) {
+                throw Utils.error("Filtered and shallow fetches need a"
+                    + " remote directory.");
+            }
+            String remoteHead = new Transport(location).fetch(remoteBranch);
+            Shallow.update();
+            Refs.transaction().update(
+                Refs.REMOTES + remoteName + "/" + remoteBranch, null,
+                remoteHead).commit("fetch: " + remoteName + " " + remoteBranch);
+            return;
+        }
+        String remotePath = getRemotePath(remoteName);
+        String remoteHead = Refs.read(remotePath, Refs.HEADS + remoteBranch);
+        if (remoteHead == null) {
+            throw Utils.error("That remote does not have that branch.");
         }
 
-        List<String> fileNames = Utils.plainFilenamesIn(
-            getRemotePath(remoteName));
-
-        for (String fileName : fileNames) {
-            if (!fileName.equals("head")) {
-                TinyGitFile blobFile = new TinyGitFile(".tinygit/" + fileName);
-                TinyGitFile remoteFile = new TinyGitFile(
-                    getRemotePath(remoteName) + "/" + fileName);
-                String fileContent = Utils.readContentsAsString(remoteFile);
-                Utils.writeContents(blobFile, fileContent);
+        ObjectStore.migrate(remotePath);
+        if (depth > 0 || deepen > 0) {
+            Set<String> boundary = new HashSet<>();
+            Set<String> fetched = new HashSet<>();
+            if (depth > 0) {
+                fetchHistory(remotePath, remoteHead, depth, true, boundary,
+                    fetched);
+            } else {
+                fetchHistory(remotePath, remoteHead, Integer.MAX_VALUE,
+                    false, boundary, fetched);
+                for (String hash : Shallow.commits()) {
+                    fetchHistory(remotePath, hash, deepen + 1, true,
+                        boundary, fetched);
+                }
             }
-
+            boundary.addAll(Shallow.commits());
+            Shallow.write(boundary);
+            copyCommitBlobs(remotePath, fetched, limit);
+        } else {
+            IoScheduler.forEach(ObjectStore.commitIds(remotePath),
+                commitHash -> {
+                    if (!ObjectStore.commitFile(commitHash).exists()) {
+                        TinyGitFile remoteFile =
+                            ObjectStore.commitFile(remotePath, commitHash);
+                        Commit c = Utils.readObject(remoteFile, Commit.class);
+                        c.storeCommit(commitHash);
+                    }
+                });
+            Shallow.update();
+            copyBlobs(remotePath, ObjectStore.ROOT, limit);
+        }
+        if (limit >= 0) {
+            Promisor.record(remoteName);
         }
+        Refs.transaction().update(
+            Refs.REMOTES + remoteName + "/" + remoteBranch, null, remoteHead)
+            .commit("fetch: " + remoteName + " " + remoteBranch);
     }
 
     /**
@@ -606,6 +883,550 @@ public class Controller {
         merge("merge", remoteName + "/" + remoteBranch);
     }
 
+    /**
+     * Prints the value of a repository setting, or sets it when a value
+     * is given.
+     *
+     * @param operands contains the setting and optional value
+     */
+    public void config(String... operands) {
+        if (operands.length != 2 && operands.length != 3) {
+            throw Utils.error("Incorrect operands.");
+        }
+        if (operands.length == 3) {
+            Config.set(operands[1], operands[2]);
+            return;
+        }
+        String value = Config.get(operands[1]);
+        if (value == null) {
+            throw Utils.error("No such setting.");
+        }
+        System.out.println(value);
+    }
+
+    /**
+     * Writes the commits reachable from the given refs, but not from any
+     * ^BASE, with their blobs to a single bundle file (create), or reads
+     * such a file, recording its refs as bundle/REF branches (fetch).
+     *
+     * @param operands contains the subcommand, file and refs
+     */
+    public void bundle(String... operands) {
+        if (operands.length < 3) {
+            throw Utils.error("Incorrect operands.");
+        }
+        TinyGitFile file = new TinyGitFile(operands[2]);
+        switch (operands[1]) {
+        case "create":
+            LinkedHashMap<String, String> refs = new LinkedHashMap<>();
+            List<String> bases = new ArrayList<>();
+            for (int i = 3; i < operands.length; i += 1) {
+                if (operands[i].startsWith("^")) {
+                    bases.add(resolveRevision(operands[i].substring(1)));
+                } else {
+                    refs.put(operands[i], resolveRevision(operands[i]));
+                }
+            }
+            if (refs.isEmpty()) {
+                throw Utils.error("Incorrect operands.");
+            }
+            Bundle.create(file, refs, bases);
+            break;
+        case "fetch":
+            if (operands.length != 3) {
+                throw Utils.error("Incorrect operands.");
+            }
+            if (!file.isFile()) {
+                throw Utils.error("Bundle file does not exist.");
+            }
+            Map<String, String> fetched = Bundle.fetch(file);
+            Shallow.update();
+            Refs.Transaction transaction = Refs.transaction();
+            for (Map.Entry<String, String> ref : fetched.entrySet()) {
+                transaction.update(Refs.REMOTES + "bundle/" + ref.getKey(),
+                    null, ref.getValue());
+            }
+            transaction.commit("bundle: fetch from " + operands[2]);
+            break;
+        default:
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
+    /**
+     * Starts a background watcher that journals changes to the working
+     * directory, so status need only look at the files it reports
+     * (start), stops it (stop), or runs it in the foreground (run).
+     *
+     * @param operands contains the subcommand
+     */
+    public void fsmonitor(String... operands) {
+        if (operands.length != 2) {
+            throw Utils.error("Incorrect operands.");
+        }
+        switch (operands[1]) {
+        case "start":
+            if (FsMonitor.isRunning()) {
+                throw Utils.error("The fsmonitor is already running.");
+            }
+            FsMonitor.start();
+            break;
+        case "stop":
+            if (!FsMonitor.isRunning()) {
+                throw Utils.error("The fsmonitor is not running.");
+            }
+            FsMonitor.stop();
+            break;
+        case "run":
+            FsMonitor.watch();
+            break;
+        default:
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
+    /**
+     * Moves every loose ref into the packed-refs file, so that refs are
+     * read from one sorted file, and rebuilds the peeled-tag table.
+     *
+     * @param operands contains no operands
+     */
+    public void packRefs(String... operands) {
+        if (operands.length != 1) {
+            throw Utils.error("Incorrect operands.");
+        }
+        Refs.pack(ObjectStore.ROOT);
+        Tag.repeel(ObjectStore.ROOT);
+    }
+
+    /**
+     * Lists the tags (no operand), tags the given commit, or the head, as
+     * NAME, with an annotated tag object if -a NAME -m MESSAGE is given,
+     * or deletes tag NAME (-d NAME).
+     *
+     * @param operands contains the tag name, message and commit
+     */
+    public void tag(String... operands) {
+        if (operands.length == 1) {
+            for (String name : Refs.list(Refs.TAGS).keySet()) {
+                System.out.println(Refs.shortName(name));
+            }
+            return;
+        }
+        if (operands[1].equals("-d")) {
+            if (operands.length != 3) {
+                throw Utils.error("Incorrect operands.");
+            }
+            if (Refs.read(Refs.TAGS + operands[2]) == null) {
+                throw Utils.error("A tag with that name does not exist.");
+            }
+            Refs.transaction().delete(Refs.TAGS + operands[2]).commit(null);
+            return;
+        }
+        boolean annotated = operands[1].equals("-a");
+        int rest = annotated ? 5 : 2;
+        if (operands.length < rest || operands.length > rest + 1
+            || annotated && !operands[3].equals("-m")) {
+            throw Utils.error("Incorrect operands.");
+        }
+        String name = operands[annotated ? 2 : 1];
+        if (Refs.read(Refs.TAGS + name) != null) {
+            throw Utils.error("A tag with that name already exists.");
+        }
+        String target = operands.length > rest
+            ? resolveRevision(operands[rest]) : getHeadHash();
+        if (annotated) {
+            target = new Tag(name, target, operands[4], new Date())
+                .store(ObjectStore.ROOT);
+        }
+        Refs.transaction().create(Refs.TAGS + name, target).commit(null);
+    }
+
+    /**
+     * Checks that every object hashes to its name and that the links
+     * between commits, blobs, tags and refs are intact, printing each
+     * problem found and exiting with status 1 if there are any. With
+     * --connectivity-only, only the links are checked.
+     *
+     * @param operands contains the optional mode
+     */
+    public void fsck(String... operands) {
+        boolean connectivityOnly = operands.length == 2
+            && operands[1].equals("--connectivity-only");
+        if (operands.length != 1 && !connectivityOnly) {
+            throw Utils.error("Incorrect operands.");
+        }
+        int problems = new Fsck(ObjectStore.ROOT, connectivityOnly).run();
+        exitStatus = problems == 0 ? 0 : 1;
+    }
+
+    /**
+     * Serves the repositories in the given directory, each a directory
+     * holding a .tinygit, to fetch and push at tinygit://localhost:PORT/NAME
+     * until killed. Needs no repository of its own.
+     *
+     * @param operands contains the directory and optional port
+     */
+    public void serve(String... operands) {
+        if (operands.length != 2 && operands.length != 3) {
+            throw Utils.error("Incorrect operands.");
+        }
+        int port = Server.DEFAULT_PORT;
+        if (operands.length == 3) {
+            try {
+                port = Integer.parseInt(operands[2]);
+            } catch (NumberFormatException excp) {
+                throw Utils.error("Incorrect operands.");
+            }
+        }
+        try (Server server = new Server(operands[1], port)) {
+            System.out.println("Serving " + operands[1] + " on port "
+                + server.port() + ".");
+            server.run();
+        }
+    }
+
+    /**
+     * Drops the reflog entries older than reflog.expire days, and all but
+     * the newest reflog.entries of each log (expire).
+     *
+     * @param operands contains the subcommand
+     */
+    public void reflog(String... operands) {
+        if (operands.length != 2 || !operands[1].equals("expire")) {
+            throw Utils.error("Incorrect operands.");
+        }
+        for (String name : Reflog.names(ObjectStore.ROOT)) {
+            Reflog.expire(ObjectStore.ROOT, name);
+        }
+    }
+
+    /**
+     * Saves the staged and unstaged changes to tracked files as a stash
+     * and resets the working directory to the head (push, or no operand),
+     * restores stash@{N} and drops it (pop), lists the stashes (list), or
+     * drops stash@{N} (drop). N is 0, the latest stash, if not given.
+     *
+     * @param operands contains the subcommand and its operand
+     */
+    public void stash(String... operands) {
+        String sub = operands.length == 1 ? "push" : operands[1];
+        switch (sub) {
+        case "push":
+            if (operands.length > 3) {
+                throw Utils.error("Incorrect operands.");
+            }
+            stashPush(operands.length == 3 ? operands[2] : null);
+            break;
+        case "pop":
+            stashPop(stashIndex(operands));
+            break;
+        case "list":
+            if (operands.length != 2) {
+                throw Utils.error("Incorrect operands.");
+            }
+            List<Reflog.Entry> stashes = Stash.list(ObjectStore.ROOT);
+            for (int i = 0; i < stashes.size(); i += 1) {
+                System.out.println(Stash.NAME + "@{" + i + "}: "
+                    + stashes.get(i).getMessage());
+            }
+            break;
+        case "drop":
+            int n = stashIndex(operands);
+            if (!Stash.drop(ObjectStore.ROOT, n)) {
+                throw noStash(n);
+            }
+            break;
+        default:
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
+    /**
+     * Stores the working directory and stage as a stash with MESSAGE, or
+     * a message naming the head if null, then puts back the head's
+     * version of every file that differs from it and clears the stage.
+     * Only the files that differ are hashed, stored and written.
+     */
+    private void stashPush(String message) {
+        String headHash = getHeadHash();
+        HashMap<String, ObjectId> index = new HashMap<>(head.getTracked());
+        index.keySet().removeAll(head.getUntracked());
+        index.putAll(head.getStaged());
+
+        WorkTree tree = WorkTree.load();
+        SparseFilter sparse = SparseFilter.load();
+        HashMap<String, ObjectId> files = new HashMap<>();
+        Set<String> changed = new HashSet<>(head.getStaged().keySet());
+        for (String file : head.getUntracked()) {
+            if (tree.contains(file) && sparse.includes(file)
+                && !tree.hash(file).equals(head.getTracked().get(file))) {
+                throw Utils.error("There is an untracked file in the way;"
+                    + " delete it or add it first.");
+            }
+            changed.add(file);
+        }
+        for (Map.Entry<String, ObjectId> entry : index.entrySet()) {
+            String file = entry.getKey();
+            if (!sparse.includes(file)) {
+                files.put(file, entry.getValue());
+                continue;
+            }
+            if (!tree.contains(file)) {
+                changed.add(file);
+                continue;
+            }
+            ObjectId hash = tree.hash(file);
+            if (!hash.equals(entry.getValue())) {
+                changed.add(file);
+                if (!ObjectStore.isStored(ObjectStore.ROOT, hash.toString())) {
+                    hash = Commit.store(new TinyGitFile(file));
+                }
+            }
+            files.put(file, hash);
+        }
+        if (changed.isEmpty()) {
+            throw Utils.error("No local changes to save.");
+        }
+        message = message == null
+            ? "WIP on " + getBranch() + ": "
+                + ObjectFormat.current().abbreviate(headHash) + " "
+                + head.getMessage()
+            : "On " + getBranch() + ": " + message;
+        Commit stash = new Commit(message, new Date(), headHash, files,
+            head.getStaged(), head.getUntracked());
+        stash.markStash();
+        String stashHash = stash.id();
+        stash.storeCommit(stashHash);
+        CommitGraph.record(stashHash, stash);
+        Stash.push(ObjectStore.ROOT, stashHash, message);
+
+        tree.save();
+        for (String file : changed) {
+            if (sparse.includes(file)) {
+                restore(file, head.getTracked().get(file), tree);
+            }
+        }
+        clearStage();
+    }
+
+    /**
+     * Puts back the working directory and stage saved in stash@{N} and
+     * drops it. Refuses, changing nothing, if a file the stash changed
+     * has since been changed in the head, the stage or the working
+     * directory.
+     */
+    private void stashPop(int n) {
+        String stashHash = Stash.get(ObjectStore.ROOT, n);
+        if (stashHash == null) {
+            throw noStash(n);
+        }
+        Commit stash = Commit.loadCommit(stashHash);
+        HashMap<String, ObjectId> base = stash.getParent().getTracked();
+
+        Set<String> changed = new HashSet<>(base.keySet());
+        changed.addAll(stash.getTracked().keySet());
+        changed.removeIf(file -> Objects.equals(base.get(file),
+            stash.getTracked().get(file)));
+        Set<String> touched = new HashSet<>(changed);
+        touched.addAll(stash.getStaged().keySet());
+        touched.addAll(stash.getUntracked());
+
+        WorkTree tree = WorkTree.load();
+        SparseFilter sparse = SparseFilter.load();
+        for (String file : touched) {
+            ObjectId current = head.getTracked().get(file);
+            boolean clean = Objects.equals(current, base.get(file))
+                && !head.getStaged().containsKey(file)
+                && !head.getUntracked().contains(file);
+            if (clean && changed.contains(file) && sparse.includes(file)) {
+                clean = Objects.equals(current,
+                    tree.contains(file) ? tree.hash(file) : null);
+            }
+            if (!clean) {
+                throw Utils.error("Your local changes to %s would be"
+                    + " overwritten by the stash.", file);
+            }
+        }
+
+        tree.save();
+        for (String file : changed) {
+            if (sparse.includes(file)) {
+                restore(file, stash.getTracked().get(file), tree);
+            }
+        }
+        head.getStaged().putAll(stash.getStaged());
+        head.getUntracked().addAll(stash.getUntracked());
+        updateCommitFile(getHeadHash(), head);
+        Stash.drop(ObjectStore.ROOT, n);
+    }
+
+    /**
+     * Refuses to go on if the stage of the current branch is not empty.
+     */
+    private void checkNoStage() {
+        if (!head.getStaged().isEmpty() || !head.getUntracked().isEmpty()) {
+            throw Utils.error("You have uncommitted changes.");
+        }
+    }
+
+    /**
+     * Moves the current branch to the last commit REPLAY made, logged as
+     * MESSAGE, after bringing the working directory to its files. Only
+     * the files that differ from the old head are written.
+     */
+    private void finishReplay(Replay replay, String message) {
+        Commit result = Commit.loadCommit(replay.head());
+        checkUntracked(result);
+        WorkTree tree = WorkTree.load();
+        SparseFilter sparse = SparseFilter.load();
+        List<String> changed = new ArrayList<>();
+        List<ObjectId> blobs = new ArrayList<>();
+        for (String file : CommitGraph.changedPaths(head.getTracked(),
+                 replay.files())) {
+            if (sparse.includes(file)) {
+                changed.add(file);
+                if (replay.files().containsKey(file)) {
+                    blobs.add(replay.files().get(file));
+                }
+            }
+        }
+        Promisor.prefetch(blobs);
+        tree.save();
+        for (String file : changed) {
+            restore(file, replay.files().get(file), tree);
+        }
+        Refs.transaction().update(currentRef(), getHeadHash(), replay.head())
+            .commit(message);
+        if (replay.conflicted()) {
+            System.out.println("Encountered a merge conflict.");
+        }
+    }
+
+    /**
+     * Returns N given by the optional stash@{N} operand of the stash
+     * subcommand OPERANDS, or 0 if there is none.
+     */
+    private int stashIndex(String... operands) {
+        if (operands.length == 2) {
+            return 0;
+        }
+        String prefix = Stash.NAME + "@{";
+        if (operands.length != 3 || !operands[2].startsWith(prefix)
+            || !operands[2].endsWith("}")) {
+            throw Utils.error("Incorrect operands.");
+        }
+        try {
+            return Integer.parseInt(operands[2].substring(prefix.length(),
+                operands[2].length() - 1));
+        } catch (NumberFormatException excp) {
+            throw Utils.error("Incorrect operands.");
+        }
+    }
+
+    /**
+     * Returns the error for a missing stash@{N}.
+     */
+    private TinyGitException noStash(int n) {
+        if (Stash.get(ObjectStore.ROOT, 0) == null) {
+            return Utils.error("No stash entries found.");
+        }
+        return Utils.error("Log for %s has no entry %d.", Stash.NAME, n);
+    }
+
+    /**
+     * Makes FILE hold blob HASH, or removes it if HASH is null, unless
+     * the working directory TREE shows it already does.
+     */
+    private void restore(String file, ObjectId hash, WorkTree tree) {
+        ObjectId current = tree.contains(file) ? tree.hash(file) : null;
+        if (Objects.equals(current, hash)) {
+            return;
+        }
+        if (hash == null) {
+            Utils.restrictedDelete(file);
+        } else {
+            ObjectStore.checkoutBlob(hash, new TinyGitFile(file));
+        }
+    }
+
+    /**
+     * Restricts the working tree to the tracked files matching the given
+     * patterns (set), lists the patterns in use (list), or materializes
+     * every tracked file again (disable). Files leaving the working tree
+     * are removed only if they are unmodified.
+     *
+     * @param operands contains the subcommand and its patterns
+     */
+    public void sparseCheckout(String... operands) {
+        if (operands.length < 2) {
+            throw Utils.error("Incorrect operands.");
+        }
+        switch (operands[1]) {
+        case "set":
+            if (operands.length < 3) {
+                throw Utils.error("Incorrect operands.");
+            }
+            SparseFilter.write(
+                Arrays.asList(operands).subList(2, operands.length));
+            break;
+        case "disable":
+            if (operands.length != 2) {
+                throw Utils.error("Incorrect operands.");
+            }
+            SparseFilter.disable();
+            break;
+        case "list":
+            if (operands.length != 2) {
+                throw Utils.error("Incorrect operands.");
+            }
+            for (String pattern : SparseFilter.load().getPatterns()) {
+                System.out.println(pattern);
+            }
+            return;
+        default:
+            throw Utils.error("Incorrect operands.");
+        }
+
+        SparseFilter sparse = SparseFilter.load();
+        for (String file : head.getTracked().keySet()) {
+            ObjectId hash = head.getTracked().get(file);
+            TinyGitFile f = new TinyGitFile(file);
+            if (sparse.includes(file)) {
+                if (!f.exists()) {
+                    ObjectStore.checkoutBlob(hash, f);
+                }
+            } else if (f.exists() && !head.getStaged().containsKey(file)
+                && hash.equals(Utils.hashFile(f))) {
+                Utils.restrictedDelete(file);
+            }
+        }
+    }
+
+    /**
+     * Prints each line of the given file as of the head commit, prefixed
+     * by the commit that introduced it.
+     *
+     * @param operands contains given file
+     */
+    public void blame(String... operands) {
+        if (operands.length != 2) {
+            throw Utils.error("Incorrect operands.");
+        }
+        String fileName = operands[1];
+        String headHash = getHeadHash();
+        if (!head.getTracked().containsKey(fileName)) {
+            throw Utils.error("File does not exist in that commit.");
+        }
+        String[] owners = Blame.annotate(headHash, fileName);
+        String[] lines = Diff.lines(blobContents(
+            head.getTracked().get(fileName)));
+        for (int i = 0; i < lines.length; i += 1) {
+            Utils.message("%s %d) %s", ObjectFormat.current().abbreviate(owners[i]),
+                i + 1, lines[i]);
+        }
+    }
+
 
 
     /* ---------------------------------------------------- */
@@ -617,37 +1438,96 @@ public class Controller {
      * Updates the current branch to be the NEWBRANCH.
      */
     public void updateBranch(String newBranch) {
-        TinyGitFile headFile = new TinyGitFile(".tinygit/head");
-        Utils.writeContents(headFile, newBranch);
+        String branch = Refs.branch(ObjectStore.ROOT, newBranch);
+        Refs.setHead(ObjectStore.ROOT,
+            branch == null ? Refs.HEADS + newBranch : branch,
+            "checkout: moving from " + getBranch() + " to " + newBranch);
+    }
+
+    /**
+     * Returns the exit status the last command asks for: 0 unless it
+     * reports a condition, as status --quiet does for a dirty tree.
+     */
+    public int getExitStatus() {
+        return exitStatus;
     }
 
     /**
      * Returns the current branch name.
      */
     public String getBranch() {
-        TinyGitFile headFile = new TinyGitFile(".tinygit/head");
-        return Utils.readContentsAsString(headFile);
+        return Refs.shortName(currentRef());
+    }
+
+    /**
+     * Returns the full name of the current branch's ref.
+     */
+    private String currentRef() {
+        return Refs.head(ObjectStore.ROOT);
     }
 
 
+    /**
+     * Returns the id of the commit named by NAME, which is either REF@{N},
+     * the commit branch REF (the current branch if REF is empty or HEAD)
+     * pointed at N moves ago, a branch, a tag, or a unique prefix of a
+     * commit id.
+     */
+    private String resolveRevision(String name) {
+        int at = name.indexOf("@{");
+        if (at >= 0 && name.endsWith("}")) {
+            String ref = name.substring(0, at);
+            String log = ref.isEmpty() || ref.equals(Reflog.HEAD)
+                ? Reflog.HEAD : ref.equals(Stash.NAME) ? Stash.REF
+                : Refs.branch(ObjectStore.ROOT, ref);
+            if (log == null) {
+                throw Utils.error("No such branch exists.");
+            }
+            int n;
+            try {
+                n = Integer.parseInt(name.substring(at + 2, name.length() - 1));
+            } catch (NumberFormatException excp) {
+                throw Utils.error("Incorrect operands.");
+            }
+            Reflog.Entry entry = n < 0 ? null
+                : Reflog.get(ObjectStore.ROOT, log, n);
+            if (entry == null) {
+                throw Utils.error("Log for %s has no entry %d.",
+                    ref.isEmpty() ? Reflog.HEAD : ref, n);
+            }
+            return entry.getNewId();
+        }
+        String branch = Refs.branch(ObjectStore.ROOT, name);
+        if (branch != null) {
+            return Refs.read(branch);
+        }
+        String tagged = Tag.resolve(ObjectStore.ROOT, name);
+        if (tagged != null) {
+            return tagged;
+        }
+        List<String> ids = ObjectStore.commitIdsWithPrefix(name);
+        if (ids.size() != 1) {
+            throw Utils.error("No commit with that id exists.");
+        }
+        return ids.get(0);
+    }
+
     /**
      * Returns the hash of the head of the current branch.
      */
     public String getHeadHash() {
-        TinyGitFile branch = new TinyGitFile(".tinygit/Branch/" + getBranch());
-        return Utils.readContentsAsString(branch);
-
+        return Refs.read(currentRef());
     }
 
     /**
      * Returns the hash of the head of the given BRANCHNAME.
      */
     public String getHeadHash(String branchName) {
-        TinyGitFile branch = new TinyGitFile(".tinygit/Branch/" + branchName);
-        if (!branch.exists()) {
+        String branch = Refs.branch(ObjectStore.ROOT, branchName);
+        if (branch == null) {
             throw Utils.error("A branch with that name does not exist.");
         }
-        return Utils.readContentsAsString(branch);
+        return Refs.read(branch);
 
     }
 
@@ -655,8 +1535,8 @@ public class Controller {
      * Returns the head of the current branch.
      */
     public Commit getHead() {
-        String headHash = getHeadHash(getBranch());
-        TinyGitFile actualHead = new TinyGitFile(".tinygit/Commit/" + headHash);
+        String headHash = getHeadHash();
+        TinyGitFile actualHead = ObjectStore.commitFile(headHash);
         return Utils.readObject(actualHead, Commit.class);
     }
 
@@ -665,7 +1545,7 @@ public class Controller {
      */
     public Commit getHead(String branchName) {
         String headHash = getHeadHash(branchName);
-        TinyGitFile actualHead = new TinyGitFile(".tinygit/Commit/" + headHash);
+        TinyGitFile actualHead = ObjectStore.commitFile(headHash);
         return Utils.readObject(actualHead, Commit.class);
     }
 
@@ -673,11 +1553,16 @@ public class Controller {
      * Saves commit C a file in the .tinygit repository.
      */
     public void committoFile(Commit c) {
-        byte[] serialized = Utils.serialize(c);
-        String hashed = Utils.sha1(serialized);
+        String hashed = c.id();
         c.storeCommit(hashed);
-        TinyGitFile headFile = new TinyGitFile(".tinygit/Branch/" + getBranch());
-        Utils.writeContents(headFile, hashed);
+        CommitGraph.record(hashed, c);
+        String branch = currentRef();
+        boolean initial = Refs.read(branch) == null;
+        String kind = initial ? "commit (initial): "
+            : c.getOtherParentHash() != null ? "commit (merge): " : "commit: ";
+        Refs.transaction().update(branch,
+            initial ? null : c.getParentHash(), hashed)
+            .commit(kind + c.getMessage());
     }
 
     /**
@@ -693,142 +1578,38 @@ public class Controller {
      * and the given OTHER commit.
      */
     public void checkUntracked(Commit other) {
-        List<String> directory = Utils.plainFilenamesIn(".");
-        for (String file : directory) {
+        WorkTree tree = WorkTree.load();
+        SparseFilter sparse = SparseFilter.load();
+        for (String file : tree.files()) {
+            if (!sparse.includes(file) || head.getTracked().containsKey(file)
+                || !other.getTracked().containsKey(file)) {
+                continue;
+            }
             TinyGitFile temp = new TinyGitFile(file);
-            String hash = Utils.sha1(Utils.readContents(temp));
-            if (!head.getTracked().containsKey(file)
-                && other.getTracked().containsKey(file)
-                && !hash.equals(other.getTracked().get(file))) {
+            ObjectId hash = Utils.hashFile(temp);
+            if (!hash.equals(other.getTracked().get(file))) {
                 throw Utils.error("There is an untracked file in the way;"
                     + " delete it or add it first.");
             }
         }
+        tree.save();
     }
 
     /**
      * Prints a list of all the existing branches, with an asterisk next to the
-     * current branch.
+     * current one.
      */
     public void branchesStatus() {
-        List<String> branchNames = Utils.plainFilenamesIn(".tinygit/Branch");
-        Collections.sort(branchNames);
+        String current = currentRef();
 
         System.out.println("=== Branches ===");
-        for (String name : branchNames) {
-            if (getBranch().equals(name)) {
+        for (String name : Refs.list(Refs.HEADS).keySet()) {
+            if (current.equals(name)) {
                 System.out.print("*");
             }
-            System.out.println(name);
-        }
-        System.out.println();
-    }
-
-    /**
-     * Prints a list of all files in commit C staged to be added.
-     */
-    public void stageStatus(Commit c) {
-        Set<String> stagedSet = c.getStaged().keySet();
-        List<String> stagedNames = new ArrayList<>(stagedSet);
-
-        System.out.println("=== Staged Files ===");
-        Collections.sort(stagedNames);
-        for (String name : stagedNames) {
-            System.out.println(name);
+            System.out.println(Refs.shortName(name));
         }
         System.out.println();
-
-    }
-
-    /**
-     * Prints a list of all files in commit C staged to be removed.
-     */
-    public void removedStatus(Commit c) {
-        List<String> removedNames = c.getUntracked();
-        Collections.sort(removedNames);
-
-        System.out.println("=== Removed Files ===");
-        for (String name : removedNames) {
-            System.out.println(name);
-        }
-        System.out.println();
-
-    }
-
-    /**
-     * Prints a list of all files in commit C that have either
-     * been removed or modified.
-     */
-    public void modifiedStatus(Commit c) {
-        Set<String> stagedSet = c.getStaged().keySet();
-        List<String> removedNames = c.getUntracked();
-        Set<String> trackedSet = c.getTracked().keySet();
-        List<String> trackedNames = new ArrayList<>(trackedSet);
-        Collections.sort(trackedNames);
-
-        List<String> modified = new ArrayList<>();
-        System.out.println("=== Modifications Not Staged For Commit ===");
-
-        for (String name : stagedSet) {
-            TinyGitFile f = new TinyGitFile(name);
-            if (!f.exists()) {
-                modified.add(name + " (deleted)");
-            } else {
-                String fileContent = Utils.readContentsAsString(f);
-                String hashed = Utils.sha1(fileContent);
-                if (!hashed.equals(c.getStaged().get(name))) {
-                    modified.add(name + " (modified)");
-                }
-            }
-        }
-
-        for (String name : trackedNames) {
-            TinyGitFile f = new TinyGitFile(name);
-            if (!f.exists() && !removedNames.contains(name)) {
-                modified.add(name + " (deleted)");
-            }
-            if (f.exists()) {
-                String fileContent = Utils.readContentsAsString(f);
-                String hashed = Utils.sha1(fileContent);
-                if (!stagedSet.contains(name)
-                    && !hashed.equals(c.getTracked().get(name))) {
-                    modified.add(name + " (modified)");
-                }
-            }
-        }
-
-        Collections.sort(modified);
-
-        for (String mod : modified) {
-            System.out.println(mod);
-        }
-
-        System.out.println();
-
-    }
-
-    /**
-     * Prints a list of all files in the working directory that are
-     * not being tracked by commit C.
-     */
-    public void untrackedStatus(Commit c) {
-        Set<String> stagedSet = c.getStaged().keySet();
-        List<String> removedNames = c.getUntracked();
-        Set<String> trackedSet = c.getTracked().keySet();
-
-        List<String> directory = Utils.plainFilenamesIn(".");
-        Collections.sort(directory);
-
-        System.out.println("=== Untracked Files ===");
-        for (String name : directory) {
-            if (!stagedSet.contains(name) && !trackedSet.contains(name)) {
-                System.out.println(name);
-            } else if (removedNames.contains(name)) {
-                System.out.println(name);
-            }
-        }
-        System.out.println();
-
     }
 
     /**
@@ -857,9 +1638,9 @@ public class Controller {
             splitPoint = otherTracker.getParent();
             if (ancestors.contains(otherTracker.getParentHash())) {
                 if (otherTracker.getParentHash().equals(getHeadHash())) {
-                    TinyGitFile f = new TinyGitFile(
-                        ".tinygit/Branch/" + getBranch());
-                    Utils.writeContents(f, getHeadHash(branchName));
+                    Refs.transaction().update(currentRef(), getHeadHash(),
+                        getHeadHash(branchName))
+                        .commit("merge " + branchName + ": Fast-forward");
                     throw Utils.error("Current branch fast-forwarded.");
                 }
                 break;
@@ -883,96 +1664,81 @@ public class Controller {
      * and OTHERFILES.
      */
     public void fixMergeConflict(String file,
-                                 HashMap<String, String> currentFiles,
-                                 HashMap<String, String> otherFiles) {
-        TinyGitFile currentFile = new TinyGitFile(
-            ".tinygit/" + currentFiles.get(file));
-        TinyGitFile otherFile = new TinyGitFile(
-            ".tinygit/" + otherFiles.get(file));
-        TinyGitFile realfile = new TinyGitFile(file);
-        if (!currentFile.exists()) {
-            Utils.writeContents(currentFile, "");
-        }
-        if (!otherFile.exists()) {
-            Utils.writeContents(otherFile, "");
-        }
-        String currentContents = Utils.readContentsAsString(currentFile);
-        String otherContents = Utils.readContentsAsString(otherFile);
-        Utils.writeContents(realfile, "<<<<<<< HEAD\n"
-            , currentContents, "=======\n", otherContents, ">>>>>>>\n");
+                                 HashMap<String, ObjectId> currentFiles,
+                                 HashMap<String, ObjectId> otherFiles) {
+        ObjectStore.writeConflict(new TinyGitFile(file),
+            currentFiles.get(file), otherFiles.get(file));
         add("add", file);
 
     }
 
     /**
-     * Merges files tracked in CURRENTFILES with the files in SPLITFILES using
-     * the OTHERFILES from the given commit for conditions. Returns whether
-     * there are any conflicts during merging.
+     * Merges FILE, whose blob is MINE in the current head, OTHER in the
+     * given branch and BASE at the split point (hex ids, or null where
+     * absent), checking out, removing or marking a conflict in it as
+     * needed. CURRENTFILES and OTHERFILES are the files of both heads.
+     * Returns whether FILE conflicts.
      */
-    private boolean mergeSplit(HashMap<String, String> currentFiles,
-                               HashMap<String, String> otherFiles,
-                               HashMap<String, String> splitFiles) {
-        boolean foundConflict = false;
-        String headHash = getHeadHash();
-        for (String file : splitFiles.keySet()) {
-            if (currentFiles.containsKey(file)
-                && otherFiles.containsKey(file)) {
-                if (!otherFiles.get(file).equals(splitFiles.get(file))) {
-                    if (currentFiles.get(file).equals(splitFiles.get(file))) {
-                        checkout("checkout", headHash, "--", file);
-                        add("add", file);
-                    } else {
-                        fixMergeConflict(file, currentFiles, otherFiles);
-                        foundConflict = true;
-                    }
-                }
-            }
-            if (currentFiles.containsKey(file)
-                && !otherFiles.containsKey(file)) {
-                if (currentFiles.get(file).equals(splitFiles.get(file))) {
-                    remove("rm", file);
-                } else {
-                    fixMergeConflict(file, currentFiles, otherFiles);
-                    foundConflict = true;
-                }
-            }
-            if (!currentFiles.containsKey(file)
-                && otherFiles.containsKey(file)) {
-                if (!otherFiles.get(file).equals(splitFiles.get(file))) {
-                    fixMergeConflict(file, currentFiles, otherFiles);
-                    foundConflict = true;
-                }
+    private boolean mergeFile(String file, String mine, String other,
+                              String base,
+                              HashMap<String, ObjectId> currentFiles,
+                              HashMap<String, ObjectId> otherFiles) {
+        if (Objects.equals(other, base)) {
+            return false;
+        }
+        if (Objects.equals(mine, other) && (base == null || mine == null)) {
+            return false;
+        }
+        if (Objects.equals(mine, base)) {
+            if (other == null) {
+                remove("rm", file);
+            } else {
+                ObjectStore.checkoutBlob(ObjectId.fromHex(other),
+                    new TinyGitFile(file));
+                add("add", file);
             }
-
+            return false;
         }
-        return foundConflict;
+        fixMergeConflict(file, currentFiles, otherFiles);
+        return true;
     }
 
     /**
-     * Merges files tracked in OTHERFILES with the files in SPLITFILES using
-     * the CURRENTFILES from the given commit for conditions. Returns whether
-     * there are any conflicts during merging. Uses BRANCHNAME.
+     * Writes the files of C that SPARSE includes to the working directory,
+     * several at a time.
      */
-    private boolean mergeOther(HashMap<String, String> currentFiles,
-                               HashMap<String, String> otherFiles,
-                               HashMap<String, String> splitFiles,
-                               String branchName) {
-        boolean foundConflict = false;
-        for (String file : otherFiles.keySet()) {
-            if (!currentFiles.containsKey(file)
-                && !splitFiles.containsKey(file)) {
-                checkout("checkout", getHeadHash(branchName), "--", file);
-                add("add", file);
+    private void checkoutFiles(Commit c, SparseFilter sparse) {
+        IoScheduler.forEach(c.getTracked().entrySet(), entry -> {
+            if (sparse.includes(entry.getKey())) {
+                ObjectStore.checkoutBlob(entry.getValue(),
+                    new TinyGitFile(entry.getKey()));
             }
-            if (!splitFiles.containsKey(file)
-                && currentFiles.containsKey(file)) {
-                if (currentFiles.get(file).equals(otherFiles.get(file))) {
-                    fixMergeConflict(file, currentFiles, otherFiles);
-                    foundConflict = true;
-                }
+        });
+    }
+
+    /**
+     * Fetches in one batch the blobs of C's files that SPARSE includes
+     * and the local repository lacks, if it has a promisor.
+     */
+    private void prefetch(Commit c, SparseFilter sparse) {
+        List<ObjectId> ids = new ArrayList<>();
+        for (String file : c.getTracked().keySet()) {
+            if (sparse.includes(file)) {
+                ids.add(c.getTracked().get(file));
             }
         }
-        return foundConflict;
+        Promisor.prefetch(ids);
+    }
+
+    /**
+     * Returns the contents of the blob HASH, or an empty string if the
+     * file it stands for is not tracked (HASH is null).
+     */
+    private String blobContents(ObjectId hash) {
+        if (hash == null) {
+            return "";
+        }
+        return new String(ObjectStore.readBlob(hash), StandardCharsets.UTF_8);
     }
 
     /* ---------------------------------------------------- */
@@ -985,9 +1751,12 @@ public class Controller {
      * repository.
      */
     public String getRemoteBranch(String remote, String remoteBranch) {
-        String branchPath = getRemotePath(remote) + "/Branch/" + remoteBranch;
-        TinyGitFile remoteGitlet = new TinyGitFile(branchPath);
-        return Utils.readContentsAsString(remoteGitlet);
+        String hash = Refs.read(getRemotePath(remote),
+            Refs.HEADS + remoteBranch);
+        if (hash == null) {
+            throw Utils.error("That remote does not have that branch.");
+        }
+        return hash;
 
     }
 
@@ -995,27 +1764,43 @@ public class Controller {
      * Returns the path to the REMOTE branch.
      */
     public String getRemotePath(String remote) {
-        TinyGitFile remoteFile = new TinyGitFile(".tinygit/Remote/" + remote);
-        String remotePath = Utils.readContentsAsString(remoteFile);
+        String remotePath = remoteLocation(remote);
+        if (Transport.isUrl(remotePath)) {
+            throw Utils.error("Remote %s is served, not a directory.", remote);
+        }
         TinyGitFile remoteGitlet = new TinyGitFile(remotePath);
         if (!remoteGitlet.exists()) {
             throw Utils.error("Remote directory not found.");
         }
+        ObjectFormat remoteFormat = ObjectFormat.read(remotePath);
+        if (remoteFormat != ObjectFormat.current()) {
+            throw Utils.error("Remote repository uses the %s object format,"
+                + " not %s.", remoteFormat, ObjectFormat.current());
+        }
+        Refs.migrate(remotePath);
         return remotePath;
 
     }
 
+    /**
+     * Returns where REMOTE lives: the path of its repository directory or
+     * the URL of the server serving it.
+     */
+    private String remoteLocation(String remote) {
+        TinyGitFile remoteFile = new TinyGitFile(".tinygit/Remote/" + remote);
+        return Utils.readContentsAsString(remoteFile);
+    }
+
     /**
      * Checks whether the REMOTECOMMIT exists in the ancestry of the local
      * head. Returns a list of future commits if so.
      */
     private List<String> checkAncestry(String remoteCommit) {
         String currentHash = getHeadHash();
-        String nullHash = Utils.sha1(Utils.serialize(null));
 
         ArrayList<String> history = new ArrayList<>();
 
-        while (!currentHash.equals(nullHash)) {
+        while (!Commit.isRootParent(currentHash)) {
             if (remoteCommit.equals(currentHash)) {
                 return history;
             }
@@ -1025,4 +1810,166 @@ public class Controller {
         }
         throw Utils.error("Please pull down remote changes before pushing.");
     }
+
+    /**
+     * Copies every blob and chunk manifest of the repository rooted at
+     * FROM that the repository rooted at TO lacks. Chunks are blobs, so
+     * only the chunks TO lacks are copied. If LIMIT is not negative, only
+     * blobs of at most LIMIT bytes are copied, and no manifests.
+     */
+    private void copyBlobs(String from, String to, long limit) {
+        IoScheduler.forEach(ObjectStore.blobIds(from), hash -> {
+            if (!ObjectStore.hasBlob(to, hash)) {
+                TinyGitFile blob = ObjectStore.blobFile(from, hash);
+                if (limit < 0 || blob.length() <= limit) {
+                    ObjectStore.copyBlob(from, to, hash);
+                }
+            }
+        });
+        if (limit >= 0) {
+            return;
+        }
+        IoScheduler.forEach(ObjectStore.manifestIds(from), hash -> {
+            TinyGitFile manifest = ObjectStore.manifestFile(to, hash);
+            if (!manifest.isFile()) {
+                manifest.getParentFile().mkdirs();
+                Utils.writeContents(manifest, Utils.readContents(
+                    ObjectStore.manifestFile(from, hash)));
+            }
+        });
+    }
+
+    /**
+     * Copies from the repository rooted at REMOTEPATH the commits at most
+     * DEPTH generations back from commit START (which is generation 1),
+     * adding them to FETCHED. Stops early at local commits, whose history
+     * is already present, except at shallow ones if THROUGHSHALLOW. Adds
+     * to BOUNDARY the commits of generation DEPTH whose parents are not
+     * local.
+     */
+    private void fetchHistory(String remotePath, String start, int depth,
+                              boolean throughShallow, Set<String> boundary,
+                              Set<String> fetched) {
+        HashMap<String, Integer> generation = new HashMap<>();
+        ArrayList<String> queue = new ArrayList<>();
+        generation.put(start, 1);
+        queue.add(start);
+        for (int i = 0; i < queue.size(); i += 1) {
+            String hash = queue.get(i);
+            boolean local = ObjectStore.commitFile(hash).isFile();
+            if (local && !(throughShallow
+                           && Shallow.commits().contains(hash))) {
+                continue;
+            }
+            Commit c = Utils.readObject(
+                ObjectStore.commitFile(remotePath, hash), Commit.class);
+            if (!local) {
+                c.storeCommit(hash);
+                fetched.add(hash);
+            }
+            List<String> parents = new ArrayList<>();
+            for (String parent : Arrays.asList(c.getParentHash(),
+                                               c.getOtherParentHash())) {
+                if (parent != null && !parent.equals(
+                        Utils.hash(Utils.serialize(null)))) {
+                    parents.add(parent);
+                }
+            }
+            int g = generation.get(hash);
+            if (g >= depth) {
+                for (String parent : parents) {
+                    if (!ObjectStore.commitFile(parent).isFile()) {
+                        boundary.add(hash);
+                    }
+                }
+                continue;
+            }
+            for (String parent : parents) {
+                if (!generation.containsKey(parent)) {
+                    generation.put(parent, g + 1);
+                    queue.add(parent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Copies from the repository rooted at REMOTEPATH the blobs of the
+     * COMMITS that the local repository lacks. If LIMIT is not negative,
+     * only blobs of at most LIMIT bytes are copied.
+     */
+    private void copyCommitBlobs(String remotePath, Set<String> commits,
+                                 long limit) {
+        Set<String> blobs = new HashSet<>();
+        for (String hash : commits) {
+            for (ObjectId id : Commit.loadCommit(hash).getTracked().values()) {
+                blobs.add(id.toString());
+            }
+        }
+        IoScheduler.forEach(blobs, hash -> {
+            if (ObjectStore.isStored(ObjectStore.ROOT, hash)) {
+                return;
+            }
+            if (limit >= 0 && (!ObjectStore.hasBlob(remotePath, hash)
+                || ObjectStore.blobFile(remotePath, hash).length() > limit)) {
+                return;
+            }
+            ObjectStore.copyBlob(remotePath, ObjectStore.ROOT, hash);
+        });
+    }
+
+    /**
+     * Returns the number of generations given as the fetch operand COUNT.
+     */
+    private int generations(String count) {
+        try {
+            int result = Integer.parseInt(count);
+            if (result > 0) {
+                return result;
+            }
+        } catch (NumberFormatException excp) {
+            // Reported below.
+        }
+        throw Utils.error("Incorrect operands.");
+    }
+
+    /**
+     * Returns the largest blob size allowed by the fetch FILTER, or 0 if
+     * it allows none.
+     */
+    private long blobLimit(String filter) {
+        if (filter.equals("--filter=blob:none")) {
+            return 0;
+        }
+        String prefix = "--filter=blob:limit=";
+        if (!filter.startsWith(prefix)
+            || !filter.matches(".*=[0-9]+[kmgKMG]?")) {
+            throw Utils.error("Incorrect operands.");
+        }
+        String size = filter.substring(prefix.length()).toLowerCase();
+        int shift = 0;
+        switch (size.charAt(size.length() - 1)) {
+        case 'k':
+            shift = 10;
+            break;
+        case 'm':
+            shift = 20;
+            break;
+        case 'g':
+            shift = 30;
+            break;
+        default:
+            return Long.parseLong(size);
+        }
+        return Long.parseLong(size.substring(0, size.length() - 1)) << shift;
+    }
+
+    /**
+     * Returns the working directory prefix of the remote repository
+     * whose .tinygit directory is REMOTEPATH.
+     */
+    private String remoteWorkingPath(String remotePath) {
+        return remotePath.substring(0,
+            remotePath.length() - ObjectStore.ROOT.length());
+    }
 }
@@ -5,13 +5,27 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
 import java.io.PrintStream;
+import java.io.Serializable;
+import java.net.Socket;
 import java.nio.file.FileVisitOption;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
 import java.util.Comparator;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Random;
+import java.util.zip.DeflaterOutputStream;
 
 import static org.junit.Assert.*;
 
@@ -37,14 +51,17 @@ public class ControllerTest {
         System.setOut(null);
         Utils.restrictedDelete(fileOne);
         Utils.restrictedDelete(fileTwo);
-        Path dirPath = Paths.get("./.tinygit");
+        deleteTree("./.tinygit");
+    }
+
+    public void deleteTree(String dir) throws Exception {
+        Path dirPath = Paths.get(dir);
         if (Files.exists(dirPath)) {
             Files.walk(dirPath, FileVisitOption.FOLLOW_LINKS)
                 .sorted(Comparator.reverseOrder())
                 .map(Path::toFile)
                 .forEach(File::delete);
         }
-
     }
 
     public void writeFile(String name, String content) {
@@ -52,6 +69,38 @@ public class ControllerTest {
         Utils.writeContents(f, content);
     }
 
+    /**
+     * Pushes to the master branch of repo on SERVER from OLDID to NEWID,
+     * sending commit HASH as CONTENTS unless HASH is null, and returns
+     * the server's answer.
+     */
+    public String rawPush(Server server, String oldId, String newId,
+                          String hash, byte[] contents) throws Exception {
+        try (Socket socket = new Socket("localhost", server.port());
+             DataInputStream in =
+                 new DataInputStream(socket.getInputStream());
+             DataOutputStream out =
+                 new DataOutputStream(socket.getOutputStream())) {
+            out.writeUTF(Server.PUSH);
+            out.writeUTF("repo");
+            out.flush();
+            in.readUTF();
+            Server.readList(in);
+            out.writeUTF(Refs.HEADS + "master");
+            out.writeUTF(oldId);
+            out.writeUTF(newId);
+            if (hash != null) {
+                out.writeByte(Pack.COMMIT);
+                out.writeUTF(hash);
+                out.writeInt(contents.length);
+                out.write(contents);
+            }
+            out.writeByte(Pack.END);
+            out.flush();
+            return in.readUTF();
+        }
+    }
+
     @Test
     public void init() throws Exception {
         TinyGitFile hidden = new TinyGitFile(".tinygit");
@@ -74,8 +123,8 @@ public class ControllerTest {
 
         TinyGitFile trueFile = new TinyGitFile(fileOne);
 
-        String fileHash = head.getStaged().get(fileOne);
-        TinyGitFile hashedFile = new TinyGitFile(".tinygit/" + fileHash);
+        ObjectId fileHash = head.getStaged().get(fileOne);
+        TinyGitFile hashedFile = ObjectStore.blobFile(fileHash);
         assertEquals(true, hashedFile.exists());
 
         String trueFileContents = Utils.readContentsAsString(trueFile);
@@ -86,6 +135,132 @@ public class ControllerTest {
 
     }
 
+    @Test
+    public void migrateFlatLayout() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "flat");
+        String headHash = c.getHeadHash();
+        ObjectId blobHash = c.getHead().getTracked().get(fileOne);
+
+        TinyGitFile blob = ObjectStore.blobFile(blobHash);
+        TinyGitFile commit = ObjectStore.commitFile(headHash);
+        assertEquals(true, blob.renameTo(
+            new TinyGitFile(".tinygit/" + blobHash)));
+        assertEquals(true, commit.renameTo(
+            new TinyGitFile(".tinygit/Commit/" + headHash)));
+        Files.walk(Paths.get(".tinygit/objects"))
+            .sorted(Comparator.reverseOrder())
+            .map(Path::toFile)
+            .forEach(File::delete);
+
+        c.parseLine("log");
+        assertEquals(true, ObjectStore.blobFile(blobHash).exists());
+        assertEquals(true, ObjectStore.commitFile(headHash).exists());
+        assertEquals(false, new TinyGitFile(".tinygit/" + blobHash).exists());
+    }
+
+    @Test
+    public void resumeMigration() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "flat");
+        ObjectId moved = c.getHead().getTracked().get(fileOne);
+        ObjectId flat = c.getHead().getTracked().get(fileTwo);
+
+        String hash = moved.toString();
+        TinyGitFile half = new TinyGitFile(".tinygit/objects.migrating/"
+            + hash.substring(0, 2) + "/" + hash.substring(2));
+        half.getParentFile().mkdirs();
+        assertEquals(true, ObjectStore.blobFile(moved).renameTo(half));
+        assertEquals(true, ObjectStore.blobFile(flat).renameTo(
+            new TinyGitFile(".tinygit/" + flat)));
+        deleteTree(".tinygit/objects");
+
+        c.parseLine("log");
+        assertEquals(true, ObjectStore.blobFile(moved).exists());
+        assertEquals(true, ObjectStore.blobFile(flat).exists());
+        assertEquals(false,
+            new TinyGitFile(".tinygit/objects.migrating").exists());
+    }
+
+    /**
+     * A commit tracking a.txt, serialized by a build from before ObjectId
+     * gained writeTo.
+     */
+    private static final String OLD_COMMIT =
+        "rO0ABXNyAA50aW55Z2l0LkNvbW1pdA1xs0hS+jQcAgAHTAAIX21lc3NhZ2V0"
+        + "ABJMamF2YS9sYW5nL1N0cmluZztMABVfb3RoZXJQYXJlbnRSZWZlcmVuY2Vx"
+        + "AH4AAUwAEF9wYXJlbnRSZWZlcmVuY2VxAH4AAUwAB19zdGFnZWR0ABNMamF2"
+        + "YS91dGlsL0hhc2hNYXA7TAAFX3RpbWV0ABBMamF2YS91dGlsL0RhdGU7TAAI"
+        + "X3RyYWNrZWRxAH4AAkwACl91bnRyYWNrZWR0ABVMamF2YS91dGlsL0FycmF5"
+        + "TGlzdDt4cHQAFndyaXR0ZW4gYmVmb3JlIHdyaXRlVG9wdAAoYzgxNWYzNDY5"
+        + "MWJlMzUzY2FhOWRlOTNiYmRiMDBhMzFmNjJhOWVkM3NyABFqYXZhLnV0aWwu"
+        + "SGFzaE1hcAUH2sHDFmDRAwACRgAKbG9hZEZhY3RvckkACXRocmVzaG9sZHhw"
+        + "P0AAAAAAAAB3CAAAABAAAAAAeHNyAA5qYXZhLnV0aWwuRGF0ZWhqgQFLWXQZ"
+        + "AwAAeHB3CAAAAAAAAAAAeHNxAH4ACD9AAAAAAAAMdwgAAAAQAAAAAXQABWEu"
+        + "dHh0c3IAEHRpbnlnaXQuT2JqZWN0SWTQ/m53Mg4trgIAAVsABl9ieXRlc3QA"
+        + "AltCeHB1cgACW0Ks8xf4BghU4AIAAHhwAAAAFAEjRWeJq83vASNFZ4mrze8B"
+        + "I0VneHNyABNqYXZhLnV0aWwuQXJyYXlMaXN0eIHSHZnHYZ0DAAFJAARzaXpl"
+        + "eHAAAAAAdwQAAAAAeA==";
+
+    @Test
+    public void readOldCommit() throws Exception {
+        TinyGitFile file = new TinyGitFile(".tinygit/old-commit");
+        Utils.writeContents(file, Base64.getDecoder().decode(OLD_COMMIT));
+        Commit old = Utils.readObject(file, Commit.class);
+        assertEquals("written before writeTo", old.getMessage());
+        assertEquals("0123456789abcdef0123456789abcdef01234567",
+            old.getTracked().get("a.txt").toString());
+        assertFalse(old.isEncoded());
+
+        String id = Utils.sha1("old");
+        ObjectStore.writeCommit(ObjectStore.ROOT, id, old);
+        try {
+            new Pack(ObjectStore.ROOT, ObjectFormat.current()).encoding(id);
+            fail("sent a commit whose id cannot be checked");
+        } catch (TinyGitException e) {
+            assertEquals("Commit " + id + " was made by an older version"
+                + " and cannot be sent.", e.getMessage());
+        }
+    }
+
+    @Test
+    public void commitEncoding() throws Exception {
+        ObjectFormat format = ObjectFormat.current();
+        HashMap<String, ObjectId> tracked = new HashMap<>();
+        HashMap<String, ObjectId> reversed = new HashMap<>(1);
+        for (int i = 0; i < 20; i += 1) {
+            tracked.put("f" + i, Utils.sha1Id("file " + i));
+            reversed.put("f" + (19 - i), Utils.sha1Id("file " + (19 - i)));
+        }
+        HashMap<String, ObjectId> staged = new HashMap<>();
+        staged.put("g", Utils.sha1Id("g"));
+        Commit made = new Commit("m\u00e9ssage", new Date(7), Utils.sha1("p"),
+            tracked, staged, new ArrayList<>());
+        Commit same = new Commit("m\u00e9ssage", new Date(7), Utils.sha1("p"),
+            reversed, new HashMap<>(), new ArrayList<>());
+        assertEquals(made.id(), same.id());
+
+        Commit decoded = Commit.decode(made.encode(), format);
+        assertEquals(made.id(), decoded.id(format));
+        assertEquals("m\u00e9ssage", decoded.getMessage());
+        assertEquals(tracked, decoded.getTracked());
+        assertTrue(decoded.getStaged().isEmpty());
+        try {
+            Commit.decode(Arrays.copyOf(made.encode(), 40), format);
+            fail("decoded a truncated commit");
+        } catch (IllegalArgumentException e) {
+            // Expected: the encoding ends inside the tracked files.
+        }
+    }
+
+    @Test
+    public void digestAfterFailedHash() throws Exception {
+        ObjectFormat.current().digest().update("cut short".getBytes());
+        assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d",
+            Utils.hash("abc"));
+    }
+
     @Test
     public void addError() throws Exception {
         TinyGitFile f = new TinyGitFile(fileOne);
@@ -143,6 +318,962 @@ public class ControllerTest {
 
     }
 
+    @Test
+    public void logPath() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "first one");
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "only two");
+        writeFile(fileOne, "Hello again");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "second one");
+        outContent.reset();
+
+        c.parseLine("log", "--", fileOne);
+        String log = outContent.toString();
+        assertEquals(true, log.contains("first one"));
+        assertEquals(true, log.contains("second one"));
+        assertEquals(false, log.contains("only two"));
+        assertEquals(false, log.contains("initial commit"));
+    }
+
+    @Test
+    public void blame() throws Exception {
+        writeFile(fileOne, "a\nb\nc\n");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "abc");
+        String first = c.getHeadHash();
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "unrelated");
+        writeFile(fileOne, "a\nB\nc\nd\n");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "change b, add d");
+        String last = c.getHeadHash();
+
+        String[] owners = Blame.annotate(last, fileOne);
+        assertEquals(4, owners.length);
+        assertEquals(first, owners[0]);
+        assertEquals(last, owners[1]);
+        assertEquals(first, owners[2]);
+        assertEquals(last, owners[3]);
+
+        outContent.reset();
+        c.parseLine("blame", fileOne);
+        String[] lines = outContent.toString().split("\n");
+        assertEquals(first.substring(0, 7) + " 1) a", lines[0]);
+        assertEquals(last.substring(0, 7) + " 2) B", lines[1]);
+    }
+
+    @Test
+    public void objectIds() throws Exception {
+        String hex = Utils.sha1("contents");
+        ObjectId id = Utils.sha1Id("contents");
+        assertEquals(hex, id.toString());
+        assertEquals(id, ObjectId.fromHex(hex));
+        assertEquals(id.hashCode(), ObjectId.fromHex(hex).hashCode());
+
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "ids");
+        Commit head = Commit.loadCommit(c.getHeadHash());
+        assertEquals(Utils.sha1Id(Utils.readContents(
+            new TinyGitFile(fileOne))), head.getTracked().get(fileOne));
+    }
+
+    @Test
+    public void sha256Format() throws Exception {
+        deleteTree("./.tinygit");
+        c.parseLine("init", "--object-format=sha256");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "sha256");
+        String headHash = c.getHeadHash();
+        assertEquals(64, headHash.length());
+        assertEquals(64, c.getHead().getTracked().get(fileOne).hexLength());
+        assertEquals("sha256", Commit.loadCommit(headHash.substring(0, 7))
+            .getMessage());
+
+        new File("remote").mkdir();
+        Controller remote = new Controller();
+        TinyGitFile.setRemotePath("remote/");
+        try {
+            remote.parseLine("init");
+        } finally {
+            TinyGitFile.setRemotePath("");
+        }
+        c.parseLine("add-remote", "origin", "remote/.tinygit");
+        try {
+            c.parseLine("push", "origin", "master");
+            fail("pushed to a sha1 repository");
+        } catch (TinyGitException e) {
+            assertEquals("Remote repository uses the sha1 object format,"
+                + " not sha256.", e.getMessage());
+        } finally {
+            deleteTree("remote");
+        }
+    }
+
+    @Test
+    public void chunkedBlobs() throws Exception {
+        c.parseLine("config", "chunk.threshold", "1024");
+        byte[] data = new byte[1 << 20];
+        new Random(1).nextBytes(data);
+        TinyGitFile f = new TinyGitFile(fileOne);
+        Utils.writeContents(f, data);
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "big");
+        String first = c.getHeadHash();
+        ObjectId id = c.getHead().getTracked().get(fileOne);
+        assertEquals(Utils.hashId(data), id);
+        assertNotNull(ObjectStore.chunks(ObjectStore.ROOT, id.toString()));
+        int blobs = ObjectStore.blobIds(ObjectStore.ROOT).size();
+
+        Utils.writeContents(f, data, "one more line\n");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "appended");
+        assertEquals(blobs + 1, ObjectStore.blobIds(ObjectStore.ROOT).size());
+
+        c.parseLine("checkout", first, "--", fileOne);
+        assertArrayEquals(data, Utils.readContents(f));
+    }
+
+    @Test
+    public void sparseCheckout() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "two files");
+        c.parseLine("branch", "other");
+
+        c.parseLine("sparse-checkout", "set", "test*", "!*.md");
+        assertEquals(true, new TinyGitFile(fileOne).exists());
+        assertEquals(false, new TinyGitFile(fileTwo).exists());
+
+        outContent.reset();
+        c.parseLine("status");
+        assertEquals(false, outContent.toString().contains(fileTwo));
+
+        c.parseLine("checkout", "other");
+        assertEquals(false, new TinyGitFile(fileTwo).exists());
+        assertEquals(2, c.getHead().getTracked().size());
+
+        c.parseLine("sparse-checkout", "disable");
+        assertEquals(true, new TinyGitFile(fileTwo).exists());
+    }
+
+    @Test
+    public void partialFetch() throws Exception {
+        new File("remote").mkdir();
+        Controller remote = new Controller();
+        TinyGitFile.setRemotePath("remote/");
+        try {
+            remote.parseLine("init");
+            writeFile("remoteFile.txt", "from the remote");
+            remote.parseLine("add", "remoteFile.txt");
+            remote.parseLine("commit", "remote commit");
+        } finally {
+            TinyGitFile.setRemotePath("");
+        }
+        try {
+            c.parseLine("add-remote", "origin", "remote/.tinygit");
+            c.parseLine("fetch", "origin", "master", "--filter=blob:none");
+            assertEquals(0, ObjectStore.blobIds(ObjectStore.ROOT).size());
+            assertEquals("origin", Config.get(Promisor.REMOTE));
+
+            c.parseLine("checkout", "origin/master");
+            assertEquals("from the remote", Utils.readContentsAsString(
+                new TinyGitFile("remoteFile.txt")));
+            assertEquals(1, ObjectStore.blobIds(ObjectStore.ROOT).size());
+        } finally {
+            Utils.restrictedDelete("remoteFile.txt");
+            deleteTree("remote");
+        }
+    }
+
+    @Test
+    public void shallowFetch() throws Exception {
+        new File("remote").mkdir();
+        Controller remote = new Controller();
+        String first = null;
+        TinyGitFile.setRemotePath("remote/");
+        try {
+            remote.parseLine("init");
+            writeFile("stable.txt", "never changes\n");
+            remote.parseLine("add", "stable.txt");
+            for (int i = 1; i <= 4; i += 1) {
+                writeFile("remoteFile.txt", "version " + i);
+                remote.parseLine("add", "remoteFile.txt");
+                remote.parseLine("commit", "remote " + i);
+                if (i == 1) {
+                    first = remote.getHeadHash();
+                }
+            }
+        } finally {
+            TinyGitFile.setRemotePath("");
+        }
+        try {
+            c.parseLine("add-remote", "origin", "remote/.tinygit");
+            c.parseLine("fetch", "origin", "master", "--depth", "2");
+            c.parseLine("checkout", "origin/master");
+            assertEquals(1, Shallow.commits().size());
+            outContent.reset();
+            c.parseLine("log");
+            assertEquals(true, outContent.toString().contains("remote 3"));
+            assertEquals(false, outContent.toString().contains("remote 2"));
+            String boundary = Shallow.commits().iterator().next();
+            String head = c.getHeadHash();
+            assertEquals(boundary, Blame.annotate(head, "stable.txt")[0]);
+            outContent.reset();
+            c.parseLine("log", "--", "stable.txt");
+            assertEquals(true, outContent.toString().contains("remote 3"));
+
+            c.parseLine("fetch", "origin", "master", "--deepen", "1");
+            outContent.reset();
+            c.parseLine("log");
+            assertEquals(true, outContent.toString().contains("remote 2"));
+            assertEquals(false, outContent.toString().contains("remote 1"));
+            boundary = Shallow.commits().iterator().next();
+            assertEquals(boundary, Blame.annotate(head, "stable.txt")[0]);
+            outContent.reset();
+            c.parseLine("log", "--", "stable.txt");
+            assertEquals(false, outContent.toString().contains("remote 3"));
+            assertEquals(true, outContent.toString().contains("remote 2"));
+
+            c.parseLine("fetch", "origin", "master");
+            assertEquals(false, Shallow.isShallow());
+            outContent.reset();
+            c.parseLine("log");
+            assertEquals(true, outContent.toString().contains("remote 1"));
+            assertEquals(first, Blame.annotate(head, "stable.txt")[0]);
+            outContent.reset();
+            c.parseLine("log", "--", "stable.txt");
+            assertEquals(false, outContent.toString().contains("remote 3"));
+            assertEquals(true, outContent.toString().contains("remote 1"));
+        } finally {
+            Utils.restrictedDelete("remoteFile.txt");
+            Utils.restrictedDelete("stable.txt");
+            deleteTree("remote");
+        }
+    }
+
+    @Test
+    public void bundle() throws Exception {
+        c.parseLine("config", Config.CHUNK_THRESHOLD, "1");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "first");
+        String first = c.getHeadHash();
+        c.parseLine("bundle", "create", "full.bundle", "master");
+        writeFile(fileTwo, "second version");
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "second");
+        c.parseLine("bundle", "create", "delta.bundle", "master",
+            "^" + first);
+
+        new File("remote").mkdir();
+        Controller remote = new Controller();
+        TinyGitFile.setRemotePath("remote/");
+        try {
+            remote.parseLine("init");
+            try {
+                remote.parseLine("bundle", "fetch", "../delta.bundle");
+                fail("fetched a bundle without its prerequisite");
+            } catch (TinyGitException e) {
+                assertEquals(true, e.getMessage().contains("prerequisite"));
+            }
+            remote.parseLine("bundle", "fetch", "../full.bundle");
+            remote.parseLine("bundle", "fetch", "../delta.bundle");
+            remote.parseLine("checkout", "bundle/master");
+            assertEquals("second version", Utils.readContentsAsString(
+                new TinyGitFile(fileTwo)));
+            assertEquals(true, new TinyGitFile(fileOne).exists());
+
+            ByteArrayOutputStream bad = new ByteArrayOutputStream();
+            bad.write((Bundle.SIGNATURE + "\n\n").getBytes());
+            try (DataOutputStream out = new DataOutputStream(
+                     new DeflaterOutputStream(bad))) {
+                out.writeByte(Pack.BLOB);
+                out.writeUTF(Utils.sha1("huge"));
+                out.writeInt(Integer.MAX_VALUE);
+            }
+            Files.write(new File("bad.bundle").toPath(), bad.toByteArray());
+            try {
+                remote.parseLine("bundle", "fetch", "../bad.bundle");
+                fail("allocated a record of the length claimed");
+            } catch (TinyGitException e) {
+                assertEquals("Pack is corrupt: bad record length.",
+                    e.getMessage());
+            }
+        } finally {
+            TinyGitFile.setRemotePath("");
+            deleteTree("remote");
+            Utils.restrictedDelete("full.bundle");
+            Utils.restrictedDelete("delta.bundle");
+            Utils.restrictedDelete("bad.bundle");
+        }
+    }
+
+    @Test
+    public void statusModes() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "one");
+        c.parseLine("status", "--quiet");
+        assertEquals(1, c.getExitStatus());
+
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "two");
+        outContent.reset();
+        c.parseLine("status", "--quiet");
+        assertEquals(0, c.getExitStatus());
+        assertEquals("", outContent.toString());
+
+        writeFile(fileOne, "changed");
+        writeFile("new.txt", "new");
+        c.parseLine("rm", fileTwo);
+        outContent.reset();
+        c.parseLine("status", "--porcelain");
+        assertEquals("?? new.txt\nD  otherFile.txt\n M testFile.txt\n",
+            outContent.toString().replace("\r", ""));
+        c.parseLine("status", "--quiet");
+        assertEquals(1, c.getExitStatus());
+        Utils.restrictedDelete("new.txt");
+    }
+
+    @Test
+    public void fsmonitor() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "one");
+        Thread watcher = new Thread(FsMonitor::watch);
+        watcher.start();
+        try {
+            while (!FsMonitor.isRunning()) {
+                Thread.sleep(1);
+            }
+            outContent.reset();
+            c.parseLine("status", "--porcelain");
+            assertEquals("?? otherFile.txt\n",
+                outContent.toString().replace("\r", ""));
+            assertTrue(new File(".tinygit/fsmonitor/snapshot").isFile());
+
+            writeFile(fileOne, "changed");
+            writeFile("new.txt", "new");
+            Utils.restrictedDelete(fileTwo);
+            outContent.reset();
+            c.parseLine("status", "--porcelain");
+            assertEquals("?? new.txt\n M testFile.txt\n",
+                outContent.toString().replace("\r", ""));
+
+            Files.write(Paths.get(".tinygit/fsmonitor/journal"),
+                "/overflow\n".getBytes(), StandardOpenOption.APPEND);
+            writeFile(fileOne, "Hello there");
+            outContent.reset();
+            c.parseLine("status", "--porcelain");
+            assertEquals("?? new.txt\n",
+                outContent.toString().replace("\r", ""));
+
+            for (int i = 0; i < 20; i += 1) {
+                boolean changed = i % 2 == 0;
+                writeFile(fileOne, changed ? "changed" : "Hello there");
+                outContent.reset();
+                c.parseLine("status", "--porcelain");
+                assertEquals(changed ? "?? new.txt\n M testFile.txt\n"
+                    : "?? new.txt\n", outContent.toString().replace("\r", ""));
+            }
+        } finally {
+            FsMonitor.stop();
+            watcher.join();
+            Utils.restrictedDelete("new.txt");
+        }
+        assertFalse(FsMonitor.isRunning());
+        outContent.reset();
+        c.parseLine("status", "--porcelain");
+        assertEquals("", outContent.toString());
+    }
+
+    @Test
+    public void refs() throws Exception {
+        String master = c.getHeadHash();
+        for (int i = 0; i < 50; i += 1) {
+            c.parseLine("branch", "ci-" + i);
+        }
+        c.parseLine("pack-refs");
+        assertFalse(new File(".tinygit/refs/heads/ci-7").exists());
+        assertEquals(master, Refs.read(Refs.HEADS + "ci-7"));
+        assertEquals(51, Refs.list(Refs.HEADS).size());
+        assertEquals(11, Refs.list(Refs.HEADS + "ci-1").size());
+
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "loose");
+        assertEquals(c.getHeadHash(), Refs.read(Refs.HEADS + "master"));
+        assertTrue(new File(".tinygit/refs/heads/master").isFile());
+        c.parseLine("rm-branch", "ci-7");
+        assertNull(Refs.read(Refs.HEADS + "ci-7"));
+        assertEquals(50, Refs.list(Refs.HEADS).size());
+
+        try {
+            Refs.transaction().update(Refs.HEADS + "ci-8", master, "x")
+                .create(Refs.HEADS + "ci-9", "y").commit("test");
+            fail("transaction should have been refused");
+        } catch (TinyGitException excp) {
+            assertEquals(master, Refs.read(Refs.HEADS + "ci-8"));
+        }
+        try {
+            Refs.transaction().create(Refs.HEADS + "ci-8/sub", master)
+                .commit("test");
+            fail("transaction should have been refused");
+        } catch (TinyGitException excp) {
+            assertNull(Refs.read(Refs.HEADS + "ci-8/sub"));
+        }
+
+        deleteTree(".tinygit/refs");
+        new File(".tinygit/packed-refs").delete();
+        new File(".tinygit/Branch/origin").mkdirs();
+        writeFile(".tinygit/Branch/master", master);
+        writeFile(".tinygit/Branch/origin/master", master);
+        writeFile(".tinygit/head", "master");
+        c.parseLine("branch", "after");
+        assertFalse(new File(".tinygit/Branch").exists());
+        assertEquals(master, Refs.read(Refs.REMOTES + "origin/master"));
+        assertEquals(master, Refs.read(Refs.HEADS + "after"));
+        assertEquals("master", c.getBranch());
+    }
+
+    @Test
+    public void reflog() throws Exception {
+        String initial = c.getHeadHash();
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "one");
+        String one = c.getHeadHash();
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "two");
+        String two = c.getHeadHash();
+        c.parseLine("reset", initial);
+        c.parseLine("branch", "side");
+        c.parseLine("checkout", "side");
+
+        Reflog.Entry latest = Reflog.get(ObjectStore.ROOT, Reflog.HEAD, 0);
+        assertEquals("checkout: moving from master to side",
+            latest.getMessage());
+        assertEquals(5, Reflog.read(ObjectStore.ROOT, Reflog.HEAD).size());
+        assertEquals(4, Reflog.read(ObjectStore.ROOT,
+            Refs.HEADS + "master").size());
+
+        c.parseLine("reset", "master@{1}");
+        assertEquals(two, c.getHeadHash());
+        c.parseLine("reset", "@{4}");
+        assertEquals(one, c.getHeadHash());
+
+        outContent.reset();
+        c.parseLine("log", "-g", "master");
+        String log = outContent.toString();
+        assertTrue(log.startsWith("===\nReflog: master@{0} (reset: moving to "
+            + initial + ")\ncommit " + initial));
+        assertTrue(log.contains("Reflog: master@{3} (commit (initial):"
+            + " initial commit)"));
+
+        c.parseLine("config", Reflog.ENTRIES, "2");
+        c.parseLine("reflog", "expire");
+        assertEquals(2, Reflog.read(ObjectStore.ROOT, Reflog.HEAD).size());
+        assertEquals(one, Reflog.get(ObjectStore.ROOT, Reflog.HEAD, 0)
+            .getNewId());
+        c.parseLine("checkout", "master");
+        c.parseLine("checkout", "side");
+        assertEquals(4, Reflog.read(ObjectStore.ROOT, Reflog.HEAD).size());
+        c.parseLine("checkout", "master");
+        assertEquals(2, Reflog.read(ObjectStore.ROOT, Reflog.HEAD).size());
+        assertEquals("checkout: moving from side to master",
+            Reflog.get(ObjectStore.ROOT, Reflog.HEAD, 0).getMessage());
+        c.parseLine("rm-branch", "side");
+        assertNull(Reflog.get(ObjectStore.ROOT, Refs.HEADS + "side", 0));
+    }
+
+    @Test
+    public void stash() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "two files");
+        String base = c.getHeadHash();
+
+        writeFile(fileOne, "staged edit");
+        c.parseLine("add", fileOne);
+        writeFile(fileOne, "unstaged edit");
+        c.parseLine("rm", fileTwo);
+        c.parseLine("stash");
+
+        assertEquals("Hello there",
+            Utils.readContentsAsString(new TinyGitFile(fileOne)));
+        assertEquals("what is up",
+            Utils.readContentsAsString(new TinyGitFile(fileTwo)));
+        assertTrue(c.getHead().getStaged().isEmpty());
+        assertTrue(c.getHead().getUntracked().isEmpty());
+        Commit saved = Commit.loadCommit(Stash.get(ObjectStore.ROOT, 0));
+        assertEquals(base, saved.getParentHash());
+        assertFalse(saved.getTracked().containsKey(fileTwo));
+
+        writeFile(fileTwo, "second");
+        c.parseLine("stash", "push", "other");
+        outContent.reset();
+        c.parseLine("fsck");
+        assertEquals("", outContent.toString());
+        assertEquals(0, c.getExitStatus());
+        outContent.reset();
+        c.parseLine("stash", "list");
+        assertEquals("stash@{0}: On master: other\nstash@{1}: WIP on master: "
+            + ObjectFormat.current().abbreviate(base) + " two files\n",
+            outContent.toString());
+        outContent.reset();
+        c.parseLine("global-log");
+        assertFalse(outContent.toString().contains("On master"));
+        try {
+            c.parseLine("find", "On master: other");
+            fail("found a stash among the commits");
+        } catch (TinyGitException excp) {
+            assertEquals("Found no commit with that message.",
+                excp.getMessage());
+        }
+
+        c.parseLine("stash", "pop", "stash@{1}");
+        assertEquals("unstaged edit",
+            Utils.readContentsAsString(new TinyGitFile(fileOne)));
+        assertFalse(new TinyGitFile(fileTwo).exists());
+        Commit restored = c.getHead();
+        assertEquals(Utils.hashId("staged edit"),
+            restored.getStaged().get(fileOne));
+        assertTrue(restored.getUntracked().contains(fileTwo));
+        assertEquals(1, Stash.list(ObjectStore.ROOT).size());
+        outContent.reset();
+        c.parseLine("global-log");
+        assertFalse(outContent.toString().contains("WIP on"));
+
+        try {
+            c.parseLine("stash", "pop");
+            fail("pop over a removed file should have been refused");
+        } catch (TinyGitException excp) {
+            assertEquals("Your local changes to otherFile.txt would be"
+                + " overwritten by the stash.", excp.getMessage());
+        }
+        c.parseLine("stash", "drop");
+        assertNull(Refs.read(Stash.REF));
+        try {
+            c.parseLine("stash", "drop");
+            fail("dropping from an empty stash should have been refused");
+        } catch (TinyGitException excp) {
+            assertEquals("No stash entries found.", excp.getMessage());
+        }
+    }
+
+    @Test
+    public void rebase() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "base");
+        c.parseLine("branch", "topic");
+        writeFile(fileOne, "upstream edit");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "upstream");
+        String upstream = c.getHeadHash();
+
+        c.parseLine("checkout", "topic");
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "add two");
+        writeFile(fileTwo, "changed two");
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "change two");
+        String oldTip = c.getHeadHash();
+
+        c.parseLine("rebase", "master");
+        Commit tip = c.getHead();
+        assertEquals("change two", tip.getMessage());
+        assertEquals("add two", tip.getParent().getMessage());
+        assertEquals(upstream, tip.getParent().getParentHash());
+        assertEquals("upstream edit",
+            Utils.readContentsAsString(new TinyGitFile(fileOne)));
+        assertEquals("changed two",
+            Utils.readContentsAsString(new TinyGitFile(fileTwo)));
+        assertEquals(oldTip, Reflog.get(ObjectStore.ROOT,
+            Refs.HEADS + "topic", 0).getOldId());
+        try {
+            c.parseLine("rebase", "master");
+            fail("rebase onto its own base should have been refused");
+        } catch (TinyGitException excp) {
+            assertEquals("Current branch is up to date.", excp.getMessage());
+        }
+
+        c.parseLine("checkout", "master");
+        c.parseLine("cherry-pick", tip.getParentHash());
+        c.parseLine("cherry-pick", "topic");
+        assertEquals("change two", c.getHead().getMessage());
+        assertEquals(upstream, c.getHead().getParent().getParentHash());
+        assertEquals("changed two",
+            Utils.readContentsAsString(new TinyGitFile(fileTwo)));
+
+        writeFile(fileOne, "conflicting edit");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "conflict");
+        writeFile(fileOne, "Hello there");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "revert");
+        outContent.reset();
+        c.parseLine("cherry-pick", "master@{1}");
+        assertEquals("Encountered a merge conflict.\n", outContent.toString());
+        assertEquals("<<<<<<< HEAD\nHello there=======\nconflicting edit"
+            + ">>>>>>>\n",
+            Utils.readContentsAsString(new TinyGitFile(fileOne)));
+    }
+
+    @Test
+    public void tags() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "first");
+        String first = c.getHeadHash();
+        c.parseLine("tag", "v1");
+        c.parseLine("tag", "-a", "release", "-m", "first release", "v1");
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "second");
+        c.parseLine("branch", "side");
+
+        String tagId = Refs.read(Refs.TAGS + "release");
+        assertNotEquals(first, tagId);
+        assertEquals("first release",
+            Utils.readObject(ObjectStore.tagFile(ObjectStore.ROOT, tagId),
+                Tag.class).getMessage());
+        assertEquals(first, Tag.peeled(ObjectStore.ROOT).get(tagId));
+        assertEquals(first, Tag.resolve(ObjectStore.ROOT, "release"));
+        assertEquals("first", Commit.loadCommit("release").getMessage());
+
+        outContent.reset();
+        c.parseLine("log", "--decorate");
+        String[] lines = outContent.toString().split("\n");
+        assertEquals("commit " + c.getHeadHash() + " (HEAD -> master, side)",
+            lines[1]);
+        assertTrue(outContent.toString().contains("commit " + first
+            + " (tag: release, tag: v1)\n"));
+
+        c.parseLine("reset", "release");
+        assertEquals(first, c.getHeadHash());
+        assertFalse(new TinyGitFile(fileTwo).exists());
+        try {
+            c.parseLine("tag", "v1");
+            fail("an existing tag should not have been moved");
+        } catch (TinyGitException excp) {
+            assertEquals("A tag with that name already exists.",
+                excp.getMessage());
+        }
+        c.parseLine("tag", "-d", "release");
+        c.parseLine("pack-refs");
+        assertTrue(Tag.peeled(ObjectStore.ROOT).isEmpty());
+        outContent.reset();
+        c.parseLine("tag");
+        assertEquals("v1\n", outContent.toString());
+    }
+
+    @Test
+    public void fsck() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "one");
+        try {
+            for (int i = 0; i < 24; i += 1) {
+                writeFile("many" + i + ".txt", "file " + i);
+                c.parseLine("add", "many" + i + ".txt");
+                if (i == 10 || i == 22) {
+                    c.parseLine("commit", (i + 2) + " files");
+                }
+            }
+            c.parseLine("commit", "25 files");
+        } finally {
+            for (int i = 0; i < 24; i += 1) {
+                Utils.restrictedDelete("many" + i + ".txt");
+            }
+        }
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "two");
+        c.parseLine("tag", "-a", "v1", "-m", "release");
+        outContent.reset();
+        c.parseLine("fsck");
+        assertEquals("", outContent.toString());
+        assertEquals(0, c.getExitStatus());
+
+        ObjectId one = c.getHead().getTracked().get(fileOne);
+        ObjectId two = c.getHead().getTracked().get(fileTwo);
+        Files.write(ObjectStore.blobFile(one).toPath(), "x".getBytes(),
+            StandardOpenOption.APPEND);
+        ObjectStore.blobFile(two).delete();
+        outContent.reset();
+        c.parseLine("fsck", "--connectivity-only");
+        assertEquals("missing blob " + two + " (" + fileTwo + " in commit "
+            + c.getHeadHash() + ")\n", outContent.toString());
+        assertEquals(1, c.getExitStatus());
+
+        outContent.reset();
+        c.parseLine("fsck");
+        assertTrue(outContent.toString().contains(
+            "hash mismatch in blob " + one + "\n"));
+
+        String head = c.getHeadHash();
+        ObjectStore.writeCommit(ObjectStore.ROOT, head,
+            c.getHead().getParent());
+        outContent.reset();
+        c.parseLine("fsck");
+        assertTrue(outContent.toString().contains(
+            "hash mismatch in commit " + head + "\n"));
+    }
+
+    @Test
+    public void mappedBlobs() throws Exception {
+        byte[] data = new byte[2 * Utils.MAP_THRESHOLD];
+        new Random(2).nextBytes(data);
+        TinyGitFile f = new TinyGitFile(fileOne);
+        Utils.writeContents(f, data);
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "binary");
+        String first = c.getHeadHash();
+        ObjectId id = c.getHead().getTracked().get(fileOne);
+        assertEquals(Utils.hashId(data), id);
+        assertNull(ObjectStore.chunks(ObjectStore.ROOT, id.toString()));
+
+        writeFile(fileOne, "text");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "text");
+        c.parseLine("checkout", first, "--", fileOne);
+        assertArrayEquals(data, Utils.readContents(f));
+        outContent.reset();
+        c.parseLine("fsck");
+        assertEquals("", outContent.toString());
+    }
+
+    @Test
+    public void memoryBudget() throws Exception {
+        c.parseLine("config", "memory.budget", "1");
+        c.parseLine("add", fileOne);
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "two files");
+        try (SortedRuns runs = SortedRuns.of(c.getHead().getTracked())) {
+            assertEquals(2, runs.runs());
+        }
+        c.parseLine("branch", "other");
+        writeFile(fileTwo, "mine\n");
+        writeFile("h.txt", "h content");
+        c.parseLine("add", fileTwo);
+        c.parseLine("add", "h.txt");
+        c.parseLine("rm", fileOne);
+        c.parseLine("commit", "mine");
+        c.parseLine("checkout", "other");
+        writeFile(fileTwo, "theirs\n");
+        writeFile("k.txt", "k content");
+        c.parseLine("add", fileTwo);
+        c.parseLine("add", "k.txt");
+        c.parseLine("commit", "theirs");
+        c.parseLine("checkout", "master");
+
+        outContent.reset();
+        c.parseLine("merge", "other");
+        assertEquals("Encountered a merge conflict.\n", outContent.toString());
+        assertEquals("<<<<<<< HEAD\nmine\n=======\ntheirs\n>>>>>>>\n",
+            Utils.readContentsAsString(new TinyGitFile(fileTwo)));
+        assertEquals(false, new TinyGitFile(fileOne).exists());
+        assertEquals("k content",
+            Utils.readContentsAsString(new TinyGitFile("k.txt")));
+
+        writeFile("u.txt", "untracked");
+        outContent.reset();
+        c.parseLine("status", "--porcelain");
+        assertEquals("?? u.txt\n", outContent.toString());
+        outContent.reset();
+        c.parseLine("fsck");
+        assertEquals("", outContent.toString());
+        assertEquals(0, new TinyGitFile(".tinygit/" + SortedRuns.DIR)
+            .list().length);
+
+        Utils.restrictedDelete("h.txt");
+        Utils.restrictedDelete("k.txt");
+        Utils.restrictedDelete("u.txt");
+    }
+
+    @Test
+    public void ioScheduler() throws Exception {
+        c.parseLine("config", "io.threads", "4");
+        List<Integer> items = new ArrayList<>();
+        for (int i = 0; i < 50; i += 1) {
+            items.add(i);
+        }
+        assertEquals(items, IoScheduler.map(items, i -> {
+            try {
+                Thread.sleep((i * 7) % 5);
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+            }
+            return i;
+        }));
+        try {
+            IoScheduler.forEach(items, i -> {
+                if (i == 10) {
+                    throw Utils.error("failed %d", i);
+                }
+            });
+            fail("expected the failure of a task");
+        } catch (TinyGitException excp) {
+            assertEquals("failed 10", excp.getMessage());
+        }
+
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < 20; i += 1) {
+            names.add("io" + i + ".txt");
+            writeFile(names.get(i), "contents " + i);
+            c.parseLine("add", names.get(i));
+        }
+        c.parseLine("commit", "many files");
+        c.parseLine("branch", "other");
+        for (String name : names) {
+            c.parseLine("rm", name);
+        }
+        c.parseLine("commit", "none");
+        assertEquals(false, new TinyGitFile(names.get(0)).exists());
+        c.parseLine("checkout", "other");
+        for (int i = 0; i < names.size(); i += 1) {
+            assertEquals("contents " + i,
+                Utils.readContentsAsString(new TinyGitFile(names.get(i))));
+            Utils.restrictedDelete(names.get(i));
+        }
+    }
+
+    @Test
+    public void serve() throws Exception {
+        new File("served/repo").mkdirs();
+        Controller remote = new Controller();
+        TinyGitFile.setRemotePath("served/repo/");
+        try {
+            remote.parseLine("init");
+            writeFile("remoteFile.txt", "from the server");
+            remote.parseLine("add", "remoteFile.txt");
+            remote.parseLine("commit", "served commit");
+        } finally {
+            TinyGitFile.setRemotePath("");
+        }
+        String served = "served/repo/.tinygit";
+        Server server = new Server("served", 0);
+        Thread thread = new Thread(server::run);
+        thread.start();
+        try {
+            String url = "tinygit://localhost:" + server.port() + "/";
+            c.parseLine("add-remote", "origin", url + "repo");
+            c.parseLine("add-remote", "missing", url + "nothing");
+            try {
+                c.parseLine("fetch", "missing", "master");
+                fail("fetched from a missing repository");
+            } catch (TinyGitException e) {
+                assertEquals("No such repository.", e.getMessage());
+            }
+
+            c.parseLine("fetch", "origin", "master");
+            String fetched = Refs.read(Refs.REMOTES + "origin/master");
+            assertEquals(Refs.read(served, Refs.HEADS + "master"), fetched);
+            c.parseLine("reset", fetched);
+            assertEquals("from the server", Utils.readContentsAsString(
+                new TinyGitFile("remoteFile.txt")));
+
+            writeFile("remoteFile.txt", "pushed back");
+            c.parseLine("add", "remoteFile.txt");
+            c.parseLine("commit", "local commit");
+            c.parseLine("add", fileOne);
+            c.parseLine("push", "origin", "master");
+            assertEquals(c.getHeadHash(),
+                Refs.read(served, Refs.HEADS + "master"));
+            ObjectId pushed = c.getHead().getTracked().get("remoteFile.txt");
+            assertEquals(true,
+                ObjectStore.hasBlob(served, pushed.toString()));
+            Commit sent = Utils.readObject(
+                ObjectStore.commitFile(served, c.getHeadHash()), Commit.class);
+            assertTrue(sent.getStaged().isEmpty());
+
+            Pack pack = new Pack(served, ObjectFormat.current());
+            Commit forged = new Commit("forged", new Date(0),
+                c.getHeadHash(), sent.getTracked(), new HashMap<>(),
+                new ArrayList<>());
+            try {
+                pack.store(Pack.COMMIT, Utils.sha1("forged"),
+                    forged.encode());
+                fail("stored a commit under another commit's id");
+            } catch (TinyGitException e) {
+                assertEquals("Pack is corrupt: bad object "
+                    + Utils.sha1("forged") + ".", e.getMessage());
+            }
+            for (Serializable list : new Serializable[] {
+                    new ObjectId[] {pushed}, new LinkedList<>() }) {
+                try {
+                    pack.store(Pack.MANIFEST, Utils.sha1("forged"),
+                        Utils.serialize(list));
+                    fail("stored a chunk list under another blob's id");
+                } catch (TinyGitException e) {
+                    assertEquals("Pack is corrupt: bad object "
+                        + Utils.sha1("forged") + ".", e.getMessage());
+                }
+            }
+
+            String pushedHead = c.getHeadHash();
+            writeFile("remoteFile.txt", "never sent");
+            c.parseLine("add", "remoteFile.txt");
+            c.parseLine("commit", "unsent blob");
+            String unsent = c.getHeadHash();
+            byte[] made = new Pack(ObjectStore.ROOT, ObjectFormat.current())
+                .encoding(unsent);
+            assertTrue(rawPush(server, pushedHead, unsent, unsent, made)
+                .startsWith("ERR Pack lacks blob "));
+            String forgedId = Utils.sha1("forged");
+            assertEquals("ERR Pack is corrupt: bad object " + forgedId + ".",
+                rawPush(server, pushedHead, forgedId, forgedId, made));
+            assertEquals("ERR Pack is corrupt: bad object " + forgedId + ".",
+                rawPush(server, pushedHead, forgedId, forgedId,
+                    Base64.getDecoder().decode(OLD_COMMIT)));
+            Commit orphan = new Commit("orphan", new Date(),
+                Utils.sha1("nowhere"), sent.getTracked(), new HashMap<>(),
+                new ArrayList<>());
+            assertEquals("ERR Pack lacks commit " + Utils.sha1("nowhere")
+                + ".", rawPush(server, pushedHead, orphan.id(), orphan.id(),
+                    orphan.encode()));
+            assertEquals("ERR Please pull down remote changes before"
+                + " pushing.", rawPush(server, pushedHead, fetched, null,
+                    null));
+            assertFalse(ObjectStore.commitFile(served, unsent).isFile());
+            assertFalse(ObjectStore.commitFile(served, orphan.id()).isFile());
+            assertEquals(pushedHead, Refs.read(served, Refs.HEADS + "master"));
+            assertEquals(0, new File(served).list(
+                (dir, name) -> name.startsWith("incoming-")).length);
+
+            c.parseLine("reset", fetched);
+            writeFile("remoteFile.txt", "diverged");
+            c.parseLine("add", "remoteFile.txt");
+            c.parseLine("commit", "diverging commit");
+            try {
+                c.parseLine("push", "origin", "master");
+                fail("pushed over newer remote commits");
+            } catch (TinyGitException e) {
+                assertEquals("Please pull down remote changes before"
+                    + " pushing.", e.getMessage());
+            }
+        } finally {
+            server.close();
+            thread.join();
+            Utils.restrictedDelete("remoteFile.txt");
+            deleteTree("served");
+        }
+    }
+
+    @Test
+    public void trace() throws Exception {
+        PrintStream err = System.err;
+        ByteArrayOutputStream errContent = new ByteArrayOutputStream();
+        System.setErr(new PrintStream(errContent));
+        String trace;
+        try {
+            c.parseLine("--trace", "add", fileOne);
+            trace = errContent.toString();
+            errContent.reset();
+            c.parseLine("add", fileTwo);
+        } finally {
+            System.setErr(err);
+        }
+        assertEquals(true, trace.startsWith("trace: add"));
+        assertEquals(true, trace.contains("hash"));
+        assertEquals(true, c.getHead().getStaged().containsKey(fileOne));
+        assertEquals("", errContent.toString());
+        assertEquals(false, Trace.enabled());
+    }
+
     @Test
     public void reset() throws Exception {
         c.parseLine("add", fileOne);
@@ -234,6 +1365,75 @@ public class ControllerTest {
         f4.delete();
     }
 
+    @Test
+    public void mergeChangedOnGivenBranch() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "one");
+        c.parseLine("branch", "other");
+        c.parseLine("add", fileTwo);
+        c.parseLine("commit", "two on master");
+        c.parseLine("checkout", "other");
+        writeFile(fileOne, "changed on other");
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "change one");
+        Object changed = c.getHead().getTracked().get(fileOne);
+        c.parseLine("checkout", "master");
+
+        outContent.reset();
+        c.parseLine("merge", "other");
+        assertEquals("", outContent.toString());
+        assertEquals("changed on other",
+            Utils.readContentsAsString(new TinyGitFile(fileOne)));
+        assertEquals(changed, c.getHead().getTracked().get(fileOne));
+    }
+
+    @Test
+    public void mergeAddedOnBothSides() throws Exception {
+        c.parseLine("add", fileOne);
+        c.parseLine("commit", "one");
+        c.parseLine("branch", "other");
+        writeFile("same.txt", "same\n");
+        writeFile("differs.txt", "mine\n");
+        c.parseLine("add", "same.txt");
+        c.parseLine("add", "differs.txt");
+        c.parseLine("commit", "mine");
+        Object same = c.getHead().getTracked().get("same.txt");
+        c.parseLine("checkout", "other");
+        writeFile("same.txt", "same\n");
+        writeFile("differs.txt", "theirs\n");
+        c.parseLine("add", "same.txt");
+        c.parseLine("add", "differs.txt");
+        c.parseLine("commit", "theirs");
+        c.parseLine("checkout", "master");
+
+        try {
+            outContent.reset();
+            c.parseLine("merge", "other");
+            assertEquals("Encountered a merge conflict.\n",
+                outContent.toString());
+            assertEquals("same\n",
+                Utils.readContentsAsString(new TinyGitFile("same.txt")));
+            assertEquals(same, c.getHead().getTracked().get("same.txt"));
+            assertEquals("<<<<<<< HEAD\nmine\n=======\ntheirs\n>>>>>>>\n",
+                Utils.readContentsAsString(new TinyGitFile("differs.txt")));
+        } finally {
+            Utils.restrictedDelete("same.txt");
+            Utils.restrictedDelete("differs.txt");
+        }
+    }
+
+    @Test
+    public void childOfPrefixedFile() throws Exception {
+        TinyGitFile.setRemotePath("remote/");
+        try {
+            TinyGitFile parent = new TinyGitFile("dir");
+            assertEquals(new File("remote/dir/file").getPath(),
+                new TinyGitFile(parent, "file").getPath());
+        } finally {
+            TinyGitFile.setRemotePath("");
+        }
+    }
+
     @Test
     public void checkout() throws Exception {
         TinyGitFile f = new TinyGitFile(fileOne);
@@ -0,0 +1,117 @@
+package tinygit;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Line-level differencing between two versions of a file, using the
+ * Myers shortest-edit-script algorithm.
+ *
+ * @author Michael Remediakis
+ */
+class Diff {
+
+    /**
+     * Returns the lines of CONTENTS, without their line terminators.
+     */
+    static String[] lines(String contents) {
+        if (contents.isEmpty()) {
+            return new String[0];
+        }
+        String[] result = contents.split("\n", -1);
+        if (result[result.length - 1].isEmpty()) {
+            return Arrays.copyOf(result, result.length - 1);
+        }
+        return result;
+    }
+
+    /**
+     * Returns an array that maps each line index of A to the index of the
+     * line of B it is matched with in a shortest edit script from A to B,
+     * or to -1 if that line of A was deleted.
+     */
+    static int[] match(String[] a, String[] b) {
+        int[] result = new int[a.length];
+        Arrays.fill(result, -1);
+
+        int start = 0;
+        while (start < a.length && start < b.length
+               && a[start].equals(b[start])) {
+            result[start] = start;
+            start += 1;
+        }
+        int endA = a.length, endB = b.length;
+        while (endA > start && endB > start
+               && a[endA - 1].equals(b[endB - 1])) {
+            endA -= 1;
+            endB -= 1;
+            result[endA] = endB;
+        }
+
+        myers(a, start, endA, b, start, endB, result);
+        return result;
+    }
+
+    /**
+     * Fills RESULT with matches between A[LOA..HIA) and B[LOB..HIB) along
+     * a shortest edit script.
+     */
+    private static void myers(String[] a, int loA, int hiA,
+                              String[] b, int loB, int hiB, int[] result) {
+        int n = hiA - loA, m = hiB - loB;
+        if (n == 0 || m == 0) {
+            return;
+        }
+        int max = n + m;
+        int offset = max + 1;
+        int[] v = new int[2 * max + 3];
+        List<int[]> trace = new ArrayList<>();
+
+        int found = -1;
+        for (int d = 0; d <= max && found < 0; d += 1) {
+            trace.add(v.clone());
+            for (int k = -d; k <= d; k += 2) {
+                int x;
+                if (k == -d || (k != d
+                    && v[offset + k - 1] < v[offset + k + 1])) {
+                    x = v[offset + k + 1];
+                } else {
+                    x = v[offset + k - 1] + 1;
+                }
+                int y = x - k;
+                while (x < n && y < m && a[loA + x].equals(b[loB + y])) {
+                    x += 1;
+                    y += 1;
+                }
+                v[offset + k] = x;
+                if (x >= n && y >= m) {
+                    found = d;
+                    break;
+                }
+            }
+        }
+
+        int x = n, y = m;
+        for (int d = found; d >= 0; d -= 1) {
+            int[] prev = trace.get(d);
+            int k = x - y;
+            int prevK;
+            if (k == -d || (k != d
+                && prev[offset + k - 1] < prev[offset + k + 1])) {
+                prevK = k + 1;
+            } else {
+                prevK = k - 1;
+            }
+            int prevX = prev[offset + prevK];
+            int prevY = prevX - prevK;
+            while (x > prevX && y > prevY) {
+                x -= 1;
+                y -= 1;
+                result[loA + x] = loB + y;
+            }
+            x = prevX;
+            y = prevY;
+        }
+    }
+}
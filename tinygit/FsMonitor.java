@@ -0,0 +1,423 @@
+package tinygit;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * A background watcher that records which working files change, so that
+ * commands need not list and read the whole working directory. The
+ * watcher appends the name of every file it sees created, modified or
+ * deleted to a journal, .tinygit/fsmonitor/journal, whose first line
+ * names the watcher instance. A reader remembers a token, the instance
+ * and an offset into the journal, and asks for the files changed since.
+ *
+ * Events reach the watcher with some delay, so a reader first creates a
+ * cookie file next to the journal and waits for the watcher to journal
+ * it: every change made before the cookie is journaled before it. To
+ * keep that order, the watcher reads the cookies first, then takes every
+ * key signalled by then and reads the working directory's events, which
+ * are journaled ahead of the cookies. When the watcher has lost events,
+ * restarted, started a new journal or fails to answer in time, the
+ * reader is told to scan instead.
+ *
+ * @author Michael Remediakis
+ */
+class FsMonitor {
+
+    /** The directory under the repository root used by the watcher. */
+    static final String DIR = "fsmonitor";
+    /** The journal file in DIR. */
+    static final String JOURNAL = "journal";
+
+    /** Prefix of the names of cookie files. */
+    private static final String COOKIE = "cookie-";
+    /** Journal line recording that the watcher lost events. */
+    private static final String OVERFLOW = "/overflow";
+    /** Size past which the watcher starts a new journal. */
+    private static final long MAX_JOURNAL = 1 << 20;
+    /** Milliseconds a reader waits for its cookie. */
+    private static final long SYNC_TIMEOUT = 2000;
+    /** Milliseconds start waits for the watcher to come up. */
+    private static final long START_TIMEOUT = 10000;
+
+    /** Number of cookies created by this process so far. */
+    private static int _cookies;
+
+    /**
+     * The files changed since a token, and the token to use next.
+     */
+    static class Update {
+        /** The watcher instance. */
+        private String _instance;
+        /** The offset into the journal reached. */
+        private long _offset;
+        /** Names of the files changed since the token. */
+        private Set<String> _paths;
+        /** False if the changes cannot be trusted to be complete. */
+        private boolean _complete;
+
+        /** An update to token INSTANCE, OFFSET listing PATHS. */
+        Update(String instance, long offset, Set<String> paths,
+               boolean complete) {
+            _instance = instance;
+            _offset = offset;
+            _paths = paths;
+            _complete = complete;
+        }
+
+        /** Returns the watcher instance of the new token. */
+        String getInstance() {
+            return _instance;
+        }
+
+        /** Returns the journal offset of the new token. */
+        long getOffset() {
+            return _offset;
+        }
+
+        /** Returns the names of the files changed since the old token. */
+        Set<String> getPaths() {
+            return _paths;
+        }
+
+        /**
+         * Returns whether getPaths holds every change since the old token;
+         * if not, the caller must scan the working directory.
+         */
+        boolean isComplete() {
+            return _complete;
+        }
+    }
+
+    /**
+     * Returns whether a watcher is running for the local repository.
+     */
+    static boolean isRunning() {
+        String header = readHeader();
+        return header != null && isAlive(header);
+    }
+
+    /**
+     * Starts a watcher for the local repository in a background process,
+     * returning once it is watching.
+     */
+    static void start() {
+        String java = ProcessHandle.current().info().command()
+            .orElse("java");
+        ProcessBuilder builder = new ProcessBuilder(java, "-cp",
+            System.getProperty("java.class.path"), Main.class.getName(),
+            "fsmonitor", "run");
+        builder.redirectOutput(ProcessBuilder.Redirect.DISCARD);
+        builder.redirectError(ProcessBuilder.Redirect.DISCARD);
+        Process process;
+        try {
+            process = builder.start();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        String prefix = process.pid() + " ";
+        long deadline = System.currentTimeMillis() + START_TIMEOUT;
+        while (process.isAlive() && System.currentTimeMillis() < deadline) {
+            String header = readHeader();
+            if (header != null && header.startsWith(prefix)) {
+                return;
+            }
+            pause();
+        }
+        process.destroy();
+        throw Utils.error("Could not start the fsmonitor.");
+    }
+
+    /**
+     * Stops the watcher of the local repository. The watcher exits once
+     * it sees its journal gone.
+     */
+    static void stop() {
+        journal().delete();
+        new TinyGitFile(dir() + "/" + WorkTree.SNAPSHOT).delete();
+    }
+
+    /**
+     * Watches the working directory of the local repository, journaling
+     * changes until the journal is removed or taken over by another
+     * watcher.
+     */
+    static void watch() {
+        TinyGitFile dir = new TinyGitFile(dir());
+        dir.mkdirs();
+        try (WatchService service = FileSystems.getDefault()
+                 .newWatchService()) {
+            WatchKey work = new TinyGitFile(".").toPath().register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE,
+                StandardWatchEventKinds.ENTRY_MODIFY);
+            WatchKey cookies = dir.toPath().register(service,
+                StandardWatchEventKinds.ENTRY_CREATE,
+                StandardWatchEventKinds.ENTRY_DELETE);
+            String instance = newJournal();
+            Path journal = journal().toPath();
+            while (true) {
+                List<WatchKey> ready = new ArrayList<>();
+                ready.add(service.take());
+                drain(service, ready);
+                StringBuilder synced = new StringBuilder();
+                StringBuilder lines = new StringBuilder();
+                if (ready.contains(cookies)) {
+                    journalCookies(cookies, synced);
+                    drain(service, ready);
+                }
+                if (ready.contains(work)) {
+                    journalChanges(work, lines);
+                }
+                lines.append(synced);
+                boolean valid = true;
+                for (WatchKey key : ready) {
+                    valid = key.reset() && valid;
+                }
+                if (!valid || !instance.equals(readHeader())) {
+                    return;
+                }
+                if (lines.length() > 0) {
+                    Files.write(journal, lines.toString()
+                        .getBytes(StandardCharsets.UTF_8),
+                        StandardOpenOption.APPEND);
+                }
+                if (Files.size(journal) > MAX_JOURNAL) {
+                    instance = newJournal();
+                }
+            }
+        } catch (NoSuchFileException excp) {
+            return;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the files changed since the token INSTANCE, OFFSET, which
+     * is a null INSTANCE when there is none, or null if no watcher
+     * answers.
+     */
+    static Update sync(String instance, long offset) {
+        if (!isRunning()) {
+            return null;
+        }
+        String cookie;
+        synchronized (FsMonitor.class) {
+            _cookies += 1;
+            cookie = COOKIE + ProcessHandle.current().pid() + "-" + _cookies;
+        }
+        TinyGitFile cookieFile = new TinyGitFile(dir() + "/" + cookie);
+        Utils.writeContents(cookieFile, new byte[0]);
+        try {
+            long deadline = System.currentTimeMillis() + SYNC_TIMEOUT;
+            do {
+                Update result = read(instance, offset, "/" + cookie);
+                if (result != null) {
+                    return result;
+                }
+                pause();
+            } while (System.currentTimeMillis() < deadline);
+            return null;
+        } finally {
+            cookieFile.delete();
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Adds to READY the keys of SERVICE signalled since it was last
+     * drained.
+     */
+    private static void drain(WatchService service, List<WatchKey> ready) {
+        for (WatchKey next = service.poll(); next != null;
+             next = service.poll()) {
+            ready.add(next);
+        }
+    }
+
+    /**
+     * Appends to LINES the cookies created in the watcher's directory,
+     * whose events KEY holds. The keys signalled meanwhile are drained
+     * again and the working directory's events read after, so that every
+     * change made before a cookie is journaled with it.
+     */
+    private static void journalCookies(WatchKey key, StringBuilder lines) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                lines.append(OVERFLOW).append('\n');
+                continue;
+            }
+            String name = event.context().toString();
+            if (name.startsWith(COOKIE)
+                && event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                lines.append('/').append(name).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Appends to LINES the working files changed, whose events KEY holds.
+     */
+    private static void journalChanges(WatchKey key, StringBuilder lines) {
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                lines.append(OVERFLOW).append('\n');
+                continue;
+            }
+            String name = event.context().toString();
+            if (!name.equals(ObjectStore.ROOT)) {
+                lines.append(name).append('\n');
+            }
+        }
+    }
+
+    /**
+     * Returns the path of the watcher's directory.
+     */
+    private static String dir() {
+        return ObjectStore.ROOT + "/" + DIR;
+    }
+
+    /**
+     * Returns the journal of the local repository.
+     */
+    private static TinyGitFile journal() {
+        return new TinyGitFile(dir() + "/" + JOURNAL);
+    }
+
+    /**
+     * Replaces the journal with an empty one for a new watcher instance,
+     * and returns the instance.
+     */
+    private static String newJournal() throws IOException {
+        String instance = ProcessHandle.current().pid() + " "
+            + System.nanoTime();
+        TinyGitFile temp = new TinyGitFile(dir() + "/" + JOURNAL + ".tmp");
+        Utils.writeContents(temp, instance + "\n");
+        Files.move(temp.toPath(), journal().toPath(),
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+        return instance;
+    }
+
+    /**
+     * Returns the first line of the journal, which names the watcher
+     * instance, or null if there is no journal.
+     */
+    private static String readHeader() {
+        try (FileChannel in = FileChannel.open(journal().toPath())) {
+            return readHeader(in);
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Returns the first line of the journal open as IN, or null if it
+     * has none.
+     */
+    private static String readHeader(FileChannel in) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(64);
+        in.read(buffer, 0);
+        String start = new String(buffer.array(), 0, buffer.position(),
+            StandardCharsets.UTF_8);
+        int end = start.indexOf('\n');
+        return end < 0 ? null : start.substring(0, end);
+    }
+
+    /**
+     * Returns whether the process of the watcher instance named by HEADER
+     * is alive.
+     */
+    private static boolean isAlive(String header) {
+        try {
+            long pid = Long.parseLong(header.substring(0,
+                header.indexOf(' ')));
+            return ProcessHandle.of(pid).map(ProcessHandle::isAlive)
+                .orElse(false);
+        } catch (NumberFormatException | IndexOutOfBoundsException excp) {
+            return false;
+        }
+    }
+
+    /**
+     * Reads the journal from the token INSTANCE, OFFSET up to the line
+     * COOKIE, and returns the changes found, or null if COOKIE has not
+     * been journaled yet.
+     */
+    private static Update read(String instance, long offset, String cookie) {
+        try (FileChannel in = FileChannel.open(journal().toPath())) {
+            String header = readHeader(in);
+            if (header == null) {
+                return null;
+            }
+            long start = header.getBytes(StandardCharsets.UTF_8).length + 1;
+            boolean complete = header.equals(instance)
+                && offset >= start && offset <= in.size();
+            if (complete) {
+                start = offset;
+            }
+            ByteBuffer buffer = ByteBuffer.allocate((int) (in.size() - start));
+            int read;
+            do {
+                read = in.read(buffer, start + buffer.position());
+            } while (read > 0 && buffer.hasRemaining());
+            Set<String> paths = new HashSet<>();
+            byte[] bytes = buffer.array();
+            int lineStart = 0;
+            for (int i = 0; i < buffer.position(); i += 1) {
+                if (bytes[i] != '\n') {
+                    continue;
+                }
+                String line = new String(bytes, lineStart, i - lineStart,
+                    StandardCharsets.UTF_8);
+                lineStart = i + 1;
+                if (line.equals(cookie)) {
+                    return new Update(header, start + lineStart, paths,
+                        complete);
+                } else if (line.equals(OVERFLOW)) {
+                    complete = false;
+                } else if (!line.startsWith("/")) {
+                    paths.add(line);
+                }
+            }
+            return null;
+        } catch (IOException excp) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits briefly before polling again.
+     */
+    private static void pause() {
+        try {
+            Thread.sleep(1);
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Interrupted waiting for the fsmonitor.");
+        }
+    }
+}
@@ -0,0 +1,270 @@
+package tinygit;
+
+import java.security.MessageDigest;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Checks the objects and refs of a repository. Every object is checked
+ * to hash to its name: blobs and tags as stored, chunked blobs as the
+ * concatenation of their chunks, and commits as they were made, since
+ * commit files are rewritten to hold the stage. Every commit's parents
+ * and blobs, every tag's object, and every ref's target must exist.
+ *
+ * Objects are checked in parallel, in batches of the IoScheduler. Links are not
+ * looked up as they are found: each object present and each link wanted
+ * is recorded as a pair of ids in SortedRuns, and the links are checked
+ * at the end in one merge over the sorted pairs, so that a repository of
+ * any size is checked within the memory budget. Problems are printed as
+ * they are found, in no particular order. Checking connectivity only
+ * skips reading and hashing the blobs.
+ *
+ * @author Michael Remediakis
+ */
+class Fsck {
+
+    /** The root of the repository checked. */
+    private String _root;
+    /** Whether only links between objects are checked. */
+    private boolean _connectivityOnly;
+    /**
+     * The objects present and the links wanted, by id. An object present
+     * has the value "=" and its kind; a link the value "?", the kinds it
+     * may lead to, a space, and the problem to report if it leads to none.
+     * "=" sorts before "?", so an id's objects come before its links.
+     */
+    private SortedRuns _links;
+    /** The number of problems found so far. */
+    private AtomicInteger _problems = new AtomicInteger();
+
+    /** The kind of a commit in _links. */
+    private static final String COMMIT = "c";
+    /** The kind of a blob, whole or chunked, or of a chunk in _links. */
+    private static final String BLOB = "b";
+    /** The kind of an annotated tag in _links. */
+    private static final String TAG = "t";
+
+    /**
+     * A check of the repository rooted at ROOT, of the links between its
+     * objects only if CONNECTIVITYONLY.
+     */
+    Fsck(String root, boolean connectivityOnly) {
+        _root = root;
+        _connectivityOnly = connectivityOnly;
+    }
+
+    /**
+     * Checks the repository, printing each problem found, and returns the
+     * number of problems.
+     */
+    int run() {
+        List<String> commits = ObjectStore.commitIds(_root);
+        List<String> blobs = ObjectStore.blobIds(_root);
+        List<String> manifests = ObjectStore.manifestIds(_root);
+        List<String> tags = ObjectStore.tagIds(_root);
+        try (SortedRuns links = new SortedRuns()) {
+            _links = links;
+            present(commits, COMMIT);
+            present(blobs, BLOB);
+            present(manifests, BLOB);
+            present(tags, TAG);
+
+            if (!_connectivityOnly) {
+                IoScheduler.forEach(blobs, this::checkBlob);
+            }
+            IoScheduler.forEach(manifests, this::checkManifest);
+            IoScheduler.forEach(commits, this::checkCommit);
+            IoScheduler.forEach(tags, this::checkTag);
+            checkRefs();
+            checkLinks();
+        }
+        return _problems.get();
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Checks that blob ID hashes to its name.
+     */
+    private void checkBlob(String id) {
+        if (!Utils.hashFile(ObjectStore.blobFile(_root, id)).toString()
+                .equals(id)) {
+            report("hash mismatch in blob %s", id);
+        }
+    }
+
+    /**
+     * Checks that the chunks of chunked blob ID exist and, unless only
+     * connectivity is checked, that together they hash to its name.
+     */
+    private void checkManifest(String id) {
+        ObjectId[] chunks;
+        try {
+            chunks = ObjectStore.chunks(_root, id);
+        } catch (IllegalArgumentException excp) {
+            report("corrupt chunk list of blob %s", id);
+            return;
+        }
+        MessageDigest whole = ObjectFormat.current().newDigest();
+        boolean complete = true;
+        for (ObjectId chunk : chunks) {
+            link(chunk.toString(), BLOB, "missing chunk %s of blob %s", chunk,
+                id);
+            if (!ObjectStore.blobFile(_root, chunk.toString()).isFile()) {
+                complete = false;
+            } else if (!_connectivityOnly) {
+                whole.update(Utils.readContents(
+                    ObjectStore.blobFile(_root, chunk.toString())));
+            }
+        }
+        if (complete && !_connectivityOnly
+            && !ObjectId.of(whole.digest()).toString().equals(id)) {
+            report("hash mismatch in blob %s", id);
+        }
+    }
+
+    /**
+     * Checks that commit ID can be read, hashes to its name if it can be
+     * checked, and
+     * links to existing parents and blobs.
+     */
+    private void checkCommit(String id) {
+        Commit c;
+        try {
+            c = Utils.readObject(ObjectStore.commitFile(_root, id),
+                Commit.class);
+        } catch (IllegalArgumentException excp) {
+            report("corrupt commit %s", id);
+            return;
+        }
+        if (!_connectivityOnly) {
+            if (c.isEncoded() && !c.id().equals(id)) {
+                report("hash mismatch in commit %s", id);
+            }
+        }
+        checkParent(id, c.getParentHash());
+        if (c.getOtherParentHash() != null) {
+            checkParent(id, c.getOtherParentHash());
+        }
+        if (Promisor.exists()) {
+            return;
+        }
+        for (Map.Entry<String, ObjectId> file : c.getTracked().entrySet()) {
+            link(file.getValue().toString(), BLOB,
+                "missing blob %s (%s in commit %s)", file.getValue(),
+                file.getKey(), id);
+        }
+        for (Map.Entry<String, ObjectId> file : c.getStaged().entrySet()) {
+            link(file.getValue().toString(), BLOB,
+                "missing blob %s (%s staged in commit %s)", file.getValue(),
+                file.getKey(), id);
+        }
+    }
+
+    /**
+     * Checks that PARENT, a parent of commit ID, exists or lies past the
+     * root or the shallow boundary.
+     */
+    private void checkParent(String id, String parent) {
+        if (!Commit.isRootParent(parent)) {
+            link(parent, COMMIT, "broken link from commit %s to parent %s",
+                id, parent);
+        }
+    }
+
+    /**
+     * Checks that annotated tag ID can be read, hashes to its name, and
+     * names an existing commit or tag.
+     */
+    private void checkTag(String id) {
+        TinyGitFile file = ObjectStore.tagFile(_root, id);
+        Tag tag;
+        try {
+            tag = Utils.readObject(file, Tag.class);
+        } catch (IllegalArgumentException excp) {
+            report("corrupt tag %s", id);
+            return;
+        }
+        if (!_connectivityOnly
+            && !Utils.hash(Utils.readContents(file)).equals(id)) {
+            report("hash mismatch in tag %s", id);
+        }
+        link(tag.getObject(), COMMIT + TAG, "broken link from tag %s to %s",
+            id, tag.getObject());
+    }
+
+    /**
+     * Checks that every ref points at an existing commit, or tag for tag
+     * refs, and that the current branch exists.
+     */
+    private void checkRefs() {
+        for (Map.Entry<String, String> ref
+                 : Refs.list(_root, Refs.LOOSE + "/").entrySet()) {
+            String id = ref.getValue();
+            link(id, ref.getKey().startsWith(Refs.TAGS) ? COMMIT + TAG : COMMIT,
+                "bad ref %s: missing object %s", ref.getKey(), id);
+        }
+        String head = Refs.head(_root);
+        if (Refs.read(_root, head) == null) {
+            report("HEAD points at missing branch %s", head);
+        }
+    }
+
+    /**
+     * Reports, for each link wanted, the problem recorded with it if no
+     * object of a kind it may lead to is present.
+     */
+    private void checkLinks() {
+        SortedRuns.Cursor cursor = _links.cursor();
+        String id = null;
+        String kinds = "";
+        while (cursor.next()) {
+            if (!cursor.key().equals(id)) {
+                id = cursor.key();
+                kinds = "";
+            }
+            String value = cursor.value();
+            if (value.startsWith("=")) {
+                kinds += value.substring(1);
+                continue;
+            }
+            int space = value.indexOf(' ');
+            boolean found = false;
+            for (char kind : value.substring(1, space).toCharArray()) {
+                found = found || kinds.indexOf(kind) >= 0;
+            }
+            if (!found) {
+                report("%s", value.substring(space + 1));
+            }
+        }
+    }
+
+    /**
+     * Records the objects IDS, of kind KIND, as present.
+     */
+    private void present(List<String> ids, String kind) {
+        for (String id : ids) {
+            _links.add(id, "=" + kind);
+        }
+    }
+
+    /**
+     * Records a link wanted to ID, which must be an object of one of the
+     * KINDS, reporting the problem described by FORMAT and ARGS if not.
+     */
+    private void link(String id, String kinds, String format,
+                      Object... args) {
+        _links.add(id, "?" + kinds + " " + String.format(format, args));
+    }
+
+    /**
+     * Prints the problem described by FORMAT and ARGS and counts it.
+     */
+    private void report(String format, Object... args) {
+        _problems.incrementAndGet();
+        System.out.println(String.format(format, args));
+    }
+}
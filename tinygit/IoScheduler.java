@@ -0,0 +1,119 @@
+package tinygit;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs batches of blocking object-store work, such as reading, copying
+ * and writing objects and files, on several threads at once, so that the
+ * latency of each file, which dominates on network file systems, overlaps
+ * with the others'. The threads are shared and made on demand; a batch
+ * keeps at most the configured io.threads of its tasks running at a time.
+ *
+ * Each call returns only once all of its batch is done, so batches issued
+ * one after another are ordered: the blobs of a fetch are all stored
+ * before the ref naming them moves, say. Within a batch tasks run in no
+ * particular order, but map returns its results in the order of its
+ * items. The first failure of a batch is rethrown once the tasks already
+ * running are done; the tasks not yet started are skipped.
+ *
+ * Because threads are made as needed, a task may itself run a batch
+ * without starving the one it belongs to.
+ *
+ * @author Michael Remediakis
+ */
+class IoScheduler {
+
+    /** The threads, shared by all batches and kept while idle a while. */
+    private static final ExecutorService POOL =
+        Executors.newCachedThreadPool(new ThreadFactory() {
+            private final AtomicInteger _count = new AtomicInteger();
+
+            @Override
+            public Thread newThread(Runnable task) {
+                Thread result = new Thread(task,
+                    "tinygit-io-" + _count.incrementAndGet());
+                result.setDaemon(true);
+                return result;
+            }
+        });
+
+    /**
+     * Applies ACTION to each of ITEMS, several at a time, and returns when
+     * all are done.
+     */
+    static <T> void forEach(Collection<T> items, Consumer<T> action) {
+        map(new ArrayList<>(items), item -> {
+            action.accept(item);
+            return null;
+        });
+    }
+
+    /**
+     * Returns the results of applying ACTION to each of ITEMS, in the
+     * order of ITEMS, computing several at a time.
+     */
+    static <T, R> List<R> map(List<T> items, Function<T, R> action) {
+        List<R> results = new ArrayList<>(items.size());
+        int limit = (int) Math.max(1, Config.ioThreads());
+        if (items.size() <= 1 || limit == 1) {
+            for (T item : items) {
+                results.add(action.apply(item));
+            }
+            return results;
+        }
+        ArrayDeque<Future<R>> pending = new ArrayDeque<>();
+        try {
+            for (T item : items) {
+                if (pending.size() >= limit) {
+                    results.add(pending.remove().get());
+                }
+                pending.add(POOL.submit(() -> action.apply(item)));
+            }
+            while (!pending.isEmpty()) {
+                results.add(pending.remove().get());
+            }
+        } catch (InterruptedException excp) {
+            Thread.currentThread().interrupt();
+            throw Utils.error("Interrupted.");
+        } catch (ExecutionException excp) {
+            await(pending);
+            if (excp.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) excp.getCause();
+            }
+            throw new IllegalArgumentException(excp.getCause());
+        }
+        return results;
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Waits for the tasks PENDING, ignoring their failures, so that none
+     * is left running once a batch has failed.
+     */
+    private static void await(Collection<? extends Future<?>> pending) {
+        for (Future<?> task : pending) {
+            try {
+                task.get();
+            } catch (InterruptedException excp) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (ExecutionException excp) {
+                /* Only the first failure is reported. */
+            }
+        }
+    }
+}
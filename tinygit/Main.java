@@ -18,6 +18,9 @@ public class Main {
         Controller controller = new Controller();
         try {
             controller.parseLine(args);
+            if (controller.getExitStatus() != 0) {
+                System.exit(controller.getExitStatus());
+            }
         } catch (TinyGitException e) {
             System.out.println(e.getMessage());
             System.exit(0);
@@ -0,0 +1,202 @@
+package tinygit;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.security.NoSuchProviderException;
+import java.security.Provider;
+import java.security.Security;
+
+/**
+ * The hash algorithms that can name objects. A repository's format is
+ * chosen when it is initialized and recorded in .tinygit/format; a
+ * repository without that file predates the choice and uses SHA1.
+ *
+ * @author Michael Remediakis
+ */
+enum ObjectFormat {
+    /** SHA-1, with 40-digit ids. */
+    SHA1("sha1", "SHA-1", 20, 7),
+    /** SHA-256, with 64-digit ids. */
+    SHA256("sha256", "SHA-256", 32, 12);
+
+    /** The file under a repository root naming its format. */
+    static final String FILE = "format";
+
+    /** Size of the buffer hashed when comparing providers. */
+    private static final int CALIBRATION_SIZE = 1 << 16;
+
+    /** Number of times each provider hashes the buffer when compared. */
+    private static final int CALIBRATION_ROUNDS = 8;
+
+    /** The format of the repository being worked on. */
+    private static ObjectFormat _current = SHA1;
+
+    /** The name of this format, as given to init and stored. */
+    private final String _name;
+    /** The name of this format's MessageDigest algorithm. */
+    private final String _algorithm;
+    /** Number of bytes in an id. */
+    private final int _length;
+    /** Number of hex digits printed for an abbreviated id. */
+    private final int _abbrevLength;
+    /** A digest that per-thread digests are cloned from, found lazily. */
+    private MessageDigest _prototype;
+    /** Each thread's digest, reused for any number of hashes. */
+    private final ThreadLocal<MessageDigest> _digest =
+        ThreadLocal.withInitial(this::newDigest);
+
+    /**
+     * A format called NAME that hashes with ALGORITHM into LENGTH-byte
+     * ids, abbreviated to ABBREVLENGTH digits.
+     */
+    ObjectFormat(String name, String algorithm, int length,
+                 int abbrevLength) {
+        _name = name;
+        _algorithm = algorithm;
+        _length = length;
+        _abbrevLength = abbrevLength;
+    }
+
+    /**
+     * Returns the format of the repository being worked on.
+     */
+    static ObjectFormat current() {
+        return _current;
+    }
+
+    /**
+     * Makes FORMAT the format of the repository being worked on.
+     */
+    static void use(ObjectFormat format) {
+        _current = format;
+    }
+
+    /**
+     * Returns the format called NAME.
+     */
+    static ObjectFormat named(String name) {
+        for (ObjectFormat format : values()) {
+            if (format._name.equals(name)) {
+                return format;
+            }
+        }
+        throw Utils.error("Unknown object format: %s.", name);
+    }
+
+    /**
+     * Returns the format of the repository rooted at ROOT.
+     */
+    static ObjectFormat read(String root) {
+        TinyGitFile file = new TinyGitFile(root + "/" + FILE);
+        if (!file.isFile()) {
+            return SHA1;
+        }
+        return named(Utils.readContentsAsString(file).trim());
+    }
+
+    /**
+     * Records this as the format of the repository rooted at ROOT.
+     */
+    void write(String root) {
+        Utils.writeContents(new TinyGitFile(root + "/" + FILE), _name);
+    }
+
+    /**
+     * Returns the length of a full id as a hex numeral.
+     */
+    int hexLength() {
+        return 2 * _length;
+    }
+
+    /**
+     * Returns whether ID is a full id in this format, written as ids are.
+     */
+    boolean isId(String id) {
+        return id.length() == hexLength() && id.chars().allMatch(
+            c -> c >= '0' && c <= '9' || c >= 'a' && c <= 'f');
+    }
+
+    /**
+     * Returns the number of digits printed for an abbreviated id.
+     */
+    int abbrevLength() {
+        return _abbrevLength;
+    }
+
+    /**
+     * Returns ID abbreviated to abbrevLength() digits.
+     */
+    String abbreviate(String id) {
+        return id.substring(0, Math.min(id.length(), _abbrevLength));
+    }
+
+    /**
+     * Returns this thread's digest, ready for use. It is reset first, as a
+     * hash cut short by an exception leaves its input behind.
+     */
+    MessageDigest digest() {
+        MessageDigest result = _digest.get();
+        result.reset();
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        return _name;
+    }
+
+    /**
+     * Returns a fresh digest for the caller's sole use, cloned from the
+     * prototype when the provider allows it.
+     */
+    synchronized MessageDigest newDigest() {
+        if (_prototype == null) {
+            _prototype = fastestDigest();
+        }
+        try {
+            return (MessageDigest) _prototype.clone();
+        } catch (CloneNotSupportedException excp) {
+            return fastestDigest();
+        }
+    }
+
+    /**
+     * Returns a digest from the provider that hashes fastest on this
+     * machine. The system property tinygit.digest.provider names one
+     * outright; otherwise, if several providers implement the
+     * algorithm, each hashes a buffer a few times and the quickest wins.
+     */
+    private MessageDigest fastestDigest() {
+        try {
+            String named = System.getProperty("tinygit.digest.provider");
+            if (named != null) {
+                return MessageDigest.getInstance(_algorithm, named);
+            }
+            Provider[] providers =
+                Security.getProviders("MessageDigest." + _algorithm);
+            if (providers == null || providers.length <= 1) {
+                return MessageDigest.getInstance(_algorithm);
+            }
+            byte[] buffer = new byte[CALIBRATION_SIZE];
+            MessageDigest best = null;
+            long bestNanos = Long.MAX_VALUE;
+            for (Provider provider : providers) {
+                MessageDigest md =
+                    MessageDigest.getInstance(_algorithm, provider);
+                long start = System.nanoTime();
+                for (int i = 0; i < CALIBRATION_ROUNDS; i += 1) {
+                    md.digest(buffer);
+                }
+                long nanos = System.nanoTime() - start;
+                if (nanos < bestNanos) {
+                    best = md;
+                    bestNanos = nanos;
+                }
+            }
+            return best;
+        } catch (NoSuchAlgorithmException | NoSuchProviderException excp) {
+            throw new IllegalArgumentException("System does not support "
+                + _algorithm);
+        }
+    }
+}
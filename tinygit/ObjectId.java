@@ -0,0 +1,110 @@
+package tinygit;
+
+import java.io.DataOutput;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Arrays;
+
+/**
+ * The binary form of a blob or commit id. Ids are kept as their raw digest
+ * bytes rather than as hex Strings, which halves their size and makes
+ * equals and hashCode cheap; the hex form is only produced when a file
+ * name or printed id is needed.
+ *
+ * @author Michael Remediakis
+ */
+final class ObjectId implements Serializable, Comparable<ObjectId> {
+
+    /**
+     * Fixed so that stored commits keep loading as this class changes.
+     */
+    private static final long serialVersionUID = -3387148411516080722L;
+
+    /** Hex digits, indexed by value. */
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    /** The digest bytes. */
+    private final byte[] _bytes;
+
+    /**
+     * An id with the given digest BYTES, which are not copied.
+     */
+    private ObjectId(byte[] bytes) {
+        _bytes = bytes;
+    }
+
+    /**
+     * Returns the id whose digest is BYTES. BYTES must not be modified
+     * afterwards.
+     */
+    static ObjectId of(byte[] bytes) {
+        return new ObjectId(bytes);
+    }
+
+    /**
+     * Returns the id written as the hex numeral HEX.
+     */
+    static ObjectId fromHex(String hex) {
+        if (hex.length() % 2 != 0) {
+            throw new IllegalArgumentException("odd-length object id");
+        }
+        byte[] bytes = new byte[hex.length() / 2];
+        for (int i = 0; i < bytes.length; i += 1) {
+            int hi = Character.digit(hex.charAt(2 * i), 16);
+            int lo = Character.digit(hex.charAt(2 * i + 1), 16);
+            if (hi < 0 || lo < 0) {
+                throw new IllegalArgumentException("malformed object id");
+            }
+            bytes[i] = (byte) (hi << 4 | lo);
+        }
+        return new ObjectId(bytes);
+    }
+
+    /**
+     * Returns the length of this id's hex numeral.
+     */
+    int hexLength() {
+        return 2 * _bytes.length;
+    }
+
+    /**
+     * Writes the digest bytes of this id to OUT.
+     */
+    void writeTo(DataOutput out) throws IOException {
+        out.write(_bytes);
+    }
+
+    /**
+     * Returns this id as a lower-case hex numeral.
+     */
+    @Override
+    public String toString() {
+        char[] result = new char[2 * _bytes.length];
+        for (int i = 0; i < _bytes.length; i += 1) {
+            result[2 * i] = HEX[(_bytes[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX[_bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj instanceof ObjectId
+            && Arrays.equals(_bytes, ((ObjectId) obj)._bytes);
+    }
+
+    /**
+     * Returns the leading bytes of the digest, which are already
+     * uniformly distributed.
+     */
+    @Override
+    public int hashCode() {
+        return (_bytes[0] & 0xff) << 24 | (_bytes[1] & 0xff) << 16
+            | (_bytes[2] & 0xff) << 8 | (_bytes[3] & 0xff);
+    }
+
+    @Override
+    public int compareTo(ObjectId other) {
+        return Arrays.compareUnsigned(_bytes, other._bytes);
+    }
+}
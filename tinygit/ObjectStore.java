@@ -0,0 +1,544 @@
+package tinygit;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Locates blobs and commits inside a repository. Objects are fanned out
+ * into subdirectories named by the first two hex digits of their id, so
+ * that no single directory grows past a few thousand entries.
+ *
+ * @author Michael Remediakis
+ */
+class ObjectStore {
+
+    /** The default repository root. */
+    static final String ROOT = ".tinygit";
+
+    /** Directory under a root holding blobs. */
+    static final String BLOBS = "objects";
+
+    /** Directory under a root holding commits. */
+    static final String COMMITS = "Commit";
+
+    /** Directory under a root holding commit-graph entries. */
+    static final String GRAPH = "graph";
+
+    /** Directory under a root holding cached blame results. */
+    static final String BLAME = "blame";
+
+    /** Directory under a root holding the chunk lists of chunked blobs. */
+    static final String MANIFESTS = "manifests";
+
+    /** Directory under a root holding annotated tags. */
+    static final String TAGS = "tags";
+
+    /** Directory under a root gathering blobs while migrating. */
+    private static final String MIGRATING = "objects.migrating";
+
+    /** Number of leading hex digits used to name a shard. */
+    static final int SHARD_LENGTH = 2;
+
+    /**
+     * Returns the file holding the blob with id HASH in the local
+     * repository.
+     */
+    static TinyGitFile blobFile(String hash) {
+        return blobFile(ROOT, hash);
+    }
+
+    /**
+     * Returns the file holding the blob ID in the local repository.
+     */
+    static TinyGitFile blobFile(ObjectId id) {
+        return blobFile(ROOT, id.toString());
+    }
+
+    /**
+     * Returns the file holding the blob with id HASH in the repository
+     * rooted at ROOT.
+     */
+    static TinyGitFile blobFile(String root, String hash) {
+        return objectFile(root + "/" + BLOBS, hash);
+    }
+
+    /**
+     * Returns the file listing the chunks of blob HASH in the repository
+     * rooted at ROOT. It exists only if the blob was stored as chunks.
+     */
+    static TinyGitFile manifestFile(String root, String hash) {
+        return objectFile(root + "/" + MANIFESTS, hash);
+    }
+
+    /**
+     * Returns the file holding the commit with id HASH in the local
+     * repository.
+     */
+    static TinyGitFile commitFile(String hash) {
+        return commitFile(ROOT, hash);
+    }
+
+    /**
+     * Returns the file holding the commit with id HASH in the repository
+     * rooted at ROOT.
+     */
+    static TinyGitFile commitFile(String root, String hash) {
+        return objectFile(root + "/" + COMMITS, hash);
+    }
+
+    /**
+     * Returns the file holding the annotated tag with id HASH in the
+     * repository rooted at ROOT.
+     */
+    static TinyGitFile tagFile(String root, String hash) {
+        return objectFile(root + "/" + TAGS, hash);
+    }
+
+    /**
+     * Returns the file holding the commit-graph entry for commit HASH in
+     * the local repository.
+     */
+    static TinyGitFile graphFile(String hash) {
+        return objectFile(ROOT + "/" + GRAPH, hash);
+    }
+
+    /**
+     * Returns the file holding the cached blame result with key HASH in
+     * the local repository.
+     */
+    static TinyGitFile blameFile(String hash) {
+        return objectFile(ROOT + "/" + BLAME, hash);
+    }
+
+    /**
+     * Returns whether the blob HASH exists in the repository rooted at ROOT.
+     */
+    static boolean hasBlob(String root, String hash) {
+        return blobFile(root, hash).isFile();
+    }
+
+    /**
+     * Writes CONTENTS as the blob HASH of the repository rooted at ROOT,
+     * creating its shard if needed.
+     */
+    static void writeBlob(String root, String hash, Object... contents) {
+        TinyGitFile file = blobFile(root, hash);
+        file.getParentFile().mkdirs();
+        Utils.writeContents(file, contents);
+    }
+
+    /**
+     * Stores FILE in the repository rooted at ROOT as content-defined
+     * chunks and a manifest listing them, writing only the chunks the
+     * repository lacks. The file is streamed, never held in memory whole.
+     * Returns its blob id, which is the same as if it were stored whole.
+     */
+    static ObjectId writeChunked(String root, TinyGitFile file) {
+        MessageDigest whole = ObjectFormat.current().newDigest();
+        List<ObjectId> chunks = new ArrayList<>();
+        try (InputStream in = Files.newInputStream(file.toPath())) {
+            Chunker chunker = new Chunker(in);
+            for (byte[] chunk = chunker.next(); chunk != null;
+                 chunk = chunker.next()) {
+                whole.update(chunk);
+                ObjectId id = Utils.hashId(chunk);
+                if (!hasBlob(root, id.toString())) {
+                    writeBlob(root, id.toString(), chunk);
+                }
+                chunks.add(id);
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        ObjectId result = ObjectId.of(whole.digest());
+        TinyGitFile manifest = manifestFile(root, result.toString());
+        if (!manifest.isFile()) {
+            manifest.getParentFile().mkdirs();
+            Utils.writeObject(manifest, chunks.toArray(new ObjectId[0]));
+        }
+        return result;
+    }
+
+    /**
+     * Returns the chunks of blob HASH in the repository rooted at ROOT, or
+     * null if it is stored whole.
+     */
+    static ObjectId[] chunks(String root, String hash) {
+        TinyGitFile manifest = manifestFile(root, hash);
+        if (!manifest.isFile()) {
+            return null;
+        }
+        return Utils.readObject(manifest, ObjectId[].class);
+    }
+
+    /**
+     * Returns whether blob HASH is stored, whole or as chunks, in the
+     * repository rooted at ROOT.
+     */
+    static boolean isStored(String root, String hash) {
+        return hasBlob(root, hash) || manifestFile(root, hash).isFile();
+    }
+
+    /**
+     * Copies blob HASH, whole or as its manifest and whichever of its
+     * chunks are missing, from the repository rooted at FROM to the one
+     * rooted at TO. Returns false if FROM does not have it.
+     */
+    static boolean copyBlob(String from, String to, String hash) {
+        if (hasBlob(from, hash)) {
+            copyIntoPlace(blobFile(from, hash), blobFile(to, hash));
+            return true;
+        }
+        ObjectId[] chunks = chunks(from, hash);
+        if (chunks == null) {
+            return false;
+        }
+        for (ObjectId chunk : chunks) {
+            if (!hasBlob(to, chunk.toString())) {
+                copyBlob(from, to, chunk.toString());
+            }
+        }
+        TinyGitFile manifest = manifestFile(to, hash);
+        manifest.getParentFile().mkdirs();
+        Utils.writeContents(manifest,
+            Utils.readContents(manifestFile(from, hash)));
+        return true;
+    }
+
+    /**
+     * Returns the contents of blob ID in the local repository, whether it
+     * is stored whole or as chunks.
+     */
+    static byte[] readBlob(ObjectId id) {
+        Promisor.ensure(id);
+        ObjectId[] chunks = chunks(ROOT, id.toString());
+        if (chunks == null) {
+            return Utils.readContents(blobFile(id));
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream();
+        for (ObjectId chunk : chunks) {
+            result.writeBytes(Utils.readContents(blobFile(chunk)));
+        }
+        return result.toByteArray();
+    }
+
+    /**
+     * Writes the contents of blob ID in the local repository to FILE. A
+     * chunked blob is streamed one chunk at a time.
+     */
+    static void checkoutBlob(ObjectId id, TinyGitFile file) {
+        try (FileChannel out = FileChannel.open(file.toPath(),
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            transferBlob(id, out);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Appends the contents of blob ID in the local repository to OUT,
+     * one stored file at a time, by channel transfer: the contents never
+     * pass through the heap.
+     */
+    static void transferBlob(ObjectId id, WritableByteChannel out) {
+        Promisor.ensure(id);
+        ObjectId[] chunks = chunks(ROOT, id.toString());
+        if (chunks == null) {
+            Utils.transfer(blobFile(id), out);
+            return;
+        }
+        for (ObjectId chunk : chunks) {
+            Utils.transfer(blobFile(chunk), out);
+        }
+    }
+
+    /**
+     * Writes to FILE the contents of blobs MINE and OTHER of the local
+     * repository between merge conflict markers, an absent (null) blob
+     * counting as empty. The blobs are streamed, never held in memory.
+     */
+    static void writeConflict(File file, ObjectId mine, ObjectId other) {
+        try (FileChannel out = FileChannel.open(file.toPath(),
+                 StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+                 StandardOpenOption.TRUNCATE_EXISTING)) {
+            writeMarker(out, "<<<<<<< HEAD\n");
+            if (mine != null) {
+                transferBlob(mine, out);
+            }
+            writeMarker(out, "=======\n");
+            if (other != null) {
+                transferBlob(other, out);
+            }
+            writeMarker(out, ">>>>>>>\n");
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Stores the contents of FILE as a blob of the repository rooted at
+     * ROOT, unless it has that blob already, and returns its id. The file
+     * is hashed through a mapped view and copied by the file system, so
+     * its contents never pass through the heap.
+     */
+    static ObjectId writeBlob(String root, File file) {
+        ObjectId id = Utils.hashFile(file);
+        if (!hasBlob(root, id.toString())) {
+            copyIntoPlace(file, blobFile(root, id.toString()));
+        }
+        return id;
+    }
+
+    /**
+     * Writes the serialized commit C as commit HASH of the repository
+     * rooted at ROOT, creating its shard if needed.
+     */
+    static void writeCommit(String root, String hash, Commit c) {
+        TinyGitFile file = commitFile(root, hash);
+        file.getParentFile().mkdirs();
+        Utils.writeObject(file, c);
+    }
+
+    /**
+     * Returns the sorted ids of every commit in the local repository.
+     */
+    static List<String> commitIds() {
+        return commitIds(ROOT);
+    }
+
+    /**
+     * Returns the sorted ids of every commit in the repository rooted at
+     * ROOT.
+     */
+    static List<String> commitIds(String root) {
+        return objectIds(root + "/" + COMMITS, "");
+    }
+
+    /**
+     * Returns the sorted ids of every blob in the repository rooted at
+     * ROOT.
+     */
+    static List<String> blobIds(String root) {
+        return objectIds(root + "/" + BLOBS, "");
+    }
+
+    /**
+     * Returns the sorted ids of every chunked blob in the repository
+     * rooted at ROOT.
+     */
+    static List<String> manifestIds(String root) {
+        return objectIds(root + "/" + MANIFESTS, "");
+    }
+
+    /**
+     * Returns the sorted ids of every annotated tag in the repository
+     * rooted at ROOT.
+     */
+    static List<String> tagIds(String root) {
+        return objectIds(root + "/" + TAGS, "");
+    }
+
+    /**
+     * Returns the sorted ids of every commit in the local repository that
+     * start with PREFIX. Only the shard named by PREFIX is listed when
+     * PREFIX is long enough to name one.
+     */
+    static List<String> commitIdsWithPrefix(String prefix) {
+        return objectIds(ROOT + "/" + COMMITS, prefix);
+    }
+
+    /**
+     * Moves any blobs and commits left in the flat layout of older
+     * repositories into the shards of the repository rooted at ROOT. Does
+     * nothing once that repository has been migrated, so it is cheap to
+     * call before every command. Blobs are gathered in a scratch directory
+     * renamed into place last, so that a migration cut short is resumed
+     * by the next command.
+     */
+    static void migrate(String root) {
+        TinyGitFile blobDir = new TinyGitFile(root + "/" + BLOBS);
+        if (blobDir.isDirectory()) {
+            return;
+        }
+        String scratch = root + "/" + MIGRATING;
+        new TinyGitFile(scratch).mkdir();
+        List<String> blobs = Utils.plainFilenamesIn(root);
+        for (String name : blobs) {
+            if (isObjectId(name)) {
+                moveInto(new TinyGitFile(root + "/" + name),
+                    objectFile(scratch, name));
+            }
+        }
+        List<String> commits = Utils.plainFilenamesIn(root + "/" + COMMITS);
+        if (commits != null) {
+            for (String name : commits) {
+                if (isObjectId(name)) {
+                    moveInto(new TinyGitFile(root + "/" + COMMITS + "/" + name),
+                        commitFile(root, name));
+                }
+            }
+        }
+        if (!new TinyGitFile(scratch).renameTo(blobDir)) {
+            throw Utils.error("Could not migrate the object store.");
+        }
+    }
+
+    /**
+     * Moves the blobs, chunk lists and commits of the repository rooted at
+     * FROM, a holding area, into the one rooted at ROOT, keeping the ones
+     * ROOT already has, and deletes FROM. Commits move last, so that no
+     * commit shows in ROOT before its blobs.
+     */
+    static void moveObjects(String from, String root) {
+        for (String dir : new String[] {BLOBS, MANIFESTS, COMMITS}) {
+            File[] shards = new TinyGitFile(from + "/" + dir).listFiles();
+            for (File shard : shards == null ? new File[0] : shards) {
+                for (File object : shard.listFiles()) {
+                    TinyGitFile to = objectFile(root + "/" + dir,
+                        shard.getName() + object.getName());
+                    to.getParentFile().mkdirs();
+                    if (!to.isFile() && !object.renameTo(to)) {
+                        throw Utils.error("Could not store object %s.",
+                            shard.getName() + object.getName());
+                    }
+                }
+            }
+        }
+        deleteObjects(from);
+    }
+
+    /**
+     * Deletes the repository rooted at ROOT, a holding area of objects
+     * only.
+     */
+    static void deleteObjects(String root) {
+        for (String dir : new String[] {BLOBS, MANIFESTS, COMMITS}) {
+            File[] shards = new TinyGitFile(root + "/" + dir).listFiles();
+            for (File shard : shards == null ? new File[0] : shards) {
+                for (File object : shard.listFiles()) {
+                    object.delete();
+                }
+                shard.delete();
+            }
+            new TinyGitFile(root + "/" + dir).delete();
+        }
+        new TinyGitFile(root).delete();
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the file for object HASH below the sharded directory DIR.
+     */
+    private static TinyGitFile objectFile(String dir, String hash) {
+        if (hash.length() <= SHARD_LENGTH) {
+            throw Utils.error("Malformed object id.");
+        }
+        return new TinyGitFile(dir + "/" + hash.substring(0, SHARD_LENGTH)
+            + "/" + hash.substring(SHARD_LENGTH));
+    }
+
+    /**
+     * Returns the sorted ids below the sharded directory DIR that start
+     * with PREFIX. Shards are listed in parallel, by the IoScheduler.
+     */
+    private static List<String> objectIds(String dir, String prefix) {
+        long start = Trace.start();
+        TinyGitFile base = new TinyGitFile(dir);
+        String[] shards;
+        if (prefix.length() >= SHARD_LENGTH) {
+            shards = new String[] {prefix.substring(0, SHARD_LENGTH)};
+        } else {
+            shards = base.list((d, name) -> name.length() == SHARD_LENGTH
+                && name.startsWith(prefix));
+        }
+        if (shards == null) {
+            Trace.end(Trace.Phase.LIST, start, 0);
+            return new ArrayList<>();
+        }
+        List<String> result = IoScheduler.map(Arrays.asList(shards),
+                shard -> {
+                    String[] names = new TinyGitFile(dir + "/" + shard).list();
+                    if (names == null) {
+                        return Arrays.<String>asList().stream();
+                    }
+                    return Arrays.stream(names).map(name -> shard + name);
+                })
+            .stream().flatMap(ids -> ids)
+            .filter(id -> id.startsWith(prefix))
+            .collect(Collectors.toList());
+        Collections.sort(result);
+        Trace.end(Trace.Phase.LIST, start, 0);
+        return result;
+    }
+
+    /**
+     * Returns whether NAME looks like a full object id.
+     */
+    private static boolean isObjectId(String name) {
+        return name.length() == ObjectFormat.current().hexLength()
+            && name.chars().allMatch(c -> Character.digit(c, 16) >= 0);
+    }
+
+    /**
+     * Copies FROM to TO, creating TO's shard if needed. The copy is made
+     * beside TO and renamed into place, so an interrupted copy never
+     * leaves a truncated object behind.
+     */
+    private static void copyIntoPlace(File from, TinyGitFile to) {
+        to.getParentFile().mkdirs();
+        TinyGitFile temp = new TinyGitFile(to.getParentFile(),
+            to.getName() + ".tmp" + ProcessHandle.current().pid()
+            + "-" + Thread.currentThread().getId());
+        try {
+            Files.copy(from.toPath(), temp.toPath(),
+                StandardCopyOption.REPLACE_EXISTING);
+            Files.move(temp.toPath(), to.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Writes the ASCII TEXT of a conflict marker to OUT.
+     */
+    private static void writeMarker(WritableByteChannel out, String text)
+        throws IOException {
+        ByteBuffer bytes =
+            ByteBuffer.wrap(text.getBytes(StandardCharsets.UTF_8));
+        while (bytes.hasRemaining()) {
+            out.write(bytes);
+        }
+    }
+
+    /**
+     * Renames FROM to TO, creating TO's shard if needed.
+     */
+    private static void moveInto(TinyGitFile from, TinyGitFile to) {
+        to.getParentFile().mkdirs();
+        if (!from.renameTo(to)) {
+            throw Utils.error("Could not migrate object %s.", from.getName());
+        }
+    }
+}
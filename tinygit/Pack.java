@@ -0,0 +1,303 @@
+package tinygit;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * A stream of object records moving commits and blobs from one
+ * repository to another, as bundles and the serve protocol send them.
+ * Each record is a type byte, the object id, a length and the object's
+ * bytes, a commit's its encoding; a zero type byte ends the stream. A
+ * commit's record is followed by those of its blobs the receiver is not
+ * known to have, a chunked blob's by its chunks and then its chunk list.
+ *
+ * A pack works on the repository rooted at a given root, in a given
+ * object format, rather than on the local one, so that a server can send
+ * and receive for many repositories at once. Commits and object files
+ * are read through commit, encoding and contents, which a server overrides
+ * to share caches between its clients.
+ *
+ * @author Michael Remediakis
+ */
+class Pack {
+
+    /** Record type of a commit. */
+    static final byte COMMIT = 'C';
+    /** Record type of a whole blob or chunk. */
+    static final byte BLOB = 'B';
+    /** Record type of a chunk manifest. */
+    static final byte MANIFEST = 'M';
+    /** Record type ending the stream. */
+    static final byte END = 0;
+
+    /** Room allowed past the chunk threshold for a chunk list's framing. */
+    private static final int FRAMING = 1 << 16;
+
+    /** The root of the repository read and written. */
+    private String _root;
+    /** The object format of that repository. */
+    private ObjectFormat _format;
+
+    /**
+     * A pack of the repository rooted at ROOT, whose objects are named in
+     * FORMAT.
+     */
+    Pack(String root, ObjectFormat format) {
+        _root = root;
+        _format = format;
+    }
+
+    /** Returns the root of the repository. */
+    String root() {
+        return _root;
+    }
+
+    /** Returns the object format of the repository. */
+    ObjectFormat format() {
+        return _format;
+    }
+
+    /**
+     * Returns commit HASH, or null if the repository does not have it:
+     * it is the null parent, lies past a shallow boundary, or was never
+     * fetched.
+     */
+    Commit commit(String hash) {
+        TinyGitFile file = ObjectStore.commitFile(_root, hash);
+        if (!file.isFile()) {
+            return null;
+        }
+        return Utils.readObject(file, Commit.class);
+    }
+
+    /**
+     * Returns the contents of FILE, an object file of the repository.
+     */
+    byte[] contents(TinyGitFile file) {
+        return Utils.readContents(file);
+    }
+
+    /**
+     * Returns the commits of the repository reachable from TIPS that are
+     * not in EXCLUDED, newest first. Commits the repository lacks end the
+     * walk.
+     */
+    Set<String> reachable(Collection<String> tips, Set<String> excluded) {
+        Set<String> result = new LinkedHashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>(tips);
+        while (!queue.isEmpty()) {
+            String hash = queue.remove();
+            if (excluded.contains(hash) || result.contains(hash)) {
+                continue;
+            }
+            Commit c = commit(hash);
+            if (c == null) {
+                continue;
+            }
+            result.add(hash);
+            queue.add(c.getParentHash());
+            if (c.getOtherParentHash() != null) {
+                queue.add(c.getOtherParentHash());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Writes to OUT the record of commit HASH followed by those of its
+     * blobs not in WRITTEN, adding these to it.
+     */
+    void writeCommit(DataOutputStream out, String hash, Set<String> written)
+        throws IOException {
+        writeRecord(out, COMMIT, hash, encoding(hash));
+        for (ObjectId id : commit(hash).getTracked().values()) {
+            writeBlob(out, id, written);
+        }
+    }
+
+    /**
+     * Returns the encoding of commit HASH, which hashes to HASH. Its file
+     * is not sent, as it also holds the sender's stage. Commits made
+     * before commits were named by their encoding cannot be sent.
+     */
+    byte[] encoding(String hash) {
+        Commit c = commit(hash);
+        if (!c.isEncoded()) {
+            throw Utils.error("Commit %s was made by an older version"
+                + " and cannot be sent.", hash);
+        }
+        return c.encode();
+    }
+
+    /**
+     * Reads records from IN up to the end of the stream, storing each
+     * object the repository lacks. Returns the number of records read.
+     */
+    int receive(DataInputStream in) throws IOException {
+        int count = 0;
+        long max = maxRecord();
+        try {
+            for (byte type = in.readByte(); type != END;
+                 type = in.readByte()) {
+                String hash = in.readUTF();
+                byte[] contents = readContents(in, max);
+                store(type, hash, contents);
+                count += 1;
+            }
+        } catch (EOFException excp) {
+            throw Utils.error("Pack is truncated.");
+        }
+        return count;
+    }
+
+    /**
+     * Stores the object HASH of record TYPE, with CONTENTS, unless the
+     * repository already has it. Blobs and commits are checked against
+     * their ids, commits by their encodings.
+     */
+    void store(byte type, String hash, byte[] contents) {
+        if (!_format.isId(hash)) {
+            throw Utils.error("Pack is corrupt: bad object id.");
+        }
+        switch (type) {
+        case COMMIT:
+            Commit made;
+            try {
+                made = Commit.decode(contents, _format);
+            } catch (IllegalArgumentException excp) {
+                throw Utils.error("Pack is corrupt: bad object %s.", hash);
+            }
+            if (!made.id(_format).equals(hash)) {
+                throw Utils.error("Pack is corrupt: bad object %s.", hash);
+            }
+            if (!ObjectStore.commitFile(_root, hash).isFile()) {
+                ObjectStore.writeCommit(_root, hash, made);
+            }
+            break;
+        case BLOB:
+            if (!ObjectId.of(_format.digest().digest(contents)).toString()
+                    .equals(hash)) {
+                throw Utils.error("Pack is corrupt: bad object %s.", hash);
+            }
+            if (!ObjectStore.hasBlob(_root, hash)) {
+                ObjectStore.writeBlob(_root, hash, contents);
+            }
+            break;
+        case MANIFEST:
+            TinyGitFile manifest = ObjectStore.manifestFile(_root, hash);
+            if (!manifest.isFile()) {
+                ObjectId[] chunks = chunks(hash, contents);
+                manifest.getParentFile().mkdirs();
+                Utils.writeObject(manifest, chunks);
+            }
+            break;
+        default:
+            throw Utils.error("Pack is corrupt: bad record type.");
+        }
+    }
+
+    /**
+     * Returns the largest record contents accepted. Files of at least the
+     * chunk threshold are sent as chunks, so no sender writes a record
+     * much larger than that threshold, or than the default one.
+     */
+    static long maxRecord() {
+        return Math.max(Config.chunkThreshold(),
+                        Config.DEFAULT_CHUNK_THRESHOLD) + FRAMING;
+    }
+
+    /**
+     * Reads from IN the length and contents of a record, refusing a
+     * length that is negative or past MAX before allocating for it.
+     */
+    static byte[] readContents(DataInputStream in, long max)
+        throws IOException {
+        int length = in.readInt();
+        if (length < 0 || length > max) {
+            throw Utils.error("Pack is corrupt: bad record length.");
+        }
+        byte[] result = new byte[length];
+        in.readFully(result);
+        return result;
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the chunks listed by CONTENTS, the chunk list of blob HASH,
+     * checking that the chunks, already stored, make up the blob as
+     * ObjectStore.writeChunked hashes it.
+     */
+    private ObjectId[] chunks(String hash, byte[] contents) {
+        ObjectId[] result;
+        try {
+            result = Utils.deserialize(contents, ObjectId[].class);
+        } catch (IllegalArgumentException excp) {
+            throw Utils.error("Pack is corrupt: bad object %s.", hash);
+        }
+        MessageDigest whole = _format.newDigest();
+        for (ObjectId chunk : result) {
+            if (chunk == null
+                || !ObjectStore.hasBlob(_root, chunk.toString())) {
+                throw Utils.error("Pack is corrupt: bad object %s.", hash);
+            }
+            whole.update(
+                contents(ObjectStore.blobFile(_root, chunk.toString())));
+        }
+        if (!ObjectId.of(whole.digest()).toString().equals(hash)) {
+            throw Utils.error("Pack is corrupt: bad object %s.", hash);
+        }
+        return result;
+    }
+
+    /**
+     * Writes to OUT the records of blob ID, and of its chunks if it is
+     * chunked, leaving out those in WRITTEN and adding the rest to it.
+     * A file of one chunk has the id of that chunk, so a chunk list's id
+     * is only added once its chunks are written.
+     */
+    private void writeBlob(DataOutputStream out, ObjectId id,
+                           Set<String> written) throws IOException {
+        String hash = id.toString();
+        if (written.contains(hash)) {
+            return;
+        }
+        ObjectId[] chunks = ObjectStore.chunks(_root, hash);
+        if (chunks == null) {
+            written.add(hash);
+            writeRecord(out, BLOB, hash,
+                contents(ObjectStore.blobFile(_root, hash)));
+            return;
+        }
+        for (ObjectId chunk : chunks) {
+            if (written.add(chunk.toString())) {
+                writeRecord(out, BLOB, chunk.toString(),
+                    contents(ObjectStore.blobFile(_root, chunk.toString())));
+            }
+        }
+        written.add(hash);
+        writeRecord(out, MANIFEST, hash,
+            contents(ObjectStore.manifestFile(_root, hash)));
+    }
+
+    /**
+     * Writes to OUT a record of TYPE for object HASH holding CONTENTS.
+     */
+    private static void writeRecord(DataOutputStream out, byte type,
+                                    String hash, byte[] contents)
+        throws IOException {
+        out.writeByte(type);
+        out.writeUTF(hash);
+        out.writeInt(contents.length);
+        out.write(contents);
+    }
+}
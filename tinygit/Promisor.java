@@ -0,0 +1,95 @@
+package tinygit;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.stream.Collectors;
+
+/**
+ * Retrieves blobs left behind by a partial fetch. A fetch with a blob
+ * filter copies commits but not (all) blobs, and records its remote as
+ * the promisor: the remote that promises to have any blob the local
+ * repository lacks. Blobs are then fetched when a command first needs
+ * them, either in a batch for a whole tree before it is checked out or
+ * one at a time. Fetched blobs are stored in the local repository, so
+ * each is fetched only once.
+ *
+ * @author Michael Remediakis
+ */
+class Promisor {
+
+    /** The setting naming the promisor remote. */
+    static final String REMOTE = "promisor.remote";
+
+    /**
+     * Records REMOTE as the promisor of the local repository.
+     */
+    static void record(String remote) {
+        Config.set(REMOTE, remote);
+    }
+
+    /**
+     * Returns whether the local repository has a promisor, and so may
+     * lack blobs its commits track.
+     */
+    static boolean exists() {
+        return Config.get(REMOTE) != null;
+    }
+
+    /**
+     * Fetches, in one batch, whichever of the blobs IDS the local
+     * repository lacks. Does nothing if it has no promisor.
+     */
+    static void prefetch(Collection<ObjectId> ids) {
+        List<String> missing = ids.stream().distinct()
+            .map(ObjectId::toString)
+            .filter(id -> !ObjectStore.isStored(ObjectStore.ROOT, id))
+            .collect(Collectors.toList());
+        if (missing.isEmpty()) {
+            return;
+        }
+        String remote = remoteRoot();
+        if (remote == null) {
+            return;
+        }
+        IoScheduler.forEach(missing, id ->
+            ObjectStore.copyBlob(remote, ObjectStore.ROOT, id));
+    }
+
+    /**
+     * Makes sure blob ID is in the local repository, fetching it from the
+     * promisor if need be.
+     */
+    static void ensure(ObjectId id) {
+        if (ObjectStore.isStored(ObjectStore.ROOT, id.toString())) {
+            return;
+        }
+        prefetch(Collections.singletonList(id));
+        if (!ObjectStore.isStored(ObjectStore.ROOT, id.toString())) {
+            throw Utils.error("Missing object %s.", id);
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the root of the promisor remote, or null if there is none.
+     */
+    private static String remoteRoot() {
+        String remote = Config.get(REMOTE);
+        if (remote == null) {
+            return null;
+        }
+        TinyGitFile remoteFile = new TinyGitFile(".tinygit/Remote/" + remote);
+        if (!remoteFile.isFile()) {
+            throw Utils.error("Promisor remote %s no longer exists.", remote);
+        }
+        String root = Utils.readContentsAsString(remoteFile);
+        if (!new TinyGitFile(root).isDirectory()) {
+            throw Utils.error("Remote directory not found.");
+        }
+        return root;
+    }
+}
@@ -0,0 +1,389 @@
+package tinygit;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The history of the ids each ref has pointed at, and of the commits the
+ * current branch (HEAD) has pointed at, kept so that commits dropped by
+ * reset, merge or checkout can be found again. The log of ref NAME is
+ * .tinygit/logs/NAME, a file of binary records appended one per update:
+ *
+ *     byte   length of the old id (0 if the ref did not exist)
+ *     bytes  old id
+ *     byte   length of the new id
+ *     bytes  new id
+ *     long   time of the update, in milliseconds
+ *     short  length of the message
+ *     bytes  message, the command that moved the ref (UTF-8)
+ *     int    length of the whole record
+ *
+ * Each record is written with a single append, and ends with its length,
+ * so the newest entries are read from the end of the file without
+ * scanning it. A log is rewritten without its expired entries, keeping
+ * at most reflog.entries records, once it grows past twice that many, so
+ * that each rewrite is paid for by as many appends as it drops. Records
+ * are counted back from the end of the log only when it grows past a
+ * multiple of the size of reflog.entries of the smallest records, rather
+ * than on every append.
+ *
+ * @author Michael Remediakis
+ */
+class Reflog {
+
+    /** The directory under a repository root holding the logs. */
+    static final String DIR = "logs";
+    /** The name of the log of the current branch. */
+    static final String HEAD = "HEAD";
+
+    /** The setting giving the age in days past which entries expire. */
+    static final String EXPIRE = "reflog.expire";
+    /** Default value of EXPIRE. */
+    static final long DEFAULT_EXPIRE = 90;
+    /** The setting giving the most entries kept in a log. */
+    static final String ENTRIES = "reflog.entries";
+    /** Default value of ENTRIES. */
+    static final long DEFAULT_ENTRIES = 1000;
+
+    /** The most characters of a message kept. */
+    private static final int MAX_MESSAGE = 200;
+    /** The smallest size of a record: a new ref, a SHA-1 id, no message. */
+    private static final int MIN_RECORD = 1 + (1 + 20) + 8 + 2 + 4;
+    /** Milliseconds in a day. */
+    private static final long DAY = 24L * 60 * 60 * 1000;
+
+    /**
+     * One update of a ref.
+     */
+    static class Entry {
+        /** The id before the update, or null if the ref was created. */
+        private String _oldId;
+        /** The id after the update. */
+        private String _newId;
+        /** The time of the update, in milliseconds. */
+        private long _time;
+        /** The command that made the update. */
+        private String _message;
+
+        /** An update from OLDID to NEWID made by MESSAGE at TIME. */
+        Entry(String oldId, String newId, long time, String message) {
+            _oldId = oldId;
+            _newId = newId;
+            _time = time;
+            _message = message;
+        }
+
+        /** Returns the id before the update, or null. */
+        String getOldId() {
+            return _oldId;
+        }
+
+        /** Returns the id after the update. */
+        String getNewId() {
+            return _newId;
+        }
+
+        /** Returns the time of the update, in milliseconds. */
+        long getTime() {
+            return _time;
+        }
+
+        /** Returns the command that made the update. */
+        String getMessage() {
+            return _message;
+        }
+    }
+
+    /**
+     * Records in the log of ref NAME of the repository rooted at ROOT that
+     * MESSAGE moved it from OLDID (null if it was created) to NEWID.
+     */
+    static void append(String root, String name, String oldId, String newId,
+                       String message) {
+        TinyGitFile file = logFile(root, name);
+        file.getParentFile().mkdirs();
+        byte[] record = encode(new Entry(oldId, newId,
+            System.currentTimeMillis(), message));
+        try {
+            Files.write(file.toPath(), record, StandardOpenOption.CREATE,
+                StandardOpenOption.APPEND);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        long limit = Math.max(1, Config.getLong(ENTRIES, DEFAULT_ENTRIES));
+        long step = limit * MIN_RECORD;
+        long length = file.length();
+        if (length / step != (length - record.length) / step
+            && holdsMore(file, 2 * limit)) {
+            expire(root, name);
+        }
+    }
+
+    /**
+     * Returns the Nth newest entry of the log of ref NAME of the
+     * repository rooted at ROOT, 0 being the latest, or null if there are
+     * not that many.
+     */
+    static Entry get(String root, String name, int n) {
+        TinyGitFile file = logFile(root, name);
+        if (!file.isFile()) {
+            return null;
+        }
+        try (RandomAccessFile in = new RandomAccessFile(file, "r")) {
+            long end = in.length();
+            for (int i = 0; end > 0; i += 1) {
+                in.seek(end - 4);
+                int length = in.readInt();
+                if (i == n) {
+                    byte[] record = new byte[length];
+                    in.seek(end - length);
+                    in.readFully(record);
+                    return decode(new DataInputStream(
+                        new ByteArrayInputStream(record)));
+                }
+                end -= length;
+            }
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the entries of the log of ref NAME of the repository rooted
+     * at ROOT, newest first.
+     */
+    static List<Entry> read(String root, String name) {
+        List<Entry> result = new ArrayList<>();
+        TinyGitFile file = logFile(root, name);
+        if (!file.isFile()) {
+            return result;
+        }
+        try (DataInputStream in = new DataInputStream(
+                 new BufferedInputStream(
+                     Files.newInputStream(file.toPath())))) {
+            while (in.available() > 0) {
+                result.add(decode(in));
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Collections.reverse(result);
+        return result;
+    }
+
+    /**
+     * Removes from the log of ref NAME of the repository rooted at ROOT
+     * the entries older than reflog.expire days, and all but the newest
+     * reflog.entries. The newest entry is always kept.
+     */
+    static void expire(String root, String name) {
+        List<Entry> entries = read(root, name);
+        if (entries.isEmpty()) {
+            return;
+        }
+        long cutoff = System.currentTimeMillis()
+            - Config.getLong(EXPIRE, DEFAULT_EXPIRE) * DAY;
+        long limit = Math.max(1, Config.getLong(ENTRIES, DEFAULT_ENTRIES));
+        List<Entry> kept = new ArrayList<>();
+        for (Entry entry : entries) {
+            if (kept.size() >= limit
+                || !kept.isEmpty() && entry.getTime() < cutoff) {
+                break;
+            }
+            kept.add(entry);
+        }
+        rewrite(root, name, kept);
+    }
+
+    /**
+     * Removes the Nth newest entry, 0 being the latest, from the log of
+     * ref NAME of the repository rooted at ROOT, returning it, or null if
+     * there are not that many.
+     */
+    static Entry remove(String root, String name, int n) {
+        List<Entry> entries = read(root, name);
+        if (n < 0 || n >= entries.size()) {
+            return null;
+        }
+        Entry result = entries.remove(n);
+        rewrite(root, name, entries);
+        return result;
+    }
+
+    /**
+     * Returns the names of the refs of the repository rooted at ROOT that
+     * have logs, HEAD included.
+     */
+    static List<String> names(String root) {
+        List<String> result = new ArrayList<>();
+        TinyGitFile dir = new TinyGitFile(root + "/" + DIR);
+        if (dir.isDirectory()) {
+            addNames(dir, "", result);
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    /**
+     * Deletes the log of ref NAME of the repository rooted at ROOT.
+     */
+    static void delete(String root, String name) {
+        logFile(root, name).delete();
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the log file of ref NAME of the repository rooted at ROOT.
+     */
+    private static TinyGitFile logFile(String root, String name) {
+        return new TinyGitFile(root + "/" + DIR + "/" + name);
+    }
+
+    /**
+     * Adds to RESULT the names of the logs below DIR, whose names start
+     * with PREFIX.
+     */
+    private static void addNames(File dir, String prefix,
+                                 List<String> result) {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                addNames(entry, prefix + entry.getName() + "/", result);
+            } else if (!entry.getName().endsWith(".lock")) {
+                result.add(prefix + entry.getName());
+            }
+        }
+    }
+
+    /**
+     * Returns whether the log FILE holds more than LIMIT records, counted
+     * back from its end by their trailing lengths.
+     */
+    private static boolean holdsMore(TinyGitFile file, long limit) {
+        try (FileChannel in = FileChannel.open(file.toPath())) {
+            MappedByteBuffer log =
+                in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            int end = log.limit();
+            for (long count = 0; end > 0; count += 1) {
+                if (count == limit) {
+                    return true;
+                }
+                end -= log.getInt(end - 4);
+            }
+            return false;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Replaces the log of ref NAME of the repository rooted at ROOT by
+     * ENTRIES, given newest first.
+     */
+    private static void rewrite(String root, String name,
+                                List<Entry> entries) {
+        ByteArrayOutputStream contents = new ByteArrayOutputStream();
+        for (int i = entries.size() - 1; i >= 0; i -= 1) {
+            contents.writeBytes(encode(entries.get(i)));
+        }
+        TinyGitFile file = logFile(root, name);
+        TinyGitFile temp = new TinyGitFile(file.getParentFile(),
+            file.getName() + ".lock");
+        Utils.writeContents(temp, contents.toByteArray());
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the record of ENTRY.
+     */
+    private static byte[] encode(Entry entry) {
+        String message = entry.getMessage();
+        if (message.length() > MAX_MESSAGE) {
+            message = message.substring(0, MAX_MESSAGE);
+        }
+        byte[] text = message.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        try {
+            writeId(out, entry.getOldId());
+            writeId(out, entry.getNewId());
+            out.writeLong(entry.getTime());
+            out.writeShort(text.length);
+            out.write(text);
+            out.writeInt(bytes.size() + 4);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes to OUT the length and bytes of the id HASH, or a zero length
+     * if it is null.
+     */
+    private static void writeId(DataOutputStream out, String hash)
+        throws IOException {
+        if (hash == null) {
+            out.writeByte(0);
+            return;
+        }
+        ObjectId id = ObjectId.fromHex(hash);
+        out.writeByte(id.hexLength() / 2);
+        id.writeTo(out);
+    }
+
+    /**
+     * Reads the next record from IN.
+     */
+    private static Entry decode(DataInputStream in) throws IOException {
+        String oldId = readId(in);
+        String newId = readId(in);
+        long time = in.readLong();
+        byte[] text = new byte[in.readUnsignedShort()];
+        in.readFully(text);
+        in.readInt();
+        return new Entry(oldId, newId, time,
+            new String(text, StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Reads from IN an id written by writeId.
+     */
+    private static String readId(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readUnsignedByte()];
+        if (bytes.length == 0) {
+            return null;
+        }
+        in.readFully(bytes);
+        return ObjectId.of(bytes).toString();
+    }
+}
@@ -0,0 +1,647 @@
+package tinygit;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * The named references of a repository: its branches under refs/heads/,
+ * the remote-tracking branches of each remote under refs/remotes/NAME/,
+ * and whatever other namespaces are wanted. Most refs live in one file,
+ * packed-refs, holding an "ID NAME" line per ref sorted by name, so a ref
+ * is found by binary search and the refs under a prefix are a contiguous
+ * run of lines. A ref updated since the last pack is a loose file under
+ * refs/, which overrides its packed line.
+ *
+ * Refs change only through a Transaction, which holds the repository's
+ * ref lock while it checks every one of its updates against the current
+ * refs and only then applies them.
+ *
+ * @author Michael Remediakis
+ */
+class Refs {
+
+    /** The namespace of branches. */
+    static final String HEADS = "refs/heads/";
+    /** The namespace of remote-tracking branches. */
+    static final String REMOTES = "refs/remotes/";
+    /** The namespace of tags. */
+    static final String TAGS = "refs/tags/";
+
+    /** The file under a repository root holding the packed refs. */
+    static final String PACKED = "packed-refs";
+    /** The directory under a repository root holding the loose refs. */
+    static final String LOOSE = "refs";
+    /** The file under a repository root that locks its refs. */
+    static final String LOCK = "refs.lock";
+
+    /** The first line of a packed-refs file. */
+    private static final String HEADER = "# tinygit packed-refs sorted\n";
+    /** The directory of branch files in older repositories. */
+    private static final String OLD_BRANCHES = "Branch";
+    /** The file naming the current branch. */
+    private static final String HEAD = "head";
+
+    /**
+     * Changes to the refs of one repository, applied all together or not
+     * at all.
+     */
+    static class Transaction {
+        /** The root of the repository. */
+        private String _root;
+        /** New ids by ref name; a null id deletes the ref. */
+        private Map<String, String> _updates = new LinkedHashMap<>();
+        /**
+         * The ids the refs must have for the updates to apply, by ref
+         * name; a null id means the ref must not exist.
+         */
+        private Map<String, String> _expected = new LinkedHashMap<>();
+
+        /** A transaction on the refs of the repository rooted at ROOT. */
+        private Transaction(String root) {
+            _root = root;
+        }
+
+        /** Creates ref NAME, which must not exist yet, pointing at ID. */
+        Transaction create(String name, String id) {
+            checkName(name);
+            _expected.put(name, null);
+            _updates.put(name, id);
+            return this;
+        }
+
+        /**
+         * Points ref NAME at ID, provided it still points at OLDID; a null
+         * OLDID sets NAME whatever it holds, creating it if need be.
+         */
+        Transaction update(String name, String oldId, String id) {
+            checkName(name);
+            if (oldId != null) {
+                _expected.put(name, oldId);
+            }
+            _updates.put(name, id);
+            return this;
+        }
+
+        /** Deletes ref NAME, which must exist. */
+        Transaction delete(String name) {
+            _updates.put(name, null);
+            return this;
+        }
+
+        /**
+         * Applies the changes of this transaction, logging them as made by
+         * MESSAGE, or throws without changing anything if any ref is not
+         * as expected. A null MESSAGE leaves the reflogs alone, for refs that
+         * are not logged or whose logs the caller has rewritten.
+         */
+        void commit(String message) {
+            TinyGitFile lock = lock(_root);
+            try {
+                verify();
+                Map<String, String> old = new LinkedHashMap<>();
+                for (String name : _updates.keySet()) {
+                    old.put(name, read(_root, name));
+                }
+                List<String> unpacked = new ArrayList<>();
+                for (Map.Entry<String, String> update : _updates.entrySet()) {
+                    if (update.getValue() == null
+                        && packed(_root, update.getKey()) != null) {
+                        unpacked.add(update.getKey());
+                    }
+                }
+                if (!unpacked.isEmpty()) {
+                    TreeMap<String, String> refs = readPacked(_root, "");
+                    refs.keySet().removeAll(unpacked);
+                    writePacked(_root, refs);
+                }
+                for (Map.Entry<String, String> update : _updates.entrySet()) {
+                    if (update.getValue() == null) {
+                        deleteLoose(_root, update.getKey());
+                    }
+                }
+                for (Map.Entry<String, String> update : _updates.entrySet()) {
+                    if (update.getValue() != null) {
+                        writeLoose(_root, update.getKey(), update.getValue());
+                    }
+                }
+                if (message != null) {
+                    log(old, message);
+                }
+            } finally {
+                lock.delete();
+            }
+        }
+
+        /**
+         * Checks every change against the current refs.
+         */
+        private void verify() {
+            for (Map.Entry<String, String> expected : _expected.entrySet()) {
+                String name = expected.getKey();
+                String current = read(_root, name);
+                if (expected.getValue() == null && current != null) {
+                    throw Utils.error("Reference %s already exists.", name);
+                }
+                if (expected.getValue() != null
+                    && !expected.getValue().equals(current)) {
+                    throw Utils.error("Reference %s was changed by another"
+                        + " command.", name);
+                }
+            }
+            for (Map.Entry<String, String> update : _updates.entrySet()) {
+                String name = update.getKey();
+                if (update.getValue() == null) {
+                    if (read(_root, name) == null) {
+                        throw Utils.error("Reference %s does not exist.",
+                            name);
+                    }
+                    continue;
+                }
+                for (int i = name.indexOf('/'); i >= 0;
+                     i = name.indexOf('/', i + 1)) {
+                    String parent = name.substring(0, i);
+                    if (read(_root, parent) != null
+                        && !isDeleted(parent)) {
+                        throw Utils.error("Reference %s is in the way of %s.",
+                            parent, name);
+                    }
+                }
+                for (String child : list(_root, name + "/").keySet()) {
+                    if (!isDeleted(child)) {
+                        throw Utils.error("Reference %s is in the way of %s.",
+                            child, name);
+                    }
+                }
+            }
+        }
+
+        /**
+         * Records the applied changes in the reflogs, as made by MESSAGE,
+         * given the OLD ids of the refs changed. Changes to the current
+         * branch are logged for HEAD as well.
+         */
+        private void log(Map<String, String> old, String message) {
+            String current = head(_root);
+            for (Map.Entry<String, String> update : _updates.entrySet()) {
+                String name = update.getKey();
+                if (update.getValue() == null) {
+                    Reflog.delete(_root, name);
+                    continue;
+                }
+                Reflog.append(_root, name, old.get(name), update.getValue(),
+                    message);
+                if (name.equals(current)) {
+                    Reflog.append(_root, Reflog.HEAD, old.get(name),
+                        update.getValue(), message);
+                }
+            }
+        }
+
+        /** Returns whether this transaction deletes ref NAME. */
+        private boolean isDeleted(String name) {
+            return _updates.containsKey(name) && _updates.get(name) == null;
+        }
+    }
+
+    /**
+     * Returns a transaction on the refs of the local repository.
+     */
+    static Transaction transaction() {
+        return transaction(ObjectStore.ROOT);
+    }
+
+    /**
+     * Returns a transaction on the refs of the repository rooted at ROOT.
+     */
+    static Transaction transaction(String root) {
+        return new Transaction(root);
+    }
+
+    /**
+     * Returns the id ref NAME of the local repository points at, or null
+     * if there is no such ref.
+     */
+    static String read(String name) {
+        return read(ObjectStore.ROOT, name);
+    }
+
+    /**
+     * Returns the id ref NAME of the repository rooted at ROOT points at,
+     * or null if there is no such ref.
+     */
+    static String read(String root, String name) {
+        TinyGitFile loose = looseFile(root, name);
+        if (loose.isFile()) {
+            return Utils.readContentsAsString(loose).trim();
+        }
+        return packed(root, name);
+    }
+
+    /**
+     * Returns the refs of the local repository whose names start with
+     * PREFIX, names mapped to ids in order.
+     */
+    static SortedMap<String, String> list(String prefix) {
+        return list(ObjectStore.ROOT, prefix);
+    }
+
+    /**
+     * Returns the refs of the repository rooted at ROOT whose names start
+     * with PREFIX, names mapped to ids in order.
+     */
+    static SortedMap<String, String> list(String root, String prefix) {
+        TreeMap<String, String> result = readPacked(root, prefix);
+        if (prefix.startsWith(LOOSE + "/") || LOOSE.startsWith(prefix)) {
+            addLoose(new TinyGitFile(root + "/" + LOOSE), LOOSE, prefix,
+                result);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the full name of the current branch of the repository rooted
+     * at ROOT.
+     */
+    static String head(String root) {
+        return Utils.readContentsAsString(new TinyGitFile(root + "/" + HEAD));
+    }
+
+    /**
+     * Makes the ref NAME the current branch of the repository rooted at
+     * ROOT, logging the move for HEAD as made by MESSAGE.
+     */
+    static void setHead(String root, String name, String message) {
+        TinyGitFile lock = lock(root);
+        try {
+            TinyGitFile file = new TinyGitFile(root + "/" + HEAD);
+            String oldId = file.isFile() ? read(root, head(root)) : null;
+            TinyGitFile temp = new TinyGitFile(root + "/" + HEAD + ".lock");
+            Utils.writeContents(temp, name);
+            replace(temp, file);
+            String newId = read(root, name);
+            if (newId != null) {
+                Reflog.append(root, Reflog.HEAD, oldId, newId, message);
+            }
+        } finally {
+            lock.delete();
+        }
+    }
+
+    /**
+     * Returns the full name of the branch called NAME in the repository
+     * rooted at ROOT: a local branch if there is one, else a
+     * remote-tracking branch; null if there is neither.
+     */
+    static String branch(String root, String name) {
+        if (read(root, HEADS + name) != null) {
+            return HEADS + name;
+        }
+        if (read(root, REMOTES + name) != null) {
+            return REMOTES + name;
+        }
+        return null;
+    }
+
+    /**
+     * Returns the short name of the ref NAME, without its namespace.
+     */
+    static String shortName(String name) {
+        if (name.startsWith(HEADS)) {
+            return name.substring(HEADS.length());
+        }
+        if (name.startsWith(REMOTES)) {
+            return name.substring(REMOTES.length());
+        }
+        if (name.startsWith(TAGS)) {
+            return name.substring(TAGS.length());
+        }
+        return name;
+    }
+
+    /**
+     * Moves every loose ref of the repository rooted at ROOT into its
+     * packed-refs file.
+     */
+    static void pack(String root) {
+        TinyGitFile lock = lock(root);
+        try {
+            SortedMap<String, String> refs = list(root, "");
+            writePacked(root, refs);
+            for (String name : refs.keySet()) {
+                deleteLoose(root, name);
+            }
+        } finally {
+            lock.delete();
+        }
+    }
+
+    /**
+     * Moves the branch files of an older repository rooted at ROOT into
+     * its refs, and names its current branch in full. Does nothing once
+     * that repository has been migrated, so it is cheap to call before
+     * every command.
+     */
+    static void migrate(String root) {
+        TinyGitFile branches = new TinyGitFile(root + "/" + OLD_BRANCHES);
+        if (!branches.isDirectory()) {
+            return;
+        }
+        TreeMap<String, String> refs = new TreeMap<>();
+        for (String name : Utils.plainFilenamesIn(branches)) {
+            refs.put(HEADS + name, Utils.readContentsAsString(
+                new TinyGitFile(branches, name)));
+        }
+        File[] remotes = branches.listFiles(File::isDirectory);
+        for (File remote : remotes) {
+            for (String name : Utils.plainFilenamesIn(
+                     new TinyGitFile(branches, remote.getName()))) {
+                refs.put(REMOTES + remote.getName() + "/" + name,
+                    Utils.readContentsAsString(new TinyGitFile(remote, name)));
+            }
+        }
+        TinyGitFile lock = lock(root);
+        try {
+            writePacked(root, refs);
+        } finally {
+            lock.delete();
+        }
+
+        TinyGitFile head = new TinyGitFile(root + "/" + HEAD);
+        String current = Utils.readContentsAsString(head);
+        if (!current.startsWith(LOOSE + "/")) {
+            String full = branch(root, current);
+            Utils.writeContents(head, full == null ? HEADS + current : full);
+        }
+        for (File remote : remotes) {
+            for (File file : remote.listFiles()) {
+                file.delete();
+            }
+            remote.delete();
+        }
+        for (File file : branches.listFiles()) {
+            file.delete();
+        }
+        branches.delete();
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Checks that NAME is fit to name a ref.
+     */
+    private static void checkName(String name) {
+        if (!name.startsWith(LOOSE + "/") || name.endsWith("/")
+            || name.contains("//") || name.contains("..")
+            || name.endsWith(".lock") || !name.matches("[^\\s\\p{Cntrl}]+")) {
+            throw Utils.error("Invalid ref name %s.", name);
+        }
+    }
+
+    /**
+     * Takes the ref lock of the repository rooted at ROOT, returning the
+     * lock file to delete to release it.
+     */
+    private static TinyGitFile lock(String root) {
+        TinyGitFile lock = new TinyGitFile(root + "/" + LOCK);
+        try {
+            Files.createFile(lock.toPath());
+        } catch (FileAlreadyExistsException excp) {
+            throw Utils.error("Unable to lock the refs: %s exists. Another"
+                + " command may be running; if not, remove it.",
+                lock.getPath());
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return lock;
+    }
+
+    /**
+     * Returns the loose file of ref NAME in the repository rooted at ROOT.
+     */
+    private static TinyGitFile looseFile(String root, String name) {
+        return new TinyGitFile(root + "/" + name);
+    }
+
+    /**
+     * Points the loose ref NAME of the repository rooted at ROOT at ID,
+     * replacing its file in one step.
+     */
+    private static void writeLoose(String root, String name, String id) {
+        TinyGitFile file = looseFile(root, name);
+        TinyGitFile temp = new TinyGitFile(file.getParentFile(),
+            file.getName() + ".lock");
+        file.getParentFile().mkdirs();
+        Utils.writeContents(temp, id);
+        replace(temp, file);
+    }
+
+    /**
+     * Deletes the loose ref NAME of the repository rooted at ROOT, if any,
+     * with whichever of its directories are left empty.
+     */
+    private static void deleteLoose(String root, String name) {
+        TinyGitFile file = looseFile(root, name);
+        file.delete();
+        TinyGitFile top = new TinyGitFile(root + "/" + LOOSE);
+        for (File dir = file.getParentFile(); !dir.equals(top);
+             dir = dir.getParentFile()) {
+            String[] entries = dir.list();
+            if (entries == null || entries.length > 0 || !dir.delete()) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Adds to RESULT the loose refs starting with PREFIX found below DIR,
+     * which holds the refs named NAME/..., descending only into the
+     * directories that can hold such refs.
+     */
+    private static void addLoose(File dir, String name, String prefix,
+                                 TreeMap<String, String> result) {
+        File[] entries = dir.listFiles();
+        if (entries == null) {
+            return;
+        }
+        for (File entry : entries) {
+            String child = name + "/" + entry.getName();
+            if (entry.isDirectory()) {
+                if (prefix.startsWith(child + "/")
+                    || child.startsWith(prefix)) {
+                    addLoose(entry, child, prefix, result);
+                }
+            } else if (child.startsWith(prefix)
+                       && !child.endsWith(".lock")) {
+                result.put(child, Utils.readContentsAsString(
+                    new TinyGitFile(dir, entry.getName())).trim());
+            }
+        }
+    }
+
+    /**
+     * Returns the packed id of ref NAME in the repository rooted at ROOT,
+     * or null if it is not packed.
+     */
+    private static String packed(String root, String name) {
+        MappedByteBuffer refs = mapPacked(root);
+        if (refs == null) {
+            return null;
+        }
+        int line = lowerBound(refs, name);
+        if (line < refs.limit() && name.equals(nameAt(refs, line))) {
+            return idAt(refs, line);
+        }
+        return null;
+    }
+
+    /**
+     * Returns the packed refs of the repository rooted at ROOT whose names
+     * start with PREFIX, names mapped to ids.
+     */
+    private static TreeMap<String, String> readPacked(String root,
+                                                      String prefix) {
+        TreeMap<String, String> result = new TreeMap<>();
+        MappedByteBuffer refs = mapPacked(root);
+        if (refs == null) {
+            return result;
+        }
+        for (int line = lowerBound(refs, prefix); line < refs.limit();
+             line = lineEnd(refs, line) + 1) {
+            String name = nameAt(refs, line);
+            if (!name.startsWith(prefix)) {
+                break;
+            }
+            result.put(name, idAt(refs, line));
+        }
+        return result;
+    }
+
+    /**
+     * Replaces the packed-refs file of the repository rooted at ROOT with
+     * one holding REFS, names mapped to ids.
+     */
+    private static void writePacked(String root, SortedMap<String, String> refs) {
+        StringBuilder contents = new StringBuilder(HEADER);
+        for (Map.Entry<String, String> ref : refs.entrySet()) {
+            contents.append(ref.getValue()).append(' ').append(ref.getKey())
+                .append('\n');
+        }
+        TinyGitFile file = new TinyGitFile(root + "/" + PACKED);
+        TinyGitFile temp = new TinyGitFile(root + "/" + PACKED + ".lock");
+        Utils.writeContents(temp, contents.toString());
+        replace(temp, file);
+    }
+
+    /**
+     * Renames TEMP to FILE in one step, replacing FILE.
+     */
+    private static void replace(TinyGitFile temp, TinyGitFile file) {
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the packed-refs file of the repository rooted at ROOT mapped
+     * into memory and positioned past its header, or null if there is
+     * none.
+     */
+    private static MappedByteBuffer mapPacked(String root) {
+        TinyGitFile file = new TinyGitFile(root + "/" + PACKED);
+        try (FileChannel in = FileChannel.open(file.toPath())) {
+            MappedByteBuffer result =
+                in.map(FileChannel.MapMode.READ_ONLY, 0, in.size());
+            result.position(Math.min(HEADER.length(), result.limit()));
+            return result;
+        } catch (NoSuchFileException excp) {
+            return null;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /**
+     * Returns the offset in REFS of the first line whose name is not less
+     * than KEY, found by binary search over the lines past the header.
+     */
+    private static int lowerBound(MappedByteBuffer refs, String key) {
+        int low = refs.position();
+        int high = refs.limit();
+        while (low < high) {
+            int line = low + (high - low) / 2;
+            while (line > low && refs.get(line - 1) != '\n') {
+                line -= 1;
+            }
+            if (nameAt(refs, line).compareTo(key) < 0) {
+                low = lineEnd(refs, line) + 1;
+            } else {
+                high = line;
+            }
+        }
+        return low;
+    }
+
+    /**
+     * Returns the offset of the newline ending the line of REFS at LINE.
+     */
+    private static int lineEnd(MappedByteBuffer refs, int line) {
+        int end = line;
+        while (end < refs.limit() && refs.get(end) != '\n') {
+            end += 1;
+        }
+        return end;
+    }
+
+    /**
+     * Returns the name on the line of REFS at LINE.
+     */
+    private static String nameAt(MappedByteBuffer refs, int line) {
+        int start = line;
+        while (refs.get(start) != ' ') {
+            start += 1;
+        }
+        return text(refs, start + 1, lineEnd(refs, line));
+    }
+
+    /**
+     * Returns the id on the line of REFS at LINE.
+     */
+    private static String idAt(MappedByteBuffer refs, int line) {
+        int end = line;
+        while (refs.get(end) != ' ') {
+            end += 1;
+        }
+        return text(refs, line, end);
+    }
+
+    /**
+     * Returns the bytes of REFS from START to END as text.
+     */
+    private static String text(MappedByteBuffer refs, int start, int end) {
+        byte[] bytes = new byte[end - start];
+        for (int i = start; i < end; i += 1) {
+            bytes[i - start] = refs.get(i);
+        }
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,132 @@
+package tinygit;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+
+/**
+ * Applies the changes of commits, one after another, on top of a new
+ * base, as cherry-pick and rebase do. Everything happens on the tracked
+ * file maps in memory: each commit's changes against its parent are
+ * merged into the current files with the same three-way rules as merge,
+ * and the result is stored as a new commit whose parent is the previous
+ * one. Only blobs and commits are written; the working directory and the
+ * refs are left to the caller, which updates them once at the end.
+ *
+ * @author Michael Remediakis
+ */
+class Replay {
+
+    /** The hash of the latest commit made, or of the base. */
+    private String _head;
+    /** The files tracked by _head. */
+    private HashMap<String, ObjectId> _files;
+    /** The paths that conflicted, in any commit applied so far. */
+    private Set<String> _conflicts = new HashSet<>();
+
+    /**
+     * A replay onto commit BASE, whose hash is HASH.
+     */
+    Replay(String hash, Commit base) {
+        _head = hash;
+        _files = new HashMap<>(base.getTracked());
+    }
+
+    /**
+     * Applies the changes COMMIT made to the files PARENT of its first
+     * parent, storing the result as a new commit with COMMIT's message
+     * and time. Returns false, making no commit, if the changes are
+     * already all there.
+     */
+    boolean apply(Commit commit, Map<String, ObjectId> parent) {
+        HashMap<String, ObjectId> files =
+            merge(parent, _files, commit.getTracked());
+        if (files.equals(_files)) {
+            return false;
+        }
+        Commit result = new Commit(commit.getMessage(), commit.getTime(),
+            _head, files, new HashMap<>(), new ArrayList<>());
+        String hash = result.id();
+        result.storeCommit(hash);
+        CommitGraph.record(hash, result, _files);
+        _head = hash;
+        _files = files;
+        return true;
+    }
+
+    /**
+     * Returns the hash of the latest commit made, or of the base if none
+     * was.
+     */
+    String head() {
+        return _head;
+    }
+
+    /**
+     * Returns the files tracked by head().
+     */
+    HashMap<String, ObjectId> files() {
+        return _files;
+    }
+
+    /**
+     * Returns whether any file conflicted. Conflicting files are committed
+     * with both versions between conflict markers, as merge leaves them.
+     */
+    boolean conflicted() {
+        return !_conflicts.isEmpty();
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the files of OURS with the changes going from BASE to
+     * THEIRS merged in. A file changed differently on both sides is
+     * replaced by a conflict blob.
+     */
+    private HashMap<String, ObjectId> merge(Map<String, ObjectId> base,
+                                            Map<String, ObjectId> ours,
+                                            Map<String, ObjectId> theirs) {
+        HashMap<String, ObjectId> result = new HashMap<>(ours);
+        for (String file : CommitGraph.changedPaths(base, theirs)) {
+            ObjectId original = base.get(file);
+            ObjectId mine = ours.get(file);
+            ObjectId other = theirs.get(file);
+            if (Objects.equals(mine, other)) {
+                continue;
+            }
+            if (Objects.equals(mine, original)) {
+                if (other == null) {
+                    result.remove(file);
+                } else {
+                    result.put(file, other);
+                }
+                continue;
+            }
+            result.put(file, conflict(mine, other));
+            _conflicts.add(file);
+        }
+        return result;
+    }
+
+    /**
+     * Stores and returns the blob holding the contents of blobs MINE and
+     * OTHER between conflict markers, an absent blob counting as empty.
+     * The blob is written to a scratch file first, so that neither side
+     * is read into memory.
+     */
+    private static ObjectId conflict(ObjectId mine, ObjectId other) {
+        TinyGitFile temp = new TinyGitFile(ObjectStore.ROOT + "/conflict.tmp");
+        try {
+            ObjectStore.writeConflict(temp, mine, other);
+            return ObjectStore.writeBlob(ObjectStore.ROOT, temp);
+        } finally {
+            temp.delete();
+        }
+    }
+}
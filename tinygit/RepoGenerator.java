@@ -0,0 +1,238 @@
+package tinygit;
+
+import java.util.Random;
+
+/**
+ * Builds synthetic repositories for benchmarks and scale tests. The
+ * repository is created in the current tinygit working directory, so
+ * callers either run it from a scratch directory or point TinyGitFile at
+ * one first. Everything but commit dates is determined by the seed.
+ *
+ * Usage: java tinygit.RepoGenerator SHAPE FILES COMMITS [SEED]
+ *
+ * @author Michael Remediakis
+ */
+class RepoGenerator {
+
+    /** The history shapes that can be generated. */
+    enum Shape {
+        /** A single line of commits on master. */
+        LINEAR,
+        /** Many branches, all forked at the midpoint, taking commits in
+         *  turn. */
+        BRANCHING,
+        /** Short topic branches merged back into master over and over. */
+        MERGE_HEAVY,
+        /** Like LINEAR, but with large binary files. */
+        BINARY
+    }
+
+    /** Number of lines in each generated text file. */
+    static final int LINES_PER_FILE = 20;
+
+    /** Size in bytes of each generated binary file. */
+    static final int BINARY_SIZE = 1 << 16;
+
+    /** Size in bytes of the region rewritten in a binary file. */
+    static final int BINARY_EDIT = 64;
+
+    /** Number of branches, besides master, made by BRANCHING. */
+    static final int BRANCHES = 8;
+
+    /** Commits between merges made by MERGE_HEAVY. */
+    static final int MERGE_INTERVAL = 3;
+
+    /** Default seed used by main. */
+    static final long DEFAULT_SEED = 61;
+
+    /** Source of all generated content. */
+    private Random _random;
+    /** Drives the generated repository. */
+    private Controller _controller = new Controller();
+    /** Number of files in the working tree. */
+    private int _files;
+    /** Whether the generated files are binary. */
+    private boolean _binary;
+
+    /**
+     * A generator whose output is determined by SEED.
+     */
+    RepoGenerator(long seed) {
+        _random = new Random(seed);
+    }
+
+    /**
+     * Generates a repository in the current directory as described by
+     * ARGS: SHAPE FILES COMMITS [SEED].
+     */
+    public static void main(String... args) {
+        try {
+            if (args.length != 3 && args.length != 4) {
+                throw Utils.error("Usage: java tinygit.RepoGenerator "
+                    + "SHAPE FILES COMMITS [SEED]");
+            }
+            long seed = args.length == 4
+                ? Long.parseLong(args[3]) : DEFAULT_SEED;
+            new RepoGenerator(seed).generate(Integer.parseInt(args[1]),
+                Integer.parseInt(args[2]), Shape.valueOf(args[0]));
+        } catch (TinyGitException | IllegalArgumentException e) {
+            System.out.println(e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Initializes a repository with FILES files and about COMMITS commits,
+     * shaped as SHAPE. On return master is checked out, and a branch named
+     * "side" and master each have a commit the other lacks.
+     */
+    void generate(int files, int commits, Shape shape) {
+        _files = files;
+        _binary = shape == Shape.BINARY;
+        _controller.parseLine("init");
+        Commit head = _controller.getHead();
+        for (int i = 0; i < files; i += 1) {
+            Utils.writeContents(new TinyGitFile(fileName(i)),
+                _binary ? newBytes() : newContents());
+            head.addToStage(fileName(i));
+        }
+        _controller.updateCommitFile(_controller.getHeadHash(), head);
+        _controller.parseLine("commit", "generated 0");
+
+        switch (shape) {
+        case BRANCHING:
+            generateBranching(commits);
+            break;
+        case MERGE_HEAVY:
+            generateMergeHeavy(commits);
+            break;
+        default:
+            for (int i = 1; i < commits; i += 1) {
+                commitChanges("generated " + i);
+            }
+            break;
+        }
+
+        if (Refs.read(Refs.HEADS + "side") == null) {
+            _controller.parseLine("branch", "side");
+        }
+        _controller.parseLine("checkout", "side");
+        commitChanges("generated side");
+        _controller.parseLine("checkout", "master");
+        commitChanges("generated master");
+    }
+
+    /**
+     * Makes COMMITS commits: half on master, then the rest spread in turn
+     * over master and BRANCHES branches forked from it.
+     */
+    private void generateBranching(int commits) {
+        int split = commits / 2;
+        for (int i = 1; i < split; i += 1) {
+            commitChanges("generated " + i);
+        }
+        for (int b = 0; b < BRANCHES; b += 1) {
+            _controller.parseLine("branch", branchName(b));
+        }
+        for (int i = Math.max(1, split); i < commits; i += 1) {
+            int b = i % (BRANCHES + 1);
+            if (b == BRANCHES) {
+                commitChanges("generated " + i);
+            } else {
+                _controller.parseLine("checkout", branchName(b));
+                commitChanges("generated " + i);
+                _controller.parseLine("checkout", "master");
+            }
+        }
+    }
+
+    /**
+     * Makes about COMMITS commits, merging a fresh topic branch into
+     * master every MERGE_INTERVAL commits.
+     */
+    private void generateMergeHeavy(int commits) {
+        for (int i = 1; i < commits; i += 1) {
+            if (i % MERGE_INTERVAL != 0) {
+                commitChanges("generated " + i);
+                continue;
+            }
+            String topic = "topic" + i;
+            _controller.parseLine("branch", topic);
+            _controller.parseLine("checkout", topic);
+            commitChanges("generated " + i);
+            _controller.parseLine("checkout", "master");
+            commitChanges("generated " + i + " on master");
+            _controller.parseLine("merge", topic);
+        }
+    }
+
+    /**
+     * Returns the name of the Bth branch made by BRANCHING.
+     */
+    private static String branchName(int b) {
+        return b == 0 ? "side" : "branch" + b;
+    }
+
+    /**
+     * Returns the name of the Ith generated file.
+     */
+    static String fileName(int i) {
+        return String.format("f%06d.txt", i);
+    }
+
+    /**
+     * Changes a few random files, stages them and commits with MESSAGE.
+     */
+    void commitChanges(String message) {
+        Commit head = _controller.getHead();
+        int changes = Math.max(1, _files / 50);
+        for (int i = 0; i < changes; i += 1) {
+            String name = fileName(_random.nextInt(_files));
+            TinyGitFile file = new TinyGitFile(name);
+            if (_binary) {
+                byte[] contents = Utils.readContents(file);
+                byte[] edit = new byte[BINARY_EDIT];
+                _random.nextBytes(edit);
+                System.arraycopy(edit, 0, contents,
+                    _random.nextInt(contents.length - BINARY_EDIT),
+                    BINARY_EDIT);
+                Utils.writeContents(file, contents);
+            } else {
+                String[] lines =
+                    Diff.lines(Utils.readContentsAsString(file));
+                lines[_random.nextInt(lines.length)] = newLine();
+                Utils.writeContents(file, String.join("\n", lines) + "\n");
+            }
+            head.addToStage(name);
+        }
+        _controller.updateCommitFile(_controller.getHeadHash(), head);
+        _controller.parseLine("commit", message);
+    }
+
+    /**
+     * Returns fresh contents for a generated text file.
+     */
+    private String newContents() {
+        StringBuilder result = new StringBuilder();
+        for (int i = 0; i < LINES_PER_FILE; i += 1) {
+            result.append(newLine()).append('\n');
+        }
+        return result.toString();
+    }
+
+    /**
+     * Returns fresh contents for a generated binary file.
+     */
+    private byte[] newBytes() {
+        byte[] result = new byte[BINARY_SIZE];
+        _random.nextBytes(result);
+        return result;
+    }
+
+    /**
+     * Returns a random line of text.
+     */
+    private String newLine() {
+        return "line " + Long.toHexString(_random.nextLong());
+    }
+}
@@ -0,0 +1,510 @@
+package tinygit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Serves the repositories below a directory to fetch and push over a
+ * local socket, so that clients need not read a remote's files directly.
+ * A repository DIR/NAME is reached at tinygit://localhost:PORT/NAME.
+ *
+ * Every message is a length-prefixed UTF-8 string (as DataOutputStream's
+ * writeUTF writes it), and lists end with an empty one. A client sends
+ * the service, FETCH or PUSH, and the repository name; the server answers
+ * "OK FORMAT" with the repository's object format, or "ERR MESSAGE", and
+ * then advertises its refs, each as a name and an id.
+ *
+ * To fetch, the client lists the commits it wants and then the commits it
+ * has; the server acknowledges the ones it has too, and streams a Pack of
+ * the commits reachable from the wants but not from those, with the blobs
+ * the acknowledged commits lack. To push, the client sends a ref name,
+ * the id it expects the ref to hold (empty for a new ref) and the new id,
+ * then a Pack; the server checks that the pack holds every commit and
+ * blob the new id needs that the repository lacks, stores the objects
+ * and moves the ref unless it has moved meanwhile, and answers "OK" or
+ * "ERR MESSAGE".
+ *
+ * Each client is served on a thread of its own, up to MAX_CLIENTS at a
+ * time, and dropped if it keeps the server waiting for TIMEOUT. Commits
+ * and object files read are kept in caches shared by all clients, so
+ * that a popular branch is read from disk once. A served repository is
+ * bare: pushes move refs but leave its working files alone.
+ *
+ * @author Michael Remediakis
+ */
+class Server implements AutoCloseable {
+
+    /** The scheme of server URLs. */
+    static final String SCHEME = "tinygit://";
+    /** The port served when none is given. */
+    static final int DEFAULT_PORT = 9419;
+    /** The service fetching from a repository. */
+    static final String FETCH = "fetch";
+    /** The service pushing to a repository. */
+    static final String PUSH = "push";
+
+    /** The most clients served at once. */
+    private static final int MAX_CLIENTS = 64;
+    /** The most commits kept in the commit cache. */
+    private static final long COMMIT_CACHE = 1 << 16;
+    /** The most bytes kept in the object cache. */
+    private static final long OBJECT_CACHE = 1L << 26;
+    /** Size of the socket buffers. */
+    private static final int BUFFER_SIZE = 1 << 16;
+    /**
+     * How long a client may keep the server waiting for its next bytes,
+     * in milliseconds, before it is dropped. Without it, clients that
+     * connect and go quiet would keep every serving thread.
+     */
+    private static final int TIMEOUT = 30000;
+    /** Prefix of the holding areas of pushes, below a repository root. */
+    private static final String INCOMING = "incoming-";
+
+    /** The directory holding the repositories served. */
+    private String _dir;
+    /** The socket accepting clients. */
+    private ServerSocket _socket;
+    /** The threads serving clients. */
+    private ExecutorService _clients;
+    /** Locks serializing the pushes to each repository, by root. */
+    private Map<String, Object> _locks = new ConcurrentHashMap<>();
+    /** Commits read, by root and id. */
+    private Cache<Commit> _commits = new Cache<>(COMMIT_CACHE);
+    /** Object files read, by path, and commit encodings, by root and id. */
+    private Cache<byte[]> _objects = new Cache<>(OBJECT_CACHE);
+
+    /**
+     * A server of the repositories below DIR, listening on PORT of the
+     * loopback interface, or on any free port if PORT is 0.
+     */
+    Server(String dir, int port) {
+        if (!new TinyGitFile(dir).isDirectory()) {
+            throw Utils.error("Directory not found.");
+        }
+        _dir = dir;
+        try {
+            _socket = new ServerSocket(port, MAX_CLIENTS,
+                InetAddress.getLoopbackAddress());
+        } catch (IOException excp) {
+            throw Utils.error("Cannot listen on port %d: %s", port,
+                excp.getMessage());
+        }
+        _clients = Executors.newFixedThreadPool(MAX_CLIENTS, task -> {
+            Thread result = new Thread(task, "tinygit-serve");
+            result.setDaemon(true);
+            return result;
+        });
+    }
+
+    /** Returns the port listened on. */
+    int port() {
+        return _socket.getLocalPort();
+    }
+
+    /**
+     * Serves clients until closed.
+     */
+    void run() {
+        while (!_socket.isClosed()) {
+            Socket client;
+            try {
+                client = _socket.accept();
+            } catch (SocketException excp) {
+                break;
+            } catch (IOException excp) {
+                continue;
+            }
+            _clients.execute(() -> serve(client));
+        }
+    }
+
+    /**
+     * Stops accepting clients and abandons those being served.
+     */
+    @Override
+    public void close() {
+        try {
+            _socket.close();
+        } catch (IOException excp) {
+            /* Closing anyway. */
+        }
+        _clients.shutdownNow();
+    }
+
+    /**
+     * Returns the strings IN sends up to an empty one.
+     */
+    static List<String> readList(DataInputStream in) throws IOException {
+        List<String> result = new ArrayList<>();
+        for (String next = in.readUTF(); !next.isEmpty();
+             next = in.readUTF()) {
+            result.add(next);
+        }
+        return result;
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Serves one request from CLIENT and closes it. A client that goes
+     * away, goes quiet for TIMEOUT or sends garbage midway is dropped;
+     * any other failure is logged to the standard error as well.
+     */
+    private void serve(Socket client) {
+        try (Socket socket = client;
+             DataInputStream in = new DataInputStream(new BufferedInputStream(
+                 socket.getInputStream(), BUFFER_SIZE));
+             DataOutputStream out = new DataOutputStream(
+                 new BufferedOutputStream(socket.getOutputStream(),
+                     BUFFER_SIZE))) {
+            socket.setSoTimeout(TIMEOUT);
+            String service = in.readUTF();
+            String root = root(in.readUTF());
+            if (root == null || !service.equals(FETCH)
+                && !service.equals(PUSH)) {
+                out.writeUTF("ERR "
+                    + (root == null ? "No such repository." : "Bad request."));
+                out.flush();
+                return;
+            }
+            ObjectFormat format = ObjectFormat.read(root);
+            out.writeUTF("OK " + format);
+            for (Map.Entry<String, String> ref
+                     : Refs.list(root, Refs.LOOSE + "/").entrySet()) {
+                out.writeUTF(ref.getKey());
+                out.writeUTF(ref.getValue());
+            }
+            out.writeUTF("");
+            out.flush();
+            Pack pack = new CachedPack(root, format);
+            if (service.equals(FETCH)) {
+                upload(pack, in, out);
+            } else {
+                receive(pack, in, out);
+            }
+            out.flush();
+        } catch (IOException | RuntimeException excp) {
+            /* The client is gone, went quiet or sent garbage; drop it. */
+        }
+    }
+
+    /**
+     * Returns the root of the repository NAME, or null if there is none.
+     */
+    private String root(String name) {
+        if (name.isEmpty() || name.contains("/") || name.contains("\\")
+            || name.startsWith(".")) {
+            return null;
+        }
+        String root = _dir + "/" + name + "/" + ObjectStore.ROOT;
+        if (!new TinyGitFile(root).isDirectory()) {
+            return null;
+        }
+        synchronized (lock(root)) {
+            ObjectStore.migrate(root);
+            Refs.migrate(root);
+        }
+        return root;
+    }
+
+    /**
+     * Returns the object that pushes to the repository rooted at ROOT
+     * hold.
+     */
+    private Object lock(String root) {
+        return _locks.computeIfAbsent(root, r -> new Object());
+    }
+
+    /**
+     * Negotiates a fetch from PACK's repository with the client on IN and
+     * OUT, and streams it the pack.
+     */
+    private void upload(Pack pack, DataInputStream in, DataOutputStream out)
+        throws IOException {
+        List<String> wants = readList(in);
+        List<String> acked = new ArrayList<>();
+        for (String have : readList(in)) {
+            if (pack.commit(have) != null) {
+                acked.add(have);
+                out.writeUTF(have);
+            }
+        }
+        out.writeUTF("");
+        Set<String> common = pack.reachable(acked, new HashSet<>());
+        Set<String> written = new HashSet<>();
+        for (String hash : acked) {
+            for (ObjectId id : pack.commit(hash).getTracked().values()) {
+                written.add(id.toString());
+            }
+        }
+        for (String hash : pack.reachable(wants, common)) {
+            pack.writeCommit(out, hash, written);
+        }
+        out.writeByte(Pack.END);
+    }
+
+    /**
+     * Takes a push to PACK's repository from the client on IN, answering
+     * on OUT. The pack is read into a holding area below the repository
+     * and checked to hold all the new commits need before any of it is
+     * moved in, so that the repository's lock is held only for that move,
+     * the check that the push is a fast-forward and the ref update.
+     */
+    private void receive(Pack pack, DataInputStream in, DataOutputStream out)
+        throws IOException {
+        String ref = in.readUTF();
+        String oldId = in.readUTF();
+        String newId = in.readUTF();
+        if (!ref.startsWith(Refs.HEADS)) {
+            out.writeUTF("ERR Only branches can be pushed.");
+            return;
+        }
+        if (!oldId.isEmpty() && !pack.format().isId(oldId)
+            || !pack.format().isId(newId)) {
+            out.writeUTF("ERR Bad request.");
+            return;
+        }
+        String incoming = pack.root() + "/" + Files.createTempDirectory(
+            new TinyGitFile(pack.root()).toPath(), INCOMING).getFileName();
+        try {
+            try {
+                new Pack(incoming, pack.format()).receive(in);
+            } catch (TinyGitException excp) {
+                out.writeUTF("ERR " + excp.getMessage());
+                return;
+            }
+            String missing = missing(pack, incoming, newId);
+            if (missing != null) {
+                out.writeUTF("ERR Pack lacks " + missing + ".");
+                return;
+            }
+            synchronized (lock(pack.root())) {
+                ObjectStore.moveObjects(incoming, pack.root());
+                if (!oldId.isEmpty() && !reaches(pack, newId, oldId)) {
+                    out.writeUTF("ERR Please pull down remote changes"
+                        + " before pushing.");
+                    return;
+                }
+                Refs.Transaction transaction = Refs.transaction(pack.root());
+                if (oldId.isEmpty()) {
+                    transaction.create(ref, newId);
+                } else {
+                    transaction.update(ref, oldId, newId);
+                }
+                transaction.commit("push");
+            }
+        } catch (TinyGitException excp) {
+            out.writeUTF("ERR " + excp.getMessage());
+            return;
+        } finally {
+            ObjectStore.deleteObjects(incoming);
+        }
+        out.writeUTF("OK");
+    }
+
+    /**
+     * Returns the first object missing from the commits pushed to PACK's
+     * repository up to NEWID, such as "commit ID", or null if none is.
+     * Objects are looked for in the holding area INCOMING and then in the
+     * repository. The walk stops at commits the repository already has,
+     * each of which was whole when it arrived.
+     */
+    private static String missing(Pack pack, String incoming, String newId) {
+        String root = pack.root();
+        Pack held = new Pack(incoming, pack.format());
+        String nullParent = ObjectId.of(pack.format().digest()
+            .digest(Utils.serialize(null))).toString();
+        Set<String> seen = new HashSet<>();
+        Set<String> blobs = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(newId);
+        while (!queue.isEmpty()) {
+            String hash = queue.remove();
+            if (hash.equals(nullParent) || !seen.add(hash)
+                || ObjectStore.commitFile(root, hash).isFile()) {
+                continue;
+            }
+            Commit c = held.commit(hash);
+            if (c == null) {
+                return "commit " + hash;
+            }
+            queue.add(c.getParentHash());
+            if (c.getOtherParentHash() != null) {
+                queue.add(c.getOtherParentHash());
+            }
+            for (ObjectId id : c.getTracked().values()) {
+                if (blobs.add(id.toString())
+                    && !hasBlob(incoming, root, id.toString())) {
+                    return "blob " + id;
+                }
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether commit ANCESTOR is reachable from commit HASH in
+     * PACK's repository. The walk ends as soon as it is found.
+     */
+    private static boolean reaches(Pack pack, String hash, String ancestor) {
+        Set<String> seen = new HashSet<>();
+        ArrayDeque<String> queue = new ArrayDeque<>();
+        queue.add(hash);
+        while (!queue.isEmpty()) {
+            String next = queue.remove();
+            if (next.equals(ancestor)) {
+                return true;
+            }
+            Commit c = seen.add(next) ? pack.commit(next) : null;
+            if (c != null) {
+                queue.add(c.getParentHash());
+                if (c.getOtherParentHash() != null) {
+                    queue.add(c.getOtherParentHash());
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns whether blob HASH, and all its chunks if it is chunked, are
+     * held in the holding area INCOMING or the repository rooted at ROOT.
+     */
+    private static boolean hasBlob(String incoming, String root,
+                                   String hash) {
+        if (ObjectStore.hasBlob(incoming, hash)
+            || ObjectStore.hasBlob(root, hash)) {
+            return true;
+        }
+        ObjectId[] chunks = ObjectStore.chunks(incoming, hash);
+        if (chunks == null) {
+            chunks = ObjectStore.chunks(root, hash);
+        }
+        if (chunks == null) {
+            return false;
+        }
+        for (ObjectId chunk : chunks) {
+            if (!ObjectStore.hasBlob(incoming, chunk.toString())
+                && !ObjectStore.hasBlob(root, chunk.toString())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * A pack reading commits and object files through the server's shared
+     * caches.
+     */
+    private class CachedPack extends Pack {
+
+        /** A pack of the repository rooted at ROOT, in FORMAT. */
+        CachedPack(String root, ObjectFormat format) {
+            super(root, format);
+        }
+
+        @Override
+        Commit commit(String hash) {
+            String key = root() + "/" + hash;
+            Commit result = _commits.get(key);
+            if (result == null) {
+                result = super.commit(hash);
+                if (result != null) {
+                    _commits.put(key, result, 1);
+                }
+            }
+            return result;
+        }
+
+        @Override
+        byte[] encoding(String hash) {
+            String key = root() + "/" + hash;
+            byte[] result = _objects.get(key);
+            if (result == null) {
+                result = super.encoding(hash);
+                _objects.put(key, result, result.length);
+            }
+            return result;
+        }
+
+        @Override
+        byte[] contents(TinyGitFile file) {
+            String key = file.getPath();
+            byte[] result = _objects.get(key);
+            if (result == null) {
+                result = super.contents(file);
+                _objects.put(key, result, result.length);
+            }
+            return result;
+        }
+    }
+
+    /**
+     * A least-recently-used cache of values of a total weight of at most
+     * a given capacity, safe to share between threads.
+     */
+    private static class Cache<V> {
+
+        /** The entries, least recently used first. */
+        private LinkedHashMap<String, V> _entries =
+            new LinkedHashMap<>(16, 0.75f, true);
+        /** The weight of each entry. */
+        private Map<String, Long> _weights = new HashMap<>();
+        /** The most total weight kept. */
+        private long _capacity;
+        /** The total weight kept. */
+        private long _weight;
+
+        /** An empty cache of CAPACITY. */
+        Cache(long capacity) {
+            _capacity = capacity;
+        }
+
+        /** Returns the value of KEY, or null if it is not kept. */
+        synchronized V get(String key) {
+            return _entries.get(key);
+        }
+
+        /**
+         * Keeps VALUE, of WEIGHT, for KEY, dropping the least recently
+         * used entries to make room. A value heavier than the whole cache
+         * is not kept.
+         */
+        synchronized void put(String key, V value, long weight) {
+            if (weight > _capacity || _entries.containsKey(key)) {
+                return;
+            }
+            _entries.put(key, value);
+            _weights.put(key, weight);
+            _weight += weight;
+            Iterator<String> eldest = _entries.keySet().iterator();
+            while (_weight > _capacity) {
+                String old = eldest.next();
+                _weight -= _weights.remove(old);
+                eldest.remove();
+            }
+        }
+    }
+}
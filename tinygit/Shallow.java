@@ -0,0 +1,164 @@
+package tinygit;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The boundary of a shallow repository: the commits, listed in
+ * .tinygit/shallow, whose parents were not fetched. Those commits are
+ * treated as roots, so walks through history stop at them instead of
+ * failing on the parents that are missing.
+ *
+ * @author Michael Remediakis
+ */
+class Shallow {
+
+    /** The file under the repository root listing the shallow commits. */
+    static final String FILE = "shallow";
+
+    /** The shallow commits of the current repository. */
+    private static Set<String> _commits = new HashSet<>();
+    /** The missing parents of the shallow commits. */
+    private static Set<String> _cut = new HashSet<>();
+
+    /**
+     * Reads the boundary of the repository rooted at ROOT.
+     */
+    static void load(String root) {
+        _commits = new HashSet<>();
+        _cut = new HashSet<>();
+        TinyGitFile file = new TinyGitFile(root + "/" + FILE);
+        if (!file.isFile()) {
+            return;
+        }
+        for (String line : Utils.readContentsAsString(file).split("\n")) {
+            if (!line.isEmpty()) {
+                _commits.add(line);
+            }
+        }
+        for (String hash : _commits) {
+            for (String parent : parents(hash)) {
+                if (!ObjectStore.commitFile(parent).isFile()) {
+                    _cut.add(parent);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns whether the current repository is shallow.
+     */
+    static boolean isShallow() {
+        return !_commits.isEmpty();
+    }
+
+    /**
+     * Returns the shallow commits of the current repository.
+     */
+    static Set<String> commits() {
+        return Collections.unmodifiableSet(_commits);
+    }
+
+    /**
+     * Returns whether HASH is a parent cut off by the boundary.
+     */
+    static boolean isCut(String hash) {
+        return _cut.contains(hash);
+    }
+
+    /**
+     * Makes COMMITS the boundary of the current repository, leaving out
+     * any whose parents are all present, and rereads it. Graph entries
+     * and blame results computed while a parent was cut are dropped once
+     * it is no longer cut, since they took it to have changed every file.
+     */
+    static void write(Set<String> commits) {
+        List<String> kept = new ArrayList<>();
+        for (String hash : commits) {
+            for (String parent : parents(hash)) {
+                if (!ObjectStore.commitFile(parent).isFile()) {
+                    kept.add(hash);
+                    break;
+                }
+            }
+        }
+        boolean moved = false;
+        for (String hash : _commits) {
+            if (!kept.contains(hash)) {
+                ObjectStore.graphFile(hash).delete();
+                moved = true;
+            }
+        }
+        if (moved) {
+            dropBlameCache();
+        }
+        Collections.sort(kept);
+        TinyGitFile file = new TinyGitFile(ObjectStore.ROOT + "/" + FILE);
+        if (kept.isEmpty()) {
+            file.delete();
+        } else {
+            Utils.writeContents(file, String.join("\n", kept) + "\n");
+        }
+        load(ObjectStore.ROOT);
+    }
+
+    /**
+     * Rewrites the boundary after commits were fetched without one. A
+     * fetch can bring in the missing parents of shallow commits, which
+     * are then no longer shallow, so the boundary is written again to
+     * drop them, along with the graph entries and blame results that
+     * took those parents to be cut.
+     */
+    static void update() {
+        write(new HashSet<>(_commits));
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Deletes every cached blame result, any of which may have stopped at
+     * the old boundary.
+     */
+    private static void dropBlameCache() {
+        TinyGitFile dir = new TinyGitFile(ObjectStore.ROOT + "/"
+            + ObjectStore.BLAME);
+        File[] shards = dir.listFiles();
+        if (shards == null) {
+            return;
+        }
+        for (File shard : shards) {
+            File[] results = shard.listFiles();
+            if (results != null) {
+                for (File result : results) {
+                    result.delete();
+                }
+            }
+            shard.delete();
+        }
+    }
+
+    /**
+     * Returns the parents of local commit HASH, other than the null
+     * parent of an initial commit.
+     */
+    private static List<String> parents(String hash) {
+        Commit c = Utils.readObject(ObjectStore.commitFile(hash),
+            Commit.class);
+        List<String> result = new ArrayList<>();
+        String nullHash = Utils.hash(Utils.serialize(null));
+        for (String parent : Arrays.asList(c.getParentHash(),
+                                           c.getOtherParentHash())) {
+            if (parent != null && !parent.equals(nullHash)) {
+                result.add(parent);
+            }
+        }
+        return result;
+    }
+}
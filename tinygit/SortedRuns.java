@@ -0,0 +1,377 @@
+package tinygit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.PriorityQueue;
+
+/**
+ * A sequence of key/value pairs, such as paths and blob ids, sorted by
+ * key and then value with an external merge sort, so that a sequence of
+ * any length takes a bounded heap. Pairs are gathered in memory until
+ * there are as many as the memory budget allows, then sorted and written
+ * out as a run to a scratch file under .tinygit/tmp. Reading merges the
+ * runs, and the pairs still in memory, through a heap that holds one pair
+ * of each run at a time. A sequence within the budget never touches the
+ * disk. The scratch files are deleted on close.
+ *
+ * A Walk lines several sorted cursors up by key, which lets a three-way
+ * comparison of trees, or of a tree with the working directory, proceed
+ * path by path without building their union.
+ *
+ * @author Michael Remediakis
+ */
+class SortedRuns implements AutoCloseable {
+
+    /** The directory under a repository root holding the runs. */
+    static final String DIR = "tmp";
+
+    /** The order of pairs: by key, then by value. */
+    private static final Comparator<String[]> ORDER =
+        Comparator.<String[], String>comparing(p -> p[0])
+            .thenComparing(p -> p[1]);
+
+    /** The most pairs held in memory. */
+    private long _budget;
+    /** The pairs not yet written out. */
+    private ArrayList<String[]> _pairs = new ArrayList<>();
+    /** The files holding the runs written out. */
+    private List<Path> _runs = new ArrayList<>();
+    /** The streams opened on _runs by cursors. */
+    private List<DataInputStream> _open = new ArrayList<>();
+
+    /**
+     * An empty sequence holding at most the configured memory budget of
+     * pairs in memory.
+     */
+    SortedRuns() {
+        this(Config.memoryBudget());
+    }
+
+    /**
+     * An empty sequence holding at most BUDGET pairs in memory.
+     */
+    SortedRuns(long budget) {
+        _budget = Math.max(1, budget);
+    }
+
+    /**
+     * Returns the entries of MAP, with their values as strings.
+     */
+    static SortedRuns of(Map<String, ?> map) {
+        SortedRuns result = new SortedRuns();
+        for (Map.Entry<String, ?> entry : map.entrySet()) {
+            result.add(entry.getKey(), entry.getValue().toString());
+        }
+        return result;
+    }
+
+    /**
+     * Returns KEYS, each with an empty value.
+     */
+    static SortedRuns of(Collection<String> keys) {
+        SortedRuns result = new SortedRuns();
+        for (String key : keys) {
+            result.add(key, "");
+        }
+        return result;
+    }
+
+    /**
+     * Adds the pair KEY, VALUE, writing out a run if that fills the
+     * budget. May be called from several threads.
+     */
+    synchronized void add(String key, String value) {
+        _pairs.add(new String[] { key, value });
+        if (_pairs.size() >= _budget) {
+            spill();
+        }
+    }
+
+    /**
+     * Returns the number of runs written out so far.
+     */
+    int runs() {
+        return _runs.size();
+    }
+
+    /**
+     * Returns a cursor over all the pairs added, in order. Pairs should
+     * not be added while it is in use.
+     */
+    synchronized Cursor cursor() {
+        _pairs.sort(ORDER);
+        List<Iterator<String[]>> sources = new ArrayList<>();
+        sources.add(_pairs.iterator());
+        for (Path run : _runs) {
+            sources.add(read(run));
+        }
+        return new Cursor(sources);
+    }
+
+    /**
+     * Closes the cursors' streams and deletes the runs.
+     */
+    @Override
+    public void close() {
+        for (DataInputStream in : _open) {
+            try {
+                in.close();
+            } catch (IOException excp) {
+                /* Ignore; the file is deleted next. */
+            }
+        }
+        for (Path run : _runs) {
+            run.toFile().delete();
+        }
+        _open.clear();
+        _runs.clear();
+        _pairs.clear();
+    }
+
+    /**
+     * A reading of sorted pairs, one at a time.
+     */
+    static class Cursor {
+
+        /** The sources not yet exhausted, by their next pair. */
+        private PriorityQueue<Source> _heap =
+            new PriorityQueue<>((a, b) -> ORDER.compare(a._pair, b._pair));
+        /** The current pair, or null before the first or after the last. */
+        private String[] _current;
+
+        /**
+         * A cursor merging SOURCES, each already sorted.
+         */
+        private Cursor(List<Iterator<String[]>> sources) {
+            for (Iterator<String[]> source : sources) {
+                Source s = new Source(source);
+                if (s.advance()) {
+                    _heap.add(s);
+                }
+            }
+        }
+
+        /**
+         * Returns a cursor over KEYS, already sorted, each with an empty
+         * value.
+         */
+        static Cursor of(Iterator<String> keys) {
+            List<Iterator<String[]>> sources = new ArrayList<>();
+            sources.add(new Iterator<String[]>() {
+                @Override
+                public boolean hasNext() {
+                    return keys.hasNext();
+                }
+
+                @Override
+                public String[] next() {
+                    return new String[] { keys.next(), "" };
+                }
+            });
+            return new Cursor(sources);
+        }
+
+        /**
+         * Moves to the next pair, returning false if there is none.
+         */
+        boolean next() {
+            Source top = _heap.poll();
+            if (top == null) {
+                _current = null;
+                return false;
+            }
+            _current = top._pair;
+            if (top.advance()) {
+                _heap.add(top);
+            }
+            return true;
+        }
+
+        /** Returns the key of the current pair. */
+        String key() {
+            return _current[0];
+        }
+
+        /** Returns the value of the current pair. */
+        String value() {
+            return _current[1];
+        }
+    }
+
+    /**
+     * Several cursors read side by side, one key at a time: each step
+     * moves to the least key any of them has left and takes from each
+     * cursor its value for that key, if it has one. A cursor holding a
+     * key more than once contributes its first value.
+     */
+    static class Walk {
+
+        /** The cursors walked. */
+        private Cursor[] _cursors;
+        /** Whether each cursor has a current pair. */
+        private boolean[] _live;
+        /** The current key. */
+        private String _key;
+        /** The value of each cursor for _key, or null. */
+        private String[] _values;
+
+        /**
+         * A walk over CURSORS, none of which have been moved yet.
+         */
+        Walk(Cursor... cursors) {
+            _cursors = cursors;
+            _live = new boolean[cursors.length];
+            _values = new String[cursors.length];
+            for (int i = 0; i < cursors.length; i += 1) {
+                _live[i] = cursors[i].next();
+            }
+        }
+
+        /**
+         * Moves to the next key, returning false if there is none.
+         */
+        boolean next() {
+            _key = null;
+            for (int i = 0; i < _cursors.length; i += 1) {
+                if (_live[i] && (_key == null
+                                 || _cursors[i].key().compareTo(_key) < 0)) {
+                    _key = _cursors[i].key();
+                }
+            }
+            if (_key == null) {
+                return false;
+            }
+            for (int i = 0; i < _cursors.length; i += 1) {
+                _values[i] = null;
+                if (_live[i] && _cursors[i].key().equals(_key)) {
+                    _values[i] = _cursors[i].value();
+                    while (_live[i] && _cursors[i].key().equals(_key)) {
+                        _live[i] = _cursors[i].next();
+                    }
+                }
+            }
+            return true;
+        }
+
+        /** Returns the current key. */
+        String key() {
+            return _key;
+        }
+
+        /**
+         * Returns the value of the Ith cursor for the current key, or null
+         * if it has none.
+         */
+        String value(int i) {
+            return _values[i];
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Sorts the pairs in memory and writes them out as a new run.
+     */
+    private void spill() {
+        _pairs.sort(ORDER);
+        long start = Trace.start();
+        long bytes;
+        try {
+            Path dir = new TinyGitFile(ObjectStore.ROOT + "/" + DIR).toPath();
+            Files.createDirectories(dir);
+            Path run = Files.createTempFile(dir, "run", null);
+            _runs.add(run);
+            try (DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(Files.newOutputStream(run)))) {
+                out.writeInt(_pairs.size());
+                for (String[] pair : _pairs) {
+                    out.writeUTF(pair[0]);
+                    out.writeUTF(pair[1]);
+                }
+                bytes = out.size();
+            }
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        Trace.end(Trace.Phase.WRITE, start, bytes);
+        _pairs = new ArrayList<>();
+    }
+
+    /**
+     * Returns an iterator over the pairs of RUN, read as needed.
+     */
+    private Iterator<String[]> read(Path run) {
+        DataInputStream in;
+        int size;
+        try {
+            in = new DataInputStream(
+                new BufferedInputStream(Files.newInputStream(run)));
+            _open.add(in);
+            size = in.readInt();
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        return new Iterator<String[]>() {
+            private int _left = size;
+
+            @Override
+            public boolean hasNext() {
+                return _left > 0;
+            }
+
+            @Override
+            public String[] next() {
+                if (_left == 0) {
+                    throw new NoSuchElementException();
+                }
+                _left -= 1;
+                try {
+                    return new String[] { in.readUTF(), in.readUTF() };
+                } catch (IOException excp) {
+                    throw new IllegalArgumentException(excp.getMessage());
+                }
+            }
+        };
+    }
+
+    /**
+     * One sorted source of a cursor, with its next pair.
+     */
+    private static class Source {
+
+        /** The pairs left. */
+        private Iterator<String[]> _rest;
+        /** The next pair. */
+        private String[] _pair;
+
+        /** A source reading REST. */
+        Source(Iterator<String[]> rest) {
+            _rest = rest;
+        }
+
+        /**
+         * Takes the next pair, returning false if there is none.
+         */
+        boolean advance() {
+            if (!_rest.hasNext()) {
+                return false;
+            }
+            _pair = _rest.next();
+            return true;
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package tinygit;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * The tracked paths materialized in a sparse working tree. The patterns
+ * live one per line in .tinygit/sparse-checkout; without that file every
+ * path is included. A pattern is a glob where * and ? match within a
+ * path segment, ** matches across segments, and a trailing / matches
+ * everything below a directory. A pattern starting with ! excludes the
+ * paths it matches. Lines starting with # are comments.
+ *
+ * All include patterns are compiled into one regular expression, and all
+ * exclude patterns into another, so testing a path costs at most two
+ * matches however many patterns there are.
+ *
+ * @author Michael Remediakis
+ */
+class SparseFilter {
+
+    /** The file under the repository root holding the patterns. */
+    static final String FILE = "sparse-checkout";
+
+    /** Matches the included paths, or null if every path is included. */
+    private Pattern _include;
+    /** Matches the excluded paths, or null if none are. */
+    private Pattern _exclude;
+    /** The patterns this filter was compiled from. */
+    private List<String> _patterns;
+
+    /**
+     * A filter compiled from PATTERNS.
+     */
+    private SparseFilter(List<String> patterns) {
+        _patterns = patterns;
+        List<String> include = new ArrayList<>();
+        List<String> exclude = new ArrayList<>();
+        for (String pattern : patterns) {
+            if (pattern.startsWith("!")) {
+                exclude.add(pattern.substring(1));
+            } else {
+                include.add(pattern);
+            }
+        }
+        _include = compile(include);
+        _exclude = compile(exclude);
+    }
+
+    /**
+     * Returns the filter of the current repository, which includes every
+     * path unless sparse checkout is on.
+     */
+    static SparseFilter load() {
+        TinyGitFile file = file();
+        if (!file.isFile()) {
+            return new SparseFilter(new ArrayList<>());
+        }
+        List<String> patterns = new ArrayList<>();
+        for (String line : Utils.readContentsAsString(file).split("\n")) {
+            line = line.trim();
+            if (!line.isEmpty() && !line.startsWith("#")) {
+                patterns.add(line);
+            }
+        }
+        return new SparseFilter(patterns);
+    }
+
+    /**
+     * Turns sparse checkout on for the current repository, with PATTERNS.
+     */
+    static void write(List<String> patterns) {
+        Utils.writeContents(file(), String.join("\n", patterns) + "\n");
+    }
+
+    /**
+     * Turns sparse checkout off for the current repository.
+     */
+    static void disable() {
+        file().delete();
+    }
+
+    /**
+     * Returns whether PATH belongs in the working tree.
+     */
+    boolean includes(String path) {
+        return (_include == null || _include.matcher(path).matches())
+            && (_exclude == null || !_exclude.matcher(path).matches());
+    }
+
+    /**
+     * Returns the patterns of this filter.
+     */
+    List<String> getPatterns() {
+        return _patterns;
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the patterns file of the current repository.
+     */
+    private static TinyGitFile file() {
+        return new TinyGitFile(ObjectStore.ROOT + "/" + FILE);
+    }
+
+    /**
+     * Returns a pattern matching any of GLOBS, or null if there are none.
+     */
+    private static Pattern compile(List<String> globs) {
+        if (globs.isEmpty()) {
+            return null;
+        }
+        StringBuilder regex = new StringBuilder();
+        for (String glob : globs) {
+            if (regex.length() > 0) {
+                regex.append('|');
+            }
+            regex.append("(?:").append(globToRegex(glob)).append(')');
+        }
+        return Pattern.compile(regex.toString());
+    }
+
+    /**
+     * Returns a regular expression matching the paths GLOB matches.
+     */
+    private static String globToRegex(String glob) {
+        StringBuilder result = new StringBuilder();
+        if (glob.startsWith("/")) {
+            glob = glob.substring(1);
+        }
+        for (int i = 0; i < glob.length(); i += 1) {
+            char ch = glob.charAt(i);
+            if (ch == '*' && i + 1 < glob.length()
+                && glob.charAt(i + 1) == '*') {
+                result.append(".*");
+                i += 1;
+            } else if (ch == '*') {
+                result.append("[^/]*");
+            } else if (ch == '?') {
+                result.append("[^/]");
+            } else if (ch == '/' && i == glob.length() - 1) {
+                result.append("/.*");
+            } else if ("\\.[]{}()+-^$|".indexOf(ch) >= 0) {
+                result.append('\\').append(ch);
+            } else {
+                result.append(ch);
+            }
+        }
+        return result.toString();
+    }
+}
@@ -0,0 +1,80 @@
+package tinygit;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The stack of stashed changes of a repository. A stash is a commit
+ * object whose parent is the commit the changes were made on, whose
+ * tracked files are the working directory at the time, and whose stage
+ * is the stage at the time, so unchanged files share their blobs with
+ * the commits around them. It is marked as a stash, so that global-log
+ * and find leave it out. The stack is the reflog of the ref
+ * refs/stash, which points at the latest stash: stash@{N} is its Nth
+ * newest entry.
+ *
+ * @author Michael Remediakis
+ */
+class Stash {
+
+    /** The ref pointing at the latest stash. */
+    static final String REF = Refs.LOOSE + "/stash";
+    /** The name stash entries are given by, as in stash@{N}. */
+    static final String NAME = "stash";
+
+    /**
+     * Pushes commit ID, made by MESSAGE, onto the stash of the repository
+     * rooted at ROOT.
+     */
+    static void push(String root, String id, String message) {
+        Refs.transaction(root).update(REF, null, id).commit(message);
+    }
+
+    /**
+     * Returns the id of stash@{N} of the repository rooted at ROOT, or
+     * null if there are not that many stashes.
+     */
+    static String get(String root, int n) {
+        Reflog.Entry entry = Reflog.get(root, REF, n);
+        return entry == null ? null : entry.getNewId();
+    }
+
+    /**
+     * Returns the stashes of the repository rooted at ROOT, newest first.
+     */
+    static List<Reflog.Entry> list(String root) {
+        return Reflog.read(root, REF);
+    }
+
+    /**
+     * Returns the ids of the stashes of the repository rooted at ROOT.
+     */
+    static Set<String> ids(String root) {
+        Set<String> result = new HashSet<>();
+        for (Reflog.Entry entry : list(root)) {
+            result.add(entry.getNewId());
+        }
+        return result;
+    }
+
+    /**
+     * Removes stash@{N} from the repository rooted at ROOT, renumbering
+     * the older ones. Returns whether there was such a stash.
+     */
+    static boolean drop(String root, int n) {
+        String current = Refs.read(root, REF);
+        if (current == null || Reflog.remove(root, REF, n) == null) {
+            return false;
+        }
+        Reflog.Entry latest = Reflog.get(root, REF, 0);
+        if (latest == null) {
+            Refs.transaction(root).delete(REF).commit(null);
+            Reflog.delete(root, REF);
+        } else if (!latest.getNewId().equals(current)) {
+            Refs.transaction(root).update(REF, current, latest.getNewId())
+                .commit(null);
+        }
+        return true;
+    }
+}
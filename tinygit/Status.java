@@ -0,0 +1,174 @@
+package tinygit;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The differences between the working directory, the stage and the head
+ * commit, found in a single walk over the sorted union of their paths.
+ * The paths are sorted through SortedRuns, so that the walk keeps to the
+ * memory budget however large the tree. Each file is read and hashed at
+ * most once. A difference is recorded as
+ * a path with a two-letter code, as in git's porcelain format: the first
+ * letter compares the stage with the head commit (A added, M modified,
+ * D removed) and the second the working directory with the stage (M
+ * modified, D deleted); "??" marks an untracked file.
+ *
+ * @author Michael Remediakis
+ */
+class Status {
+
+    /** The paths with differences, in order. */
+    private List<String> _paths = new ArrayList<>();
+    /** The code of each entry of _paths. */
+    private List<String> _codes = new ArrayList<>();
+
+    /**
+     * Compares the working directory TREE with the stage and tracked files
+     * of C, leaving out paths SPARSE excludes from the working tree. If
+     * FIRSTONLY, stops at the first difference.
+     */
+    static Status scan(Commit c, SparseFilter sparse, WorkTree tree,
+                       boolean firstOnly) {
+        Status result = new Status();
+        if (firstOnly && !c.getStaged().isEmpty()) {
+            String path = c.getStaged().keySet().iterator().next();
+            result.add(path, c.getTracked().containsKey(path) ? "M " : "A ");
+            return result;
+        }
+        if (firstOnly && !c.getUntracked().isEmpty()) {
+            result.add(c.getUntracked().get(0), "D ");
+            return result;
+        }
+
+        try (SortedRuns tracked = SortedRuns.of(c.getTracked());
+             SortedRuns stagedFiles = SortedRuns.of(c.getStaged());
+             SortedRuns removed = SortedRuns.of(c.getUntracked())) {
+            SortedRuns.Walk walk = new SortedRuns.Walk(
+                SortedRuns.Cursor.of(tree.files().iterator()),
+                tracked.cursor(), stagedFiles.cursor(), removed.cursor());
+            while (walk.next()) {
+                result.compare(walk.key(), walk.value(0) != null,
+                    walk.value(1), walk.value(2), walk.value(3) != null,
+                    sparse, tree);
+                if (firstOnly && !result.isClean()) {
+                    return result;
+                }
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Returns whether no differences were found.
+     */
+    boolean isClean() {
+        return _paths.isEmpty();
+    }
+
+    /**
+     * Prints the differences in porcelain format, one "XY PATH" line each.
+     */
+    void printPorcelain() {
+        for (int i = 0; i < _paths.size(); i += 1) {
+            System.out.println(_codes.get(i) + " " + _paths.get(i));
+        }
+    }
+
+    /**
+     * Prints the differences as the staged, removed, modified and
+     * untracked sections of the status command.
+     */
+    void printSections() {
+        List<String> staged = new ArrayList<>();
+        List<String> removed = new ArrayList<>();
+        List<String> modified = new ArrayList<>();
+        List<String> untracked = new ArrayList<>();
+        for (int i = 0; i < _paths.size(); i += 1) {
+            String path = _paths.get(i);
+            String code = _codes.get(i);
+            if (code.equals("??")) {
+                untracked.add(path);
+                continue;
+            }
+            if (code.charAt(0) == 'D') {
+                removed.add(path);
+            } else if (code.charAt(0) != ' ') {
+                staged.add(path);
+            }
+            if (code.charAt(1) == 'M') {
+                modified.add(path + " (modified)");
+            } else if (code.charAt(1) == 'D') {
+                modified.add(path + " (deleted)");
+            }
+        }
+        Collections.sort(modified);
+        printSection("Staged Files", staged);
+        printSection("Removed Files", removed);
+        printSection("Modifications Not Staged For Commit", modified);
+        printSection("Untracked Files", untracked);
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Records the differences at PATH, which EXISTS in the working TREE or
+     * not, is tracked as blob TRACKED and staged as blob STAGED (hex ids,
+     * or null if not), and is marked for removal if ISREMOVED. SPARSE
+     * filters the working tree.
+     */
+    private void compare(String path, boolean exists, String tracked,
+                         String staged, boolean isRemoved,
+                         SparseFilter sparse, WorkTree tree) {
+        char index = ' ';
+        char work = ' ';
+        if (staged != null) {
+            index = tracked == null ? 'A' : 'M';
+            if (!exists) {
+                work = 'D';
+            } else if (!staged.equals(tree.hash(path).toString())) {
+                work = 'M';
+            }
+        } else {
+            if (isRemoved) {
+                index = 'D';
+            }
+            if (tracked != null && sparse.includes(path)) {
+                if (!exists) {
+                    work = isRemoved ? ' ' : 'D';
+                } else if (!tracked.equals(tree.hash(path).toString())) {
+                    work = 'M';
+                }
+            }
+        }
+        if (index != ' ' || work != ' ') {
+            add(path, "" + index + work);
+        }
+        if (exists && sparse.includes(path)
+            && (staged == null && tracked == null || isRemoved)) {
+            add(path, "??");
+        }
+    }
+
+    /**
+     * Records a difference with CODE at PATH.
+     */
+    private void add(String path, String code) {
+        _paths.add(path);
+        _codes.add(code);
+    }
+
+    /**
+     * Prints a status section headed TITLE listing LINES.
+     */
+    private static void printSection(String title, List<String> lines) {
+        System.out.println("=== " + title + " ===");
+        for (String line : lines) {
+            System.out.println(line);
+        }
+        System.out.println();
+    }
+}
@@ -0,0 +1,178 @@
+package tinygit;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An annotated tag: a named, dated message about a commit, stored as an
+ * object of its own so that it never moves. A lightweight tag is just the
+ * ref refs/tags/NAME pointing at a commit; an annotated one points at a
+ * tag object, which names the commit (or another tag).
+ *
+ * Peeling, following a tag to its commit, is answered from a table kept
+ * in .tinygit/peeled-tags that maps the id of each annotated tag to the
+ * id of its commit, so that it takes no object loads. Entries are added
+ * as tags are made and the table is rebuilt by pack-refs; an id the table
+ * lacks is peeled by loading its objects.
+ *
+ * @author Michael Remediakis
+ */
+class Tag implements Serializable {
+
+    private static final long serialVersionUID = 3184522950172648830L;
+
+    /** The file under a repository root holding the peeled-tag table. */
+    static final String PEELED = "peeled-tags";
+
+    /** The name of the tag. */
+    private String _name;
+    /** The id of the commit, or tag, tagged. */
+    private String _object;
+    /** The message of the tag. */
+    private String _message;
+    /** The time the tag was made. */
+    private Date _time;
+
+    /**
+     * An annotated tag NAME of OBJECT with MESSAGE, made at TIME.
+     */
+    Tag(String name, String object, String message, Date time) {
+        if (message.length() == 0) {
+            throw Utils.error("Please enter a tag message.");
+        }
+        _name = name;
+        _object = object;
+        _message = message;
+        _time = time;
+    }
+
+    /** Returns the name of the tag. */
+    String getName() {
+        return _name;
+    }
+
+    /** Returns the id of the commit, or tag, tagged. */
+    String getObject() {
+        return _object;
+    }
+
+    /** Returns the message of the tag. */
+    String getMessage() {
+        return _message;
+    }
+
+    /** Returns the time the tag was made. */
+    Date getTime() {
+        return _time;
+    }
+
+    /**
+     * Stores this tag in the repository rooted at ROOT and records it in
+     * the peeled-tag table. Returns its id.
+     */
+    String store(String root) {
+        String hash = Utils.hash(Utils.serialize(this));
+        TinyGitFile file = ObjectStore.tagFile(root, hash);
+        file.getParentFile().mkdirs();
+        Utils.writeObject(file, this);
+        HashMap<String, String> table = readTable(root);
+        table.put(hash, peel(root, _object, table));
+        writeTable(root, table);
+        return hash;
+    }
+
+    /**
+     * Returns the id of the commit tagged by tag NAME of the repository
+     * rooted at ROOT, or null if there is no such tag.
+     */
+    static String resolve(String root, String name) {
+        String target = Refs.read(root, Refs.TAGS + name);
+        if (target == null) {
+            return null;
+        }
+        return peel(root, target, readTable(root));
+    }
+
+    /**
+     * Returns the peeled-tag table of the repository rooted at ROOT: the
+     * ids of annotated tags mapped to the ids of their commits.
+     */
+    static HashMap<String, String> peeled(String root) {
+        return readTable(root);
+    }
+
+    /**
+     * Returns the commit that object ID of the repository rooted at ROOT
+     * leads to, following tags, looking them up in the peeled-tag TABLE
+     * first. An id that is neither a tag nor a commit is returned as is.
+     */
+    static String peel(String root, String id, Map<String, String> table) {
+        while (true) {
+            String peeled = table.get(id);
+            if (peeled != null) {
+                return peeled;
+            }
+            TinyGitFile file = ObjectStore.tagFile(root, id);
+            if (!file.isFile()) {
+                return id;
+            }
+            id = Utils.readObject(file, Tag.class).getObject();
+        }
+    }
+
+    /**
+     * Rebuilds the peeled-tag table of the repository rooted at ROOT from
+     * its tag refs, dropping the entries of deleted tags.
+     */
+    static void repeel(String root) {
+        HashMap<String, String> old = readTable(root);
+        HashMap<String, String> table = new HashMap<>();
+        for (String target : Refs.list(root, Refs.TAGS).values()) {
+            if (ObjectStore.tagFile(root, target).isFile()) {
+                table.put(target, peel(root, target, old));
+            }
+        }
+        writeTable(root, table);
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the peeled-tag table of the repository rooted at ROOT, empty
+     * if there is none.
+     */
+    @SuppressWarnings("unchecked")
+    private static HashMap<String, String> readTable(String root) {
+        TinyGitFile file = new TinyGitFile(root + "/" + PEELED);
+        if (!file.isFile()) {
+            return new HashMap<>();
+        }
+        return Utils.readObject(file, HashMap.class);
+    }
+
+    /**
+     * Replaces the peeled-tag table of the repository rooted at ROOT by
+     * TABLE.
+     */
+    private static void writeTable(String root, HashMap<String, String> table) {
+        TinyGitFile file = new TinyGitFile(root + "/" + PEELED);
+        TinyGitFile temp = new TinyGitFile(file.getParentFile(),
+            PEELED + ".lock");
+        Utils.writeObject(temp, table);
+        try {
+            Files.move(temp.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+}
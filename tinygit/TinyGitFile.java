@@ -23,10 +23,11 @@ public class TinyGitFile extends File {
 
     /**
      * Creates a path with given PARENT file and
-     * CHILD path.
+     * CHILD path. PARENT already carries any remote
+     * prefix, so it is not applied again.
      */
     public TinyGitFile(File parent, String child) {
-        super(parent, _remotePath + child);
+        super(parent, child);
     }
 
     /**
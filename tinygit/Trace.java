@@ -0,0 +1,172 @@
+package tinygit;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * Lightweight timing and counting of the phases of a command. Tracing is
+ * off unless the --trace flag is given, which prints a summary to
+ * standard error, or the TINYGIT_TRACE environment variable is set to
+ * "json" (a JSON summary on standard error) or "jfr" (one JDK Flight
+ * Recorder event per phase, seen when the JVM is recording). When off,
+ * each instrumented call costs a single test of a static flag.
+ *
+ * @author Michael Remediakis
+ */
+class Trace {
+
+    /** The instrumented phases. */
+    enum Phase {
+        /** A whole command. */
+        COMMAND,
+        /** Computing an object hash. */
+        HASH,
+        /** Reading file contents. */
+        READ,
+        /** Writing file contents. */
+        WRITE,
+        /** Reading and deserializing an object. */
+        LOAD,
+        /** Serializing an object. */
+        SERIALIZE,
+        /** Listing a directory. */
+        LIST
+    }
+
+    /** The environment variable that selects a trace format. */
+    static final String ENV = "TINYGIT_TRACE";
+
+    /** Whether phases are being recorded. Read by I/O pool threads. */
+    private static volatile boolean _enabled;
+    /** Whether phases are emitted as flight-recorder events. */
+    private static boolean _jfr;
+    /** Whether the summary is printed as JSON. */
+    private static boolean _json;
+
+    /** Number of calls of each phase. */
+    private static final AtomicLongArray CALLS =
+        new AtomicLongArray(Phase.values().length);
+    /** Nanoseconds spent in each phase. */
+    private static final AtomicLongArray NANOS =
+        new AtomicLongArray(Phase.values().length);
+    /** Bytes handled by each phase. */
+    private static final AtomicLongArray BYTES =
+        new AtomicLongArray(Phase.values().length);
+
+    static {
+        String format = System.getenv(ENV);
+        if ("json".equals(format)) {
+            _enabled = _json = true;
+        } else if ("jfr".equals(format)) {
+            _enabled = _jfr = true;
+        }
+    }
+
+    /**
+     * Returns whether tracing is on.
+     */
+    static boolean enabled() {
+        return _enabled;
+    }
+
+    /**
+     * Turns tracing on or off as ENABLED says. When turned on, the summary
+     * is plain text unless the environment has asked for another format.
+     */
+    static void setEnabled(boolean enabled) {
+        _enabled = enabled;
+    }
+
+    /**
+     * Returns a start time for a phase, or 0 if tracing is off.
+     */
+    static long start() {
+        return _enabled ? System.nanoTime() : 0;
+    }
+
+    /**
+     * Records one call of PHASE, begun at START, that handled BYTES bytes.
+     */
+    static void end(Phase phase, long start, long bytes) {
+        if (!_enabled) {
+            return;
+        }
+        long nanos = System.nanoTime() - start;
+        int i = phase.ordinal();
+        CALLS.incrementAndGet(i);
+        NANOS.addAndGet(i, nanos);
+        BYTES.addAndGet(i, bytes);
+        if (_jfr) {
+            PhaseEvent event = new PhaseEvent();
+            event.phase = phase.name().toLowerCase();
+            event.nanos = nanos;
+            event.bytes = bytes;
+            event.commit();
+        }
+    }
+
+    /**
+     * Reports the phases recorded while running COMMAND, if tracing, and
+     * clears them.
+     */
+    static void report(String command) {
+        if (!_enabled || _jfr) {
+            return;
+        }
+        StringBuilder out = new StringBuilder();
+        if (_json) {
+            out.append(String.format("{\"command\": \"%s\", \"phases\": {",
+                command));
+            for (Phase phase : Phase.values()) {
+                int i = phase.ordinal();
+                out.append(String.format(
+                    "%s\"%s\": {\"calls\": %d, \"nanos\": %d, \"bytes\": %d}",
+                    i == 0 ? "" : ", ", phase.name().toLowerCase(),
+                    CALLS.get(i), NANOS.get(i), BYTES.get(i)));
+            }
+            out.append("}}");
+        } else {
+            out.append(String.format("trace: %s%n", command));
+            out.append(String.format("  %-10s %8s %12s %12s%n",
+                "phase", "calls", "ms", "bytes"));
+            for (Phase phase : Phase.values()) {
+                int i = phase.ordinal();
+                out.append(String.format("  %-10s %8d %12.3f %12d%n",
+                    phase.name().toLowerCase(), CALLS.get(i),
+                    NANOS.get(i) / 1e6, BYTES.get(i)));
+            }
+        }
+        System.err.println(out.toString().trim());
+        for (int i = 0; i < CALLS.length(); i += 1) {
+            CALLS.set(i, 0);
+            NANOS.set(i, 0);
+            BYTES.set(i, 0);
+        }
+    }
+
+    /**
+     * A flight-recorder event for one call of a phase.
+     */
+    @Name("tinygit.Phase")
+    @Label("tinygit Phase")
+    @Category("tinygit")
+    static class PhaseEvent extends Event {
+        /** The phase name. */
+        @Label("Phase")
+        String phase;
+        /** Time spent in the call. */
+        @Label("Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long nanos;
+        /** Bytes handled by the call. */
+        @Label("Bytes")
+        @DataAmount
+        long bytes;
+    }
+}
@@ -0,0 +1,209 @@
+package tinygit;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.net.URI;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The client side of the serve protocol: fetches from and pushes to a
+ * repository served at a tinygit://HOST:PORT/NAME URL, as fetch and push
+ * do from a remote directory. See Server for the messages exchanged.
+ *
+ * @author Michael Remediakis
+ */
+class Transport {
+
+    /** The host of the server. */
+    private String _host;
+    /** The port of the server. */
+    private int _port;
+    /** The name of the repository on the server. */
+    private String _name;
+
+    /**
+     * A transport to the repository at URL.
+     */
+    Transport(String url) {
+        URI uri;
+        try {
+            uri = URI.create(url);
+        } catch (IllegalArgumentException excp) {
+            throw Utils.error("Malformed remote URL: %s", url);
+        }
+        if (uri.getHost() == null || uri.getPath() == null
+            || uri.getPath().length() < 2) {
+            throw Utils.error("Malformed remote URL: %s", url);
+        }
+        _host = uri.getHost();
+        _port = uri.getPort() < 0 ? Server.DEFAULT_PORT : uri.getPort();
+        _name = uri.getPath().substring(1);
+    }
+
+    /**
+     * Returns whether LOCATION, where a remote lives, is a server URL
+     * rather than a directory.
+     */
+    static boolean isUrl(String location) {
+        return location.startsWith(Server.SCHEME);
+    }
+
+    /**
+     * Fetches BRANCH of the remote repository into the local one, and
+     * returns the id of its head.
+     */
+    String fetch(String branch) {
+        try (Session session = new Session(Server.FETCH)) {
+            String want = session._refs.get(Refs.HEADS + branch);
+            if (want == null) {
+                throw Utils.error("That remote does not have that branch.");
+            }
+            session._out.writeUTF(want);
+            session._out.writeUTF("");
+            for (String have : haves()) {
+                session._out.writeUTF(have);
+            }
+            session._out.writeUTF("");
+            session._out.flush();
+            Server.readList(session._in);
+            new Pack(ObjectStore.ROOT, ObjectFormat.current())
+                .receive(session._in);
+            return want;
+        } catch (IOException excp) {
+            throw Utils.error("Lost the connection to %s: %s", _host,
+                excp.getMessage());
+        }
+    }
+
+    /**
+     * Pushes the local commit HEAD to BRANCH of the remote repository,
+     * which must not hold commits HEAD lacks.
+     */
+    void push(String branch, String head) {
+        try (Session session = new Session(Server.PUSH)) {
+            String ref = Refs.HEADS + branch;
+            String old = session._refs.get(ref);
+            Set<String> excluded = Collections.emptySet();
+            if (old != null) {
+                if (!CommitGraph.ancestors(head).contains(old)) {
+                    throw Utils.error("Please pull down remote changes"
+                        + " before pushing.");
+                }
+                excluded = CommitGraph.ancestors(old);
+            }
+            Pack pack = new Pack(ObjectStore.ROOT, ObjectFormat.current());
+            Set<String> written = new HashSet<>();
+            if (old != null) {
+                for (ObjectId id : pack.commit(old).getTracked().values()) {
+                    written.add(id.toString());
+                }
+            }
+            session._out.writeUTF(ref);
+            session._out.writeUTF(old == null ? "" : old);
+            session._out.writeUTF(head);
+            for (String hash : pack.reachable(Collections.singleton(head),
+                                              excluded)) {
+                Promisor.prefetch(pack.commit(hash).getTracked().values());
+                pack.writeCommit(session._out, hash, written);
+            }
+            session._out.writeByte(Pack.END);
+            session._out.flush();
+            String reply = session._in.readUTF();
+            if (!reply.equals("OK")) {
+                throw Utils.error(reply.substring("ERR ".length()));
+            }
+        } catch (IOException excp) {
+            throw Utils.error("Lost the connection to %s: %s", _host,
+                excp.getMessage());
+        }
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns the commits the local refs point at.
+     */
+    private static Set<String> haves() {
+        Set<String> result = new LinkedHashSet<>();
+        for (String id : Refs.list(Refs.LOOSE + "/").values()) {
+            if (ObjectStore.commitFile(id).isFile()) {
+                result.add(id);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * A connection to the server for one request, opened with the
+     * repository's refs advertised.
+     */
+    private class Session implements AutoCloseable {
+
+        /** The connection. */
+        private Socket _socket;
+        /** The messages from the server. */
+        private DataInputStream _in;
+        /** The messages to the server. */
+        private DataOutputStream _out;
+        /** The refs the server advertised, names mapped to ids. */
+        private Map<String, String> _refs = new LinkedHashMap<>();
+
+        /**
+         * Connects to the server and requests SERVICE on the repository.
+         */
+        Session(String service) {
+            try {
+                _socket = new Socket(_host, _port);
+                _in = new DataInputStream(
+                    new BufferedInputStream(_socket.getInputStream()));
+                _out = new DataOutputStream(
+                    new BufferedOutputStream(_socket.getOutputStream()));
+                _out.writeUTF(service);
+                _out.writeUTF(_name);
+                _out.flush();
+                String reply = _in.readUTF();
+                if (!reply.startsWith("OK ")) {
+                    throw Utils.error(reply.substring("ERR ".length()));
+                }
+                ObjectFormat format = ObjectFormat.named(reply.substring(3));
+                if (format != ObjectFormat.current()) {
+                    throw Utils.error("Remote repository uses the %s object"
+                        + " format, not %s.", format, ObjectFormat.current());
+                }
+                for (String name = _in.readUTF(); !name.isEmpty();
+                     name = _in.readUTF()) {
+                    _refs.put(name, _in.readUTF());
+                }
+            } catch (IOException excp) {
+                close();
+                throw Utils.error("Cannot reach %s:%d: %s", _host, _port,
+                    excp.getMessage());
+            } catch (TinyGitException excp) {
+                close();
+                throw excp;
+            }
+        }
+
+        @Override
+        public void close() {
+            try {
+                if (_socket != null) {
+                    _socket.close();
+                }
+            } catch (IOException excp) {
+                /* Closing anyway. */
+            }
+        }
+    }
+}
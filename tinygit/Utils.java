@@ -1,21 +1,25 @@
 package tinygit;
 
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.ObjectInputFilter;
 import java.io.ObjectInputStream;
 import java.io.ObjectOutputStream;
 import java.io.Serializable;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
 import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
 import java.util.Arrays;
-import java.util.Formatter;
 import java.util.List;
 
 
@@ -26,31 +30,53 @@ class Utils {
 
     /* SHA-1 HASH VALUES. */
 
-    /** The length of a complete SHA-1 UID as a hexadecimal numeral. */
-    static final int UID_LENGTH = 40;
-
     /** Returns the SHA-1 hash of the concatenation of VALS, which may
      *  be any mixture of byte arrays and Strings. */
     static String sha1(Object... vals) {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-1");
-            for (Object val : vals) {
-                if (val instanceof byte[]) {
-                    md.update((byte[]) val);
-                } else if (val instanceof String) {
-                    md.update(((String) val).getBytes(StandardCharsets.UTF_8));
-                } else {
-                    throw new IllegalArgumentException("improper type to sha1");
-                }
-            }
-            Formatter result = new Formatter();
-            for (byte b : md.digest()) {
-                result.format("%02x", b);
+        return digest(ObjectFormat.SHA1, vals).toString();
+    }
+
+    /** Returns the SHA-1 hash of the concatenation of VALS, which may
+     *  be any mixture of byte arrays and Strings, as an ObjectId. */
+    static ObjectId sha1Id(Object... vals) {
+        return digest(ObjectFormat.SHA1, vals);
+    }
+
+    /** Returns the id, in the current repository's object format, of
+     *  the concatenation of VALS, which may be any mixture of byte
+     *  arrays and Strings. */
+    static String hash(Object... vals) {
+        return digest(ObjectFormat.current(), vals).toString();
+    }
+
+    /** Returns the id, in the current repository's object format, of
+     *  the concatenation of VALS, which may be any mixture of byte
+     *  arrays and Strings, as an ObjectId. */
+    static ObjectId hashId(Object... vals) {
+        return digest(ObjectFormat.current(), vals);
+    }
+
+    /** Returns the FORMAT hash of the concatenation of VALS. */
+    private static ObjectId digest(ObjectFormat format, Object[] vals) {
+        long start = Trace.start();
+        MessageDigest md = format.digest();
+        long size = 0;
+        for (Object val : vals) {
+            if (val instanceof byte[]) {
+                md.update((byte[]) val);
+                size += ((byte[]) val).length;
+            } else if (val instanceof String) {
+                byte[] bytes = ((String) val).getBytes(StandardCharsets.UTF_8);
+                md.update(bytes);
+                size += bytes.length;
+            } else {
+                md.reset();
+                throw new IllegalArgumentException("improper type to sha1");
             }
-            return result.toString();
-        } catch (NoSuchAlgorithmException excp) {
-            throw new IllegalArgumentException("System does not support SHA-1");
         }
+        ObjectId result = ObjectId.of(md.digest());
+        Trace.end(Trace.Phase.HASH, start, size);
+        return result;
     }
 
     /** Returns the SHA-1 hash of the concatenation of the strings in
@@ -89,12 +115,72 @@ class Utils {
     /** Return the entire contents of FILE as a byte array.  FILE must
      *  be a normal file.  Throws IllegalArgumentException
      *  in case of problems. */
-    static byte[] readContents(TinyGitFile file) {
+    static byte[] readContents(File file) {
         if (!file.isFile()) {
             throw new IllegalArgumentException("must be a normal file");
         }
         try {
-            return Files.readAllBytes(file.toPath());
+            long start = Trace.start();
+            byte[] result = Files.readAllBytes(file.toPath());
+            Trace.end(Trace.Phase.READ, start, result.length);
+            return result;
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Files at least this long are mapped into memory rather than read
+     *  into the heap when hashed. */
+    static final int MAP_THRESHOLD = 1 << 20;
+    /** The most bytes of a file mapped at once. */
+    private static final long MAP_WINDOW = 1L << 30;
+
+    /** Return a read-only view of the LENGTH bytes of FILE starting at
+     *  POSITION, mapped into memory rather than read into the heap.
+     *  Throws IllegalArgumentException in case of problems. */
+    static MappedByteBuffer map(File file, long position, long length) {
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                 StandardOpenOption.READ)) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, position,
+                length);
+        } catch (IOException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return the id of the contents of FILE, the same as hashId gives
+     *  for its bytes.  Files of at least MAP_THRESHOLD bytes are mapped a
+     *  window at a time, so that heap use does not grow with file size.
+     *  Throws IllegalArgumentException in case of problems. */
+    static ObjectId hashFile(File file) {
+        long size = file.length();
+        if (size < MAP_THRESHOLD) {
+            return hashId(readContents(file));
+        }
+        long start = Trace.start();
+        MessageDigest md = ObjectFormat.current().digest();
+        for (long position = 0; position < size; position += MAP_WINDOW) {
+            md.update(map(file, position,
+                Math.min(MAP_WINDOW, size - position)));
+        }
+        ObjectId result = ObjectId.of(md.digest());
+        Trace.end(Trace.Phase.HASH, start, size);
+        return result;
+    }
+
+    /** Append the contents of FROM to channel TO, letting the channels
+     *  move the bytes (in the kernel where the platform allows) instead of
+     *  copying them through the heap.  Throws IllegalArgumentException in
+     *  case of problems. */
+    static void transfer(File from, WritableByteChannel to) {
+        long start = Trace.start();
+        try (FileChannel in = FileChannel.open(from.toPath(),
+                 StandardOpenOption.READ)) {
+            long size = in.size();
+            for (long position = 0; position < size; ) {
+                position += in.transferTo(position, size - position, to);
+            }
+            Trace.end(Trace.Phase.WRITE, start, size);
         } catch (IOException excp) {
             throw new IllegalArgumentException(excp.getMessage());
         }
@@ -117,28 +203,70 @@ class Utils {
                 throw
                     new IllegalArgumentException("cannot overwrite directory");
             }
+            long start = Trace.start();
+            long size = 0;
             BufferedOutputStream str =
                 new BufferedOutputStream(Files.newOutputStream(file.toPath()));
             for (Object obj : contents) {
+                byte[] bytes;
                 if (obj instanceof byte[]) {
-                    str.write((byte[]) obj);
+                    bytes = (byte[]) obj;
                 } else {
-                    str.write(((String) obj).getBytes(StandardCharsets.UTF_8));
+                    bytes = ((String) obj).getBytes(StandardCharsets.UTF_8);
                 }
+                str.write(bytes);
+                size += bytes.length;
             }
             str.close();
+            Trace.end(Trace.Phase.WRITE, start, size);
         } catch (IOException | ClassCastException excp) {
             throw new IllegalArgumentException(excp.getMessage());
         }
     }
 
+    /** The classes an object file or record may hold, and how deep and
+     *  how long its objects may run. Objects arrive from other
+     *  repositories and from peers, and reading any other class would
+     *  run whatever code that class reads itself with. Object and
+     *  Map$Entry are the element types of the arrays ArrayList and
+     *  HashMap read themselves into. */
+    private static final ObjectInputFilter FILTER =
+        ObjectInputFilter.Config.createFilter(
+            "maxdepth=16;maxarray=16777216;"
+            + "tinygit.Commit;tinygit.ObjectId;tinygit.Tag;tinygit.WorkTree;"
+            + "tinygit.CommitGraph$Entry;tinygit.BloomFilter;"
+            + "java.lang.String;java.util.Date;java.util.HashMap;"
+            + "java.util.Map$Entry;java.util.ArrayList;java.lang.Object;"
+            + "java.util.TreeSet;!*");
+
     /** Return an object of type T read from FILE, casting it to EXPECTEDCLASS.
      *  Throws IllegalArgumentException in case of problems. */
     static <T extends Serializable> T readObject(File file,
                                                  Class<T> expectedClass) {
         try {
+            long start = Trace.start();
             ObjectInputStream in =
                 new ObjectInputStream(new FileInputStream(file));
+            in.setObjectInputFilter(FILTER);
+            T result = expectedClass.cast(in.readObject());
+            in.close();
+            Trace.end(Trace.Phase.LOAD, start, file.length());
+            return result;
+        } catch (IOException | ClassCastException
+                 | ClassNotFoundException excp) {
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+    }
+
+    /** Return an object of type T read from the serialized BYTES, casting
+     *  it to EXPECTEDCLASS. Throws IllegalArgumentException in case of
+     *  problems. */
+    static <T extends Serializable> T deserialize(byte[] bytes,
+                                                  Class<T> expectedClass) {
+        try {
+            ObjectInputStream in =
+                new ObjectInputStream(new ByteArrayInputStream(bytes));
+            in.setObjectInputFilter(FILTER);
             T result = expectedClass.cast(in.readObject());
             in.close();
             return result;
@@ -168,7 +296,9 @@ class Utils {
      *  lexicographic order as Java Strings.  Returns null if DIR does
      *  not denote a directory. */
     static List<String> plainFilenamesIn(TinyGitFile dir) {
+        long start = Trace.start();
         String[] files = dir.list(PLAIN_FILES);
+        Trace.end(Trace.Phase.LIST, start, 0);
         if (files == null) {
             return null;
         } else {
@@ -206,10 +336,12 @@ class Utils {
     /** Returns a byte array containing the serialized contents of OBJ. */
     static byte[] serialize(Serializable obj) {
         try {
+            long start = Trace.start();
             ByteArrayOutputStream stream = new ByteArrayOutputStream();
             ObjectOutputStream objectStream = new ObjectOutputStream(stream);
             objectStream.writeObject(obj);
             objectStream.close();
+            Trace.end(Trace.Phase.SERIALIZE, start, stream.size());
             return stream.toByteArray();
         } catch (IOException excp) {
             throw error("Internal error serializing commit.");
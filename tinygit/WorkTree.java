@@ -0,0 +1,167 @@
+package tinygit;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * The plain files of the working directory, with the ids of their
+ * contents computed on demand. Without a running fsmonitor the directory
+ * is listed afresh. With one, the listing and the ids computed so far are
+ * kept in a snapshot, .tinygit/fsmonitor/snapshot, stamped with the
+ * watcher's token, and only the files the watcher reports changed since
+ * are looked at again. If the watcher cannot vouch for the changes since
+ * the token, the directory is listed afresh and a new snapshot begun.
+ *
+ * @author Michael Remediakis
+ */
+class WorkTree implements Serializable {
+
+    private static final long serialVersionUID = 5239412047281960137L;
+
+    /** The file in the fsmonitor directory holding the snapshot. */
+    static final String SNAPSHOT = "snapshot";
+
+    /** The names of the plain files, in order. */
+    private TreeSet<String> _files;
+    /** The ids of the contents of the files hashed so far. */
+    private HashMap<String, ObjectId> _hashes = new HashMap<>();
+    /** The watcher instance of the token, or null if unmonitored. */
+    private String _instance;
+    /** The journal offset of the token. */
+    private long _offset;
+    /** Whether this differs from the stored snapshot. */
+    private transient boolean _changed;
+
+    /**
+     * A working tree holding FILES as of the token INSTANCE, OFFSET.
+     */
+    private WorkTree(TreeSet<String> files, String instance, long offset) {
+        _files = files;
+        _instance = instance;
+        _offset = offset;
+        _changed = true;
+    }
+
+    /**
+     * Returns the working tree of the local repository, brought up to date
+     * from the fsmonitor when one is running.
+     */
+    static WorkTree load() {
+        if (!FsMonitor.isRunning()) {
+            return scan(null, 0);
+        }
+        WorkTree last = readSnapshot();
+        FsMonitor.Update update = last == null
+            ? FsMonitor.sync(null, 0)
+            : FsMonitor.sync(last._instance, last._offset);
+        if (update == null) {
+            return scan(null, 0);
+        }
+        if (last == null || !update.isComplete()) {
+            return scan(update.getInstance(), update.getOffset());
+        }
+        for (String path : update.getPaths()) {
+            last._hashes.remove(path);
+            if (new TinyGitFile(path).isFile()) {
+                last._files.add(path);
+            } else {
+                last._files.remove(path);
+            }
+        }
+        last._changed = last._offset != update.getOffset();
+        last._offset = update.getOffset();
+        return last;
+    }
+
+    /**
+     * Returns the names of the plain files, in order.
+     */
+    Set<String> files() {
+        return Collections.unmodifiableSet(_files);
+    }
+
+    /**
+     * Returns whether PATH names a plain file.
+     */
+    boolean contains(String path) {
+        return _files.contains(path);
+    }
+
+    /**
+     * Returns the id of the contents of the file PATH, computed as
+     * Commit.addToStage does.
+     */
+    ObjectId hash(String path) {
+        ObjectId result = _hashes.get(path);
+        if (result == null) {
+            result = Utils.hashFile(new TinyGitFile(path));
+            _hashes.put(path, result);
+            _changed = true;
+        }
+        return result;
+    }
+
+    /**
+     * Stores this as the snapshot if it is monitored and has changed.
+     */
+    void save() {
+        if (_instance == null || !_changed) {
+            return;
+        }
+        TinyGitFile temp = new TinyGitFile(snapshotFile().getParentFile(),
+            SNAPSHOT + ".tmp" + ProcessHandle.current().pid());
+        Utils.writeObject(temp, this);
+        try {
+            Files.move(temp.toPath(), snapshotFile().toPath(),
+                StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException excp) {
+            temp.delete();
+            throw new IllegalArgumentException(excp.getMessage());
+        }
+        _changed = false;
+    }
+
+    /* ---------------------------------------------------- */
+    /* ----------------- Helper Functions ----------------- */
+    /* ---------------------------------------------------- */
+
+    /**
+     * Returns a working tree listed afresh, as of the token INSTANCE,
+     * OFFSET.
+     */
+    private static WorkTree scan(String instance, long offset) {
+        return new WorkTree(new TreeSet<>(Utils.plainFilenamesIn(".")),
+            instance, offset);
+    }
+
+    /**
+     * Returns the snapshot file of the local repository.
+     */
+    private static TinyGitFile snapshotFile() {
+        return new TinyGitFile(ObjectStore.ROOT + "/" + FsMonitor.DIR + "/"
+            + SNAPSHOT);
+    }
+
+    /**
+     * Returns the stored snapshot, or null if there is none or it cannot
+     * be read.
+     */
+    private static WorkTree readSnapshot() {
+        TinyGitFile file = snapshotFile();
+        if (!file.isFile()) {
+            return null;
+        }
+        try {
+            return Utils.readObject(file, WorkTree.class);
+        } catch (IllegalArgumentException excp) {
+            return null;
+        }
+    }
+}